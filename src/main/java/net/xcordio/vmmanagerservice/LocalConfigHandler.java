@@ -0,0 +1,97 @@
+package net.xcordio.vmmanagerservice;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import net.xcordio.vmmanagerservice.util.FileAccess;
+import net.xcordio.vmmanagerservice.util.FileInfo;
+import net.xcordio.vmmanagerservice.util.LocalFileAccess;
+import net.xcordio.vmmanagerservice.util.ReflectiveConfig;
+
+/**
+ * Handles JSON configs in directories of the service host, with no SSH involved; files are accessed through
+ * {@link LocalFileAccess}. Selected with <code>"type": "local"</code> in <code>vmconfigs</code>.
+ * <p>
+ * Closing of written local files is not reported, so every change is handled after {@link #quietMillis}.
+ * @author xcordio
+ */
+@ReflectiveConfig.Configurable
+public class LocalConfigHandler extends RemoteConfigHandler {
+	
+	protected transient final LocalFileAccess local = new LocalFileAccess();
+	
+	public LocalConfigHandler() throws IOException {
+		super();
+	}
+	
+	@Override
+	protected void changed(FileAccess fa, String dir, String file, boolean delete, boolean writeClosed) {
+		super.changed(fa, dir, file, delete, true);
+	}
+	
+	/** Listened directory is synchronized at once, as there are no reconnects to wait for. */
+	@Override
+	public void listenTo(String directory, EventHandler handler) {
+		local.recursive = recursive;
+		local.listenTo(directory, handler);
+		watchesEstablished(Collections.singleton(directory));
+	}
+	
+	@Override
+	public void cancelListen(String dir, EventHandler handler) {
+		local.cancelListen(dir, handler);
+	}
+	
+	@Override
+	public void cancelListen(String dir) {
+		local.cancelListen(dir);
+	}
+	
+	@Override
+	public void stopListen() {
+		local.stopListen();
+		super.stopListen();
+	}
+	
+	@Override
+	public InputStream readFile(String filename) throws IOException {
+		return local.readFile(filename);
+	}
+	
+	@Override
+	public OutputStream writeFile(String filename) throws IOException {
+		return local.writeFile(filename);
+	}
+	
+	@Override
+	public boolean isFile(String filename) throws IOException {
+		return local.isFile(filename);
+	}
+	
+	@Override
+	public boolean isDir(String filename) throws IOException {
+		return local.isDir(filename);
+	}
+	
+	@Override
+	public List<FileInfo> listFiles(Collection<String> dirs) throws IOException {
+		local.recursive = recursive;
+		return local.listFiles(dirs);
+	}
+	
+	@Override
+	public void readFiles(Collection<String> paths, ContentHandler handler) throws IOException {
+		local.readFiles(paths, handler);
+	}
+	
+	/** Nothing is verified: computing checksum of a local file costs the same as reading it. */
+	@Override
+	public Map<String, String> checksums(Collection<String> paths) {
+		return Collections.emptyMap();
+	}
+}
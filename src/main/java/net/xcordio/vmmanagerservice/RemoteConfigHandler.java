@@ -1,22 +1,44 @@
 package net.xcordio.vmmanagerservice;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
 
 import org.json.JSONObject;
 
 import net.semplar.log.Logger;
 import net.xcordio.vmmanagerservice.model.InstanceConfig;
+import net.xcordio.vmmanagerservice.util.ContentFingerprint;
 import net.xcordio.vmmanagerservice.util.FileAccess;
+import net.xcordio.vmmanagerservice.util.FileEvent;
+import net.xcordio.vmmanagerservice.util.FileInfo;
+import net.xcordio.vmmanagerservice.util.JSONStreamBinder;
 import net.xcordio.vmmanagerservice.util.ReflectiveConfig;
+import net.xcordio.vmmanagerservice.util.RemoteDirectoryWatcher;
 import net.xcordio.vmmanagerservice.util.RemoteFileAccess;
 
 /**
  * This class listens to remote directories and handle JSON changes.
  * @author xcordio
  */
+@ReflectiveConfig.Configurable
 public class RemoteConfigHandler extends RemoteFileAccess {
 	
 	private static final Logger log = Logger.getc();
@@ -28,35 +50,344 @@ public class RemoteConfigHandler extends RemoteFileAccess {
 		for (String d : newDirs) listenTo(d, handler);
 	}
 	
+	/** Quiet period after the last event of a file before the file is handled, in milliseconds. */
+	public int quietMillis = 300;
+	/** How long to wait for CLOSE_WRITE after CREATE or MODIFY, i.e. while file may be half-written, in milliseconds. */
+	public int openWriteMillis = 2000;
+	
+	/** Glob patterns of file names to ignore, e.g. temp files which are renamed once written; '*' and '?' are wildcards. */
+	public List<String> ignoredFiles = new ArrayList<String>(Arrays.asList(".*", "*.tmp", "*.swp", "*~"));
+	protected transient volatile Pattern ignoredPattern = globsToPattern(ignoredFiles);
+	/**
+	 * If checksums of files changed while not watched are compared to applied ones remotely first, so files which were
+	 * only touched are not fetched.
+	 */
+	public boolean verifyChecksums;
+	
+	public void onIgnoredFilesChange(List<String> l) {
+		ignoredPattern = globsToPattern(l);
+	}
+	
 	/** Single preHandler instance used for all directories. */
-	protected transient final Handler handler = new Handler() {
+	protected transient final EventHandler handler = new EventHandler() {
 		@Override
-		public void handleEvents(FileAccess fa, String dir, List<String> actions, String file) {
-			for (String action : actions) {
-				if ("CREATE".equals(action) || "MODIFIED".equals(action)) {
-					String configFilepath = dir + file;
-					InputStream is = null;
-					String jsonString;
+		public int getEventMask() {
+			return HANDLED_EVENTS;
+		}
+		
+		@Override
+		public void handleEvents(FileAccess fa, String dir, int events, String file) {
+			// moves are paired before filtering, as temp file may be renamed to config file
+			if ((events & FileEvent.MOVED_FROM.mask) != 0) {
+				movedFrom(fa, dir, file);
+				return;
+			}
+			if ((events & FileEvent.MOVED_TO.mask) != 0) {
+				movedTo(fa, dir, file);
+				return;
+			}
+			synchronized (pendingChanges) {
+				lastMoves.remove(dir);
+			}
+			if (isIgnored(file)) {
+				return;
+			} else if ((events & FileEvent.DELETE.mask) != 0) {
+				changed(fa, dir, file, true, true);
+			} else if ((events & FileEvent.CLOSE_WRITE.mask) != 0) {
+				changed(fa, dir, file, false, true);
+			} else {
+				changed(fa, dir, file, false, false); // CREATE or MODIFY
+			}
+		}
+	};
+	protected static final int HANDLED_EVENTS = FileEvent.MOVED_FROM.mask | FileEvent.MOVED_TO.mask
+			| FileEvent.CREATE.mask | FileEvent.MODIFY.mask | FileEvent.CLOSE_WRITE.mask | FileEvent.DELETE.mask;
+	
+	/** Effective change of a file by a burst of events: either upsert or delete. */
+	protected static class PendingChange {
+		
+		public final FileAccess fa;
+		public final String dir;
+		public final String file;
+		// next fields are synchronized on {@code pendingChanges}
+		public boolean delete;
+		public boolean writeClosed;
+		public int version;
+		public ScheduledFuture<?> timer;
+		
+		public PendingChange(FileAccess fa, String dir, String file) {
+			this.fa = fa;
+			this.dir = dir;
+			this.file = file;
+		}
+	}
+	
+	/** MOVED_FROM event waiting for its MOVED_TO pair. */
+	protected static class PendingMove {
+		
+		public final FileAccess fa;
+		public final String dir;
+		public final String file;
+		public ScheduledFuture<?> timer;
+		
+		public PendingMove(FileAccess fa, String dir, String file) {
+			this.fa = fa;
+			this.dir = dir;
+			this.file = file;
+		}
+		
+		public String getPath() {
+			return dir + file;
+		}
+	}
+	
+	// next fields are synchronized on {@code pendingChanges}
+	protected transient final Map<String, PendingChange> pendingChanges = new HashMap<String, PendingChange>();
+	protected transient final Map<String, PendingMove> pendingMoves = new LinkedHashMap<String, PendingMove>();
+	// MOVED_FROM events which were the last events of their directories, by directory
+	protected transient final Map<String, PendingMove> lastMoves = new HashMap<String, PendingMove>();
+	// count of changes queued or being applied, by path
+	protected transient final Map<String, Integer> applying = new HashMap<String, Integer>();
+	protected transient ScheduledThreadPoolExecutor debounceTimer;
+	protected transient final AtomicLong coalescedEvents = new AtomicLong();
+	
+	/**
+	 * Collapses events of a file into single change, handled once no events came for {@link #quietMillis}, or
+	 * {@link #openWriteMillis} if file may still be written.
+	 */
+	protected void changed(FileAccess fa, String dir, String file, boolean delete, boolean writeClosed) {
+		final String key = dir + file;
+		synchronized (pendingChanges) {
+			PendingChange p = pendingChanges.get(key);
+			if (p == null) {
+				pendingChanges.put(key, p = new PendingChange(fa, dir, file));
+			} else {
+				p.timer.cancel(false);
+				coalescedEvents.incrementAndGet();
+			}
+			p.delete = delete;
+			p.writeClosed = writeClosed;
+			final PendingChange change = p;
+			final int version = ++ p.version;
+			p.timer = debounceTimer().schedule(new Runnable() {
+				@Override
+				public void run() {
+					synchronized (pendingChanges) {
+						// a newer event came meanwhile
+						if (change.version != version || pendingChanges.get(key) != change) return;
+						pendingChanges.remove(key);
+					}
+					applyChange(key, change);
+				}
+			}, writeClosed ? quietMillis : openWriteMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	/**
+	 * inotifywait doesn't report move cookies, so MOVED_FROM is paired with MOVED_TO right after it in the same
+	 * directory: events of a directory are handled in order (see {@link RemoteDirectoryWatcher#route}), and those of a
+	 * rename come in a row. Events of moves between directories may interleave with others, so MOVED_TO is paired with
+	 * a pending move of the same file name otherwise. Moves left unpaired for {@link #quietMillis} are treated as
+	 * deletions.
+	 */
+	protected void movedFrom(FileAccess fa, String dir, String file) {
+		final PendingMove move = new PendingMove(fa, dir, file);
+		PendingMove replaced;
+		synchronized (pendingChanges) {
+			replaced = pendingMoves.put(move.getPath(), move);
+			if (replaced != null) replaced.timer.cancel(false);
+			lastMoves.put(dir, move);
+			move.timer = debounceTimer().schedule(new Runnable() {
+				@Override
+				public void run() {
+					synchronized (pendingChanges) {
+						if (pendingMoves.get(move.getPath()) != move) return;
+						pendingMoves.remove(move.getPath());
+						if (lastMoves.get(move.dir) == move) lastMoves.remove(move.dir);
+					}
+					movedOut(move);
+				}
+			}, quietMillis, TimeUnit.MILLISECONDS);
+		}
+		// file moved back and away again meanwhile
+		if (replaced != null) movedOut(replaced);
+	}
+	
+	protected void movedOut(PendingMove move) {
+		if (!isIgnored(move.file)) changed(move.fa, move.dir, move.file, true, true);
+	}
+	
+	/** Moved file is complete, so it's handled as CLOSE_WRITE, unless it's a rename of already applied config. */
+	protected void movedTo(FileAccess fa, String dir, String file) {
+		PendingMove from;
+		synchronized (pendingChanges) {
+			from = pairedMove(dir, file);
+			if (from != null) {
+				pendingMoves.remove(from.getPath());
+				from.timer.cancel(false);
+			}
+		}
+		boolean ignored = isIgnored(file);
+		if (from == null || isIgnored(from.file)) {
+			// moved from unwatched place, or temp file was published
+			if (!ignored) changed(fa, dir, file, false, true);
+		} else if (ignored) {
+			movedOut(from);
+		} else if (from.getPath().equals(dir + file)) {
+			// moved back, maybe changed meanwhile
+			changed(fa, dir, file, false, true);
+		} else if (!renamed(from, dir, file)) {
+			changed(fa, dir, file, false, true);
+		}
+	}
+	
+	/**
+	 * Called with {@code pendingChanges} locked.
+	 * @return pending move which MOVED_TO of given file completes, or null
+	 */
+	protected PendingMove pairedMove(String dir, String file) {
+		PendingMove last = lastMoves.remove(dir);
+		if (last != null && pendingMoves.get(last.getPath()) == last) return last;
+		PendingMove sameName = null;
+		for (PendingMove m : pendingMoves.values())
+			if (m.file.equals(file)) sameName = m; // the latest one
+		return sameName;
+	}
+	
+	/** @return false if renamed config wasn't applied yet, so it's to be read */
+	protected boolean renamed(PendingMove from, String dir, String file) {
+		String fromPath = from.dir + from.file;
+		synchronized (pendingChanges) {
+			if (pendingChanges.containsKey(fromPath) || applying.containsKey(fromPath)) {
+				// change of the old file is pending, queued or being applied: deleting it, and reading the new one
+				changed(from.fa, from.dir, from.file, true, true);
+				return false;
+			}
+		}
+		if (!handleConfigRenamed(from.file, file)) return false;
+		String checksum = appliedChecksums.remove(from.file);
+		if (checksum != null) appliedChecksums.put(file, checksum);
+		// rename keeps modification time, so the file isn't fetched by the next sync
+		FileInfo synced = syncedFiles.remove(fromPath);
+		if (synced != null) syncedFiles.put(dir + file, new FileInfo(dir, file, synced.mtimeNanos, synced.size));
+		else syncedFiles.remove(dir + file);
+		return true;
+	}
+	
+	protected boolean isIgnored(String file) {
+		Pattern p = ignoredPattern;
+		return p != null && p.matcher(file).matches();
+	}
+	
+	protected static Pattern globsToPattern(List<String> globs) {
+		if (globs == null || globs.isEmpty()) return null;
+		StringBuilder sb = new StringBuilder();
+		for (String glob : globs) {
+			if (sb.length() > 0) sb.append('|');
+			for (String part : glob.split("(?=[*?])|(?<=[*?])", -1)) {
+				if ("*".equals(part)) sb.append(".*");
+				else if ("?".equals(part)) sb.append('.');
+				else if (!part.isEmpty()) sb.append(Pattern.quote(part));
+			}
+		}
+		return Pattern.compile(sb.toString(), Pattern.DOTALL);
+	}
+	
+	/** Called with {@code pendingChanges} locked. */
+	protected ScheduledThreadPoolExecutor debounceTimer() {
+		if (debounceTimer == null) {
+			debounceTimer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "Config Debounce " + hostname);
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			debounceTimer.setRemoveOnCancelPolicy(true);
+		}
+		return debounceTimer;
+	}
+	
+	protected void applyChange(String key, final PendingChange change) {
+		try {
+			// on workers, as reading may be slow and many files may change at once
+			dispatchApply(key, new Runnable() {
+				@Override
+				public void run() {
+					if (change.delete) {
+						syncedFiles.remove(change.dir + change.file);
+						appliedFingerprints.remove(change.file);
+						appliedChecksums.remove(change.file);
+						handleConfigDeleted(change.file);
+					} else {
+						reloadConfig(change.fa, change.dir, change.file);
+					}
+				}
+			});
+		} catch (InterruptedException ie) {
+			// stopped listening
+		}
+	}
+	
+	/**
+	 * Dispatches application of a file on its path, counted in {@link #applying} until it's done, so the file isn't
+	 * taken as renamed meanwhile.
+	 */
+	protected void dispatchApply(final String path, final Runnable apply) throws InterruptedException {
+		synchronized (pendingChanges) {
+			Integer n = applying.get(path);
+			applying.put(path, n == null ? 1 : n + 1);
+		}
+		boolean dispatched = false;
+		try {
+			dispatched = getDispatcher().dispatch(path, new Runnable() {
+				@Override
+				public void run() {
 					try {
-						is = fa.readFile(configFilepath);
-						jsonString = ServiceConfig.readUtfStringFromStream(is);
-					} catch (IOException e) {
-						handleConfigError(configFilepath, e);
-						continue;
+						apply.run();
 					} finally {
-						if (is != null) try {
-							is.close();
-						} catch (IOException ioe) { }
+						applied(path);
 					}
-					handleConfigData(file, new JSONObject(jsonString));
-				} else if ("DELETE".equals(action)) {
-					handleConfigDeleted(file);
-				} else {
-					// TODO: handle RENAME_FROM and RENAME_TO actions, and drop other actions
 				}
-			}
+			});
+		} finally {
+			if (!dispatched) applied(path);
 		}
-	};
+	}
+	
+	protected void applied(String path) {
+		synchronized (pendingChanges) {
+			Integer n = applying.remove(path);
+			if (n != null && n > 1) applying.put(path, n - 1);
+		}
+	}
+	
+	@Override
+	public void stopListen() {
+		super.stopListen();
+		synchronized (pendingChanges) {
+			for (PendingChange p : pendingChanges.values()) p.timer.cancel(false);
+			pendingChanges.clear();
+			for (PendingMove m : pendingMoves.values()) m.timer.cancel(false);
+			pendingMoves.clear();
+			lastMoves.clear();
+			if (debounceTimer != null) debounceTimer.shutdown();
+			debounceTimer = null;
+		}
+	}
+	
+	/** @return count of events collapsed into another event of the same file */
+	public long getCoalescedEvents() {
+		return coalescedEvents.get();
+	}
+	
+	/** Fingerprints of last successfully applied content, by config file name. */
+	protected transient final ConcurrentMap<String, ContentFingerprint> appliedFingerprints = new ConcurrentHashMap<String, ContentFingerprint>();
+	// MD5 of last applied content, by config file name; kept only if checksums are verified
+	protected transient final ConcurrentMap<String, String> appliedChecksums = new ConcurrentHashMap<String, String>();
+	protected transient final AtomicLong dedupedReloads = new AtomicLong();
+	protected transient final AtomicLong appliedReloads = new AtomicLong();
 	
 	protected ServiceMain main;
 	
@@ -65,20 +396,204 @@ public class RemoteConfigHandler extends RemoteFileAccess {
 	}
 	
 	public RemoteConfigHandler setMain(ServiceMain m) {
-		if (m != null) {
-			main = m;
-		} else try {
-			sshClient.close();
-		} catch (IOException ioe) {
-			log.error("failed to close ssh connection", ioe);
-		}
+		if (m != null) main = m;
+		else stopListen();
 		return this;
 	}
 
+	/** @return count of reloads dropped because file content was the same as last applied one */
+	public long getDedupedReloads() {
+		return dedupedReloads.get();
+	}
+	
+	/** @return count of reloads which content was parsed and applied */
+	public long getAppliedReloads() {
+		return appliedReloads.get();
+	}
+	
+	/**
+	 * Reads config file and applies it, unless its content is the same as last applied one: inotify reports single
+	 * save with several events, and every one would cost parsing and diffing otherwise.
+	 * <p>
+	 * In {@link #sftp} mode the file is stat-ed first, which is a single request on the open channel, and read with a
+	 * single ranged read of its size; its version is synced once applied, so resync skips it. The file is read even if
+	 * its version is the synced one, as SFTP times have a second resolution, so a rewrite of the same size within
+	 * a second has the same version.
+	 */
+	protected void reloadConfig(FileAccess fa, String dir, String file) {
+		String configFilepath = dir + file;
+		FileInfo version = null;
+		byte[] data;
+		try {
+			if (sftp) version = stat(Collections.singleton(configFilepath)).get(configFilepath);
+			data = version != null ? readBytes(version) : readBytes(configFilepath);
+		} catch (IOException e) {
+			handleConfigError(configFilepath, e);
+			return;
+		}
+		// changed after the last sync, so it's fetched by the next one unless its version is known
+		syncedFiles.remove(configFilepath);
+		if (applyContent(dir, file, data) && version != null) syncedFiles.put(configFilepath, version);
+	}
+	
+	/** @return false if content failed to parse */
+	protected boolean applyContent(String dir, String file, byte[] data) {
+		String configFilepath = dir + file;
+		ContentFingerprint fingerprint = ContentFingerprint.of(data, 0, data.length);
+		if (fingerprint.equals(appliedFingerprints.get(file))) {
+			appliedChecksum(file, data);
+			dedupedReloads.incrementAndGet();
+			log.verbose("config file is not changed, skipping: " + configFilepath);
+			return true;
+		}
+		JSONObject json;
+		try {
+			// tree is still built: it's needed to diff against previously applied config
+			json = (JSONObject) new JSONStreamBinder(new ByteArrayInputStream(data)).readValue();
+		} catch (IOException | ClassCastException e) {
+			handleConfigError(configFilepath, e);
+			return false;
+		}
+		handleConfigData(file, json);
+		// remembered only once applied, so failed config is retried even if file is not changed
+		appliedFingerprints.put(file, fingerprint);
+		appliedChecksum(file, data);
+		appliedReloads.incrementAndGet();
+		return true;
+	}
+	
+	protected void appliedChecksum(String file, byte[] data) {
+		if (verifyChecksums) appliedChecksums.put(file, checksum(data, 0, data.length));
+		else appliedChecksums.remove(file);
+	}
+	
+	/** Dispatch key of resyncs, so they run one at a time. */
+	protected static final String RESYNC_KEY = "\0resync";
+	
+	/** Metadata of files as of the last sync, by path. */
+	protected transient final ConcurrentMap<String, FileInfo> syncedFiles = new ConcurrentHashMap<String, FileInfo>();
+	
+	/** Files changed while not watched, i.e. before start or while connection was down, are loaded by resync. */
+	@Override
+	protected void watchesEstablished(final Collection<String> dirs) {
+		try {
+			getDispatcher().dispatch(RESYNC_KEY, new Runnable() {
+				@Override
+				public void run() {
+					resync(dirs);
+				}
+			});
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Applies changes made since the last sync: directories are listed with a single command and compared to
+	 * {@link #syncedFiles}, changed files are fetched in bulk and applied on workers in parallel.
+	 */
+	protected void resync(Collection<String> dirs) {
+		long start = System.nanoTime();
+		List<FileInfo> listing;
+		try {
+			listing = listFiles(dirs);
+		} catch (IOException e) {
+			log.error("failed to list " + dirs, e);
+			return;
+		}
+		final Map<String, FileInfo> changed = new HashMap<String, FileInfo>();
+		Set<String> present = new HashSet<String>();
+		Map<String, FileInfo> verified = new HashMap<String, FileInfo>();
+		for (FileInfo f : listing) {
+			if (isIgnored(f.name)) continue;
+			present.add(f.getPath());
+			if (f.isSameVersion(syncedFiles.get(f.getPath()))) continue;
+			if (f.size > maxFileSize) {
+				log.warn("config file is larger than " + maxFileSize + " bytes, skipping: " + f.getPath());
+				continue;
+			}
+			if (verifyChecksums && appliedChecksums.containsKey(f.name)) verified.put(f.getPath(), f);
+			changed.put(f.getPath(), f);
+		}
+		int unchanged = 0;
+		if (!verified.isEmpty()) try {
+			for (Map.Entry<String, String> e : checksums(verified.keySet()).entrySet()) {
+				FileInfo f = verified.get(e.getKey());
+				if (f == null || !e.getValue().equals(appliedChecksums.get(f.name))) continue;
+				changed.remove(f.getPath());
+				syncedFiles.put(f.getPath(), f);
+				unchanged ++;
+			}
+		} catch (IOException e) {
+			log.warn("failed to verify checksums of " + dirs + ", fetching files: " + e);
+		}
+		// deleted while not watched
+		for (FileInfo f : syncedFiles.values()) {
+			if (present.contains(f.getPath()) || !isInDirs(f, dirs)) continue;
+			syncedFiles.remove(f.getPath(), f);
+			changed(this, f.dir, f.name, true, true);
+		}
+		try {
+			readFiles(changed.keySet(), new ContentHandler() {
+				@Override
+				public void handleContent(String path, final byte[] content) {
+					final FileInfo f = changed.get(path);
+					if (f == null) return;
+					try {
+						dispatchApply(path, new Runnable() {
+							@Override
+							public void run() {
+								applyContent(f.dir, f.name, content);
+								syncedFiles.put(f.getPath(), f);
+							}
+						});
+					} catch (InterruptedException ie) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			});
+		} catch (IOException e) {
+			log.error("failed to fetch changed files of " + dirs, e);
+		}
+		log.info("synchronized " + dirs + ": " + listing.size() + " files, " + changed.size() + " changed, " + unchanged
+				+ " verified unchanged, listed and fetched in "
+				+ TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+	}
+	
+	protected static boolean isInDirs(FileInfo f, Collection<String> dirs) {
+		for (String d : dirs) {
+			String prefix = d.endsWith("/") ? d : d + "/";
+			if (f.dir.startsWith(prefix)) return true;
+		}
+		return false;
+	}
+	
 	protected void handleConfigData(String filepath, JSONObject object) {
 		InstanceConfig ic = main.instanceMap.get(filepath);
-		if (ic == null) main.instanceMap.put(filepath, ic = new InstanceConfig());
-		ReflectiveConfig.getInstance().applyConfig(ic, object);
+		if (ic == null) {
+			InstanceConfig prev = main.instanceMap.putIfAbsent(filepath, ic = new InstanceConfig());
+			if (prev != null) ic = prev;
+		}
+		ReflectiveConfig.getInstance().applyConfigChanges(ic, object);
+	}
+	
+	/**
+	 * Re-keys applied config, without reading it again.
+	 * @return false if there is no config applied from the old file
+	 */
+	protected boolean handleConfigRenamed(String oldFilepath, String filepath) {
+		if (oldFilepath.equals(filepath)) return true;
+		InstanceConfig ic = main.instanceMap.get(oldFilepath);
+		ContentFingerprint fingerprint = appliedFingerprints.get(oldFilepath);
+		if (ic == null || fingerprint == null) return false;
+		// overwritten config is gone
+		if (main.instanceMap.containsKey(filepath)) handleConfigDeleted(filepath);
+		main.instanceMap.put(filepath, ic);
+		main.instanceMap.remove(oldFilepath, ic);
+		appliedFingerprints.put(filepath, fingerprint);
+		appliedFingerprints.remove(oldFilepath, fingerprint);
+		log.info("config file renamed: " + oldFilepath + " -> " + filepath);
+		return true;
 	}
 	
 	protected void handleConfigDeleted(String filepath) {
@@ -9,6 +9,7 @@ import java.io.InputStreamReader;
 import org.json.JSONObject;
 
 import net.semplar.log.Logger;
+import net.xcordio.vmmanagerservice.util.JSONStreamBinder;
 
 public class ServiceConfig {
 	
@@ -19,7 +20,7 @@ public class ServiceConfig {
 		if (configFile == null) throw new IOException("configuration file not found");
 		log.info("using config: " + configFile);
 		FileInputStream fin = new FileInputStream(configFile);
-		JSONObject configJson = new JSONObject(ServiceConfig.readUtfStringFromStream(fin));
+		JSONObject configJson = (JSONObject) new JSONStreamBinder(fin).readValue();
 		fin.close(); // TODO: add try-catch
 		return configJson;
 	}
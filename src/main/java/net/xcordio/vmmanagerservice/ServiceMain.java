@@ -5,6 +5,8 @@ import java.math.BigDecimal;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import net.semplar.log.Logger;
 import net.xcordio.vmmanagerservice.model.InstanceConfig;
@@ -24,6 +26,7 @@ import net.xcordio.vmmanagerservice.vps.linode.LinodeProvider;
  * Whole class is configured with use of {@link ReflectiveConfig} from a single JSON file.
  */
 @SuppressWarnings("unused")
+@ReflectiveConfig.Configurable
 public class ServiceMain {
 	
 	private static Logger log = Logger.getc();
@@ -50,7 +53,7 @@ public class ServiceMain {
 	 * @throws IOException when any I/O exception occurs */
 	public void reconfigure() throws IOException {
 		log.info("reconfiguring service...");
-		ReflectiveConfig.getInstance().applyConfig(this, ServiceConfig.loadConfig());
+		ReflectiveConfig.getInstance().applyConfigChanges(this, ServiceConfig.loadConfig());
 	}
 	
 	@ReflectiveConfig.KeepInstance
@@ -61,6 +64,12 @@ public class ServiceMain {
 		for (RemoteConfigHandler ll : vmconfigs) ll.setMain(null);
 		for (RemoteConfigHandler ll : l) ll.setMain(this);
 	}
+	/** Binds config handler type to handler classes: "ssh" (default) or "local". Is called reflectively. */
+	public RemoteConfigHandler allocRemoteConfigHandler(String type) throws IOException {
+		if (type == null || "ssh".equals(type)) return new RemoteConfigHandler();
+		if ("local".equals(type)) return new LocalConfigHandler();
+		throw new IllegalArgumentException("unsupported config handler type: " + type);
+	}
 	
 	/** This is a single service-wide reporter. */
 	public transient final StatusReporter.Multi reporter = new StatusReporter.Multi();
@@ -75,7 +84,8 @@ public class ServiceMain {
 		throw new IllegalArgumentException("unsupported status reporter fullType: " + type);
 	}
 	
-	public transient Map<String, InstanceConfig> instanceMap = new HashMap<String, InstanceConfig>();
+	/** Filled in by listener threads of every {@link RemoteConfigHandler} concurrently. */
+	public transient ConcurrentMap<String, InstanceConfig> instanceMap = new ConcurrentHashMap<String, InstanceConfig>();
 	
 	@ReflectiveConfig.KeepInstance
 	public List<VPSProvider> vmproviders;
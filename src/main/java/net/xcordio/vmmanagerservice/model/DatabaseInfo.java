@@ -1,8 +1,11 @@
 package net.xcordio.vmmanagerservice.model;
 
+import net.xcordio.vmmanagerservice.util.ReflectiveConfig;
+
 /**
  * Created by semplar on 9/9/16.
  */
+@ReflectiveConfig.Configurable
 public class DatabaseInfo {
 	
 	public String provider;
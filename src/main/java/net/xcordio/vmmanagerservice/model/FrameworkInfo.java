@@ -1,10 +1,12 @@
 package net.xcordio.vmmanagerservice.model;
 
 import java.util.List;
+import net.xcordio.vmmanagerservice.util.ReflectiveConfig;
 
 /**
  * Created by semplar on 9/9/16.
  */
+@ReflectiveConfig.Configurable
 public class FrameworkInfo {
 	
 	public String name;
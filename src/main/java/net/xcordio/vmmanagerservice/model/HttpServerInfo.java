@@ -1,7 +1,10 @@
 package net.xcordio.vmmanagerservice.model;
 
+import net.xcordio.vmmanagerservice.util.ReflectiveConfig;
+
 /**
  * Created by semplar on 9/9/16.
  */
+@ReflectiveConfig.Configurable
 public class HttpServerInfo {
 }
@@ -1,7 +1,9 @@
 package net.xcordio.vmmanagerservice.model;
 
 import java.util.List;
+import net.xcordio.vmmanagerservice.util.ReflectiveConfig;
 
+@ReflectiveConfig.Configurable
 public class InstallationInfo {
 	
 	public HttpServerInfo server;
@@ -2,6 +2,7 @@ package net.xcordio.vmmanagerservice.model;
 
 import net.xcordio.vmmanagerservice.util.ReflectiveConfig;
 
+@ReflectiveConfig.Configurable
 public class InstanceConfig {
 	
 	@ReflectiveConfig.KeepInstance
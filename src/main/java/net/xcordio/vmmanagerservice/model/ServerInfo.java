@@ -1,9 +1,11 @@
 package net.xcordio.vmmanagerservice.model;
 
 import net.xcordio.vmmanagerservice.ServiceMain;
+import net.xcordio.vmmanagerservice.util.ReflectiveConfig;
 import net.xcordio.vmmanagerservice.vps.VPSProvider;
 import net.xcordio.vmmanagerservice.vps.linode.LinodeProvider;
 
+@ReflectiveConfig.Configurable
 public class ServerInfo {
 	
 	public LoginInfo login;
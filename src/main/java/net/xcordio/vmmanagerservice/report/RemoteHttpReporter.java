@@ -7,7 +7,9 @@ import java.net.URL;
 import java.util.Map;
 
 import net.semplar.log.Logger;
+import net.xcordio.vmmanagerservice.util.ReflectiveConfig;
 
+@ReflectiveConfig.Configurable
 public class RemoteHttpReporter implements StatusReporter {
 	
 	private static Logger log = Logger.getc();
@@ -0,0 +1,221 @@
+package net.xcordio.vmmanagerservice.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Admits requests by a token bucket and a concurrency limit, both adjusted AIMD-style by outcomes of requests: every
+ * throttled request halves the rate and the limit, and every request completed with healthy latency while requests
+ * were held back adds about one request per second to the rate, and one to the limit per limit of such requests.
+ * Latency is healthy while it's within {@link #latencyTolerance} times the lowest latency seen lately.
+ * <p>
+ * Requests are admitted asynchronously: tasks waiting for a token or a free slot are queued, and run by the thread
+ * releasing a slot or by a timer once tokens are refilled. Every admitted task is to {@link #release} its slot once.
+ * Once the limiter is {@link #close closed}, queued and newly submitted tasks are rejected instead.
+ * @author xcordio
+ */
+public class AdaptiveRateLimiter {
+	
+	public enum Outcome {
+		SUCCESS,
+		/** Rejected by the server because of rate: slows down. */
+		THROTTLED,
+		/** Failed otherwise: leaves rate as is. */
+		FAILED;
+	}
+	
+	/** Task waiting for admission, which is told if it's never admitted. */
+	public interface Task extends Runnable {
+		
+		/** Called instead of {@link #run} once the limiter is closed before the task is admitted. */
+		void rejected(RejectedExecutionException e);
+	}
+	
+	public final String name;
+	public final double minRate;
+	public final double maxRate;
+	public final int burst;
+	public final int maxConcurrency;
+	public volatile double latencyTolerance = 3;
+	// synchronized on {@code this}
+	protected double rate;
+	protected double tokens;
+	protected long refilledNanos = System.nanoTime();
+	protected double limit;
+	protected int inFlight;
+	protected final Queue<Task> queue = new ArrayDeque<Task>();
+	protected boolean held; // some task waited since last increase
+	protected long minLatencyNanos = Long.MAX_VALUE;
+	protected long decreasedNanos = System.nanoTime();
+	protected long throttled;
+	protected ScheduledThreadPoolExecutor timer;
+	protected ScheduledFuture<?> wakeup;
+	protected boolean closed;
+	
+	/**
+	 * @param rate initial rate, in requests per second
+	 * @param burst count of requests admitted at once after being idle
+	 */
+	public AdaptiveRateLimiter(String name, double rate, double maxRate, int burst, int maxConcurrency) {
+		if (rate <= 0 || maxRate < rate) throw new IllegalArgumentException("invalid rate " + rate + " of max " + maxRate);
+		if (burst < 1 || maxConcurrency < 1) throw new IllegalArgumentException("burst and concurrency must be positive");
+		this.name = name;
+		this.minRate = Math.min(rate, 0.1);
+		this.maxRate = maxRate;
+		this.burst = burst;
+		this.maxConcurrency = maxConcurrency;
+		this.rate = rate;
+		this.tokens = burst;
+		this.limit = Math.max(1, maxConcurrency / 2);
+	}
+	
+	/**
+	 * Runs given task once it's admitted; the task is to {@link #release} its slot once it completes. If the limiter is
+	 * closed, the task is rejected at once.
+	 */
+	public void submit(Task task) {
+		synchronized (this) {
+			if (!closed) {
+				queue.add(task);
+				task = null;
+			}
+		}
+		if (task != null) task.rejected(new RejectedExecutionException(name + " rate limiter is closed"));
+		else drain();
+	}
+	
+	/**
+	 * Frees slot of an admitted task, and adjusts rate and concurrency by its outcome.
+	 * @param sentNanos {@link System#nanoTime()} the request was sent at
+	 */
+	public void release(Outcome outcome, long sentNanos) {
+		long now = System.nanoTime();
+		synchronized (this) {
+			inFlight --;
+			if (outcome == Outcome.THROTTLED) {
+				throttled ++;
+				// requests sent before last decrease saw the old rate already
+				if (sentNanos - decreasedNanos >= 0) {
+					decreasedNanos = now;
+					rate = Math.max(minRate, rate / 2);
+					limit = Math.max(1, limit / 2);
+					tokens = Math.min(tokens, 0);
+					held = false;
+				}
+			} else if (outcome == Outcome.SUCCESS) {
+				long latency = now - sentNanos;
+				if (latency < minLatencyNanos) minLatencyNanos = latency;
+				else minLatencyNanos += (latency - minLatencyNanos) >> 8; // forgets slowly, as network changes
+				if (held && latency <= minLatencyNanos * latencyTolerance) {
+					rate = Math.min(maxRate, rate + 1 / rate);
+					limit = Math.min(maxConcurrency, limit + 1 / limit);
+					held = !queue.isEmpty();
+				}
+			}
+		}
+		drain();
+	}
+	
+	protected void drain() {
+		List<Runnable> admitted = new ArrayList<Runnable>();
+		synchronized (this) {
+			if (closed) return;
+			refill();
+			while (!queue.isEmpty() && inFlight < (int) limit && tokens >= 1) {
+				tokens -= 1;
+				inFlight ++;
+				admitted.add(queue.poll());
+			}
+			if (!queue.isEmpty()) {
+				held = true;
+				// slots are freed by release(), tokens only by time
+				if (tokens < 1 && inFlight < (int) limit && wakeup == null) {
+					long delay = (long) Math.ceil((1 - tokens) / rate * 1e9);
+					wakeup = timer().schedule(new Runnable() {
+						@Override
+						public void run() {
+							synchronized (AdaptiveRateLimiter.this) {
+								wakeup = null;
+							}
+							drain();
+						}
+					}, delay, TimeUnit.NANOSECONDS);
+				}
+			}
+		}
+		for (Runnable r : admitted) SettableFuture.runListener(r);
+	}
+	
+	protected void refill() {
+		long now = System.nanoTime();
+		tokens = Math.min(burst, tokens + (now - refilledNanos) / 1e9 * rate);
+		refilledNanos = now;
+	}
+	
+	protected synchronized ScheduledThreadPoolExecutor timer() {
+		if (timer == null) {
+			timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, name + " Rate Limiter");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			timer.setRemoveOnCancelPolicy(true);
+		}
+		return timer;
+	}
+	
+	/** @return current rate, in requests per second */
+	public synchronized double getRate() {
+		return rate;
+	}
+	
+	public synchronized int getConcurrencyLimit() {
+		return (int) limit;
+	}
+	
+	public synchronized int getInFlight() {
+		return inFlight;
+	}
+	
+	public synchronized int getQueued() {
+		return queue.size();
+	}
+	
+	/** @return count of throttled requests so far */
+	public synchronized long getThrottled() {
+		return throttled;
+	}
+	
+	/** Stops the timer and rejects queued tasks; tasks submitted later are rejected too. */
+	public void close() {
+		List<Task> rejected;
+		synchronized (this) {
+			if (closed) return;
+			closed = true;
+			if (timer != null) timer.shutdownNow();
+			timer = null;
+			wakeup = null;
+			rejected = new ArrayList<Task>(queue);
+			queue.clear();
+		}
+		RejectedExecutionException e = new RejectedExecutionException(name + " rate limiter is closed");
+		for (Task task : rejected) task.rejected(e);
+	}
+	
+	@Override
+	public synchronized String toString() {
+		return String.format(Locale.ROOT, "%s: %.1f req/s, %d of %d in flight, %d queued, %d throttled", name, rate,
+				inFlight, (int) limit, queue.size(), throttled);
+	}
+}
@@ -0,0 +1,163 @@
+package net.xcordio.vmmanagerservice.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs HTTP GET requests asynchronously, at most {@link #maxInFlightPerHost} at a time per host; other requests of
+ * the host wait in its queue, without holding back requests to other hosts.
+ * <p>
+ * Connections are kept alive and reused by {@link HttpURLConnection}'s own cache: responses are read to the end and
+ * closed, and connections are never disconnected. The cache keeps up to <code>http.maxConnections</code> idle
+ * connections per destination, 5 by default, so limit per host above that makes some connections short-lived.
+ * @author xcordio
+ */
+public class AsyncHttpClient {
+	
+	/** Reads response body; the stream is drained and closed after it returns, so the connection can be reused. */
+	public interface ResponseHandler<T> {
+		/** @param sentNanos {@link System#nanoTime()} the request was sent at, i.e. after waiting in the queue */
+		T handleResponse(InputStream is, long sentNanos) throws IOException;
+	}
+	
+	/** Response with error status, e.g. 429 or 503 of servers asking to slow down. */
+	public static class StatusException extends IOException {
+		
+		private static final long serialVersionUID = -3087413960381256171L;
+		
+		public final int status;
+		
+		public StatusException(int status, IOException cause) {
+			super (cause.getMessage(), cause);
+			this.status = status;
+		}
+	}
+	
+	public final String name;
+	public final int maxInFlightPerHost;
+	/** Timeouts of connecting and reading, in milliseconds; zero means no timeout. */
+	public volatile int connectTimeoutMillis = 30000;
+	public volatile int readTimeoutMillis = 120000;
+	/** Headers added to every request. */
+	protected final Map<String, String> requestProperties = new LinkedHashMap<String, String>();
+	// synchronized on {@code this}
+	protected final Map<String, ThreadPoolExecutor> hosts = new HashMap<String, ThreadPoolExecutor>();
+	protected boolean shutdown;
+	
+	public AsyncHttpClient(String name, int maxInFlightPerHost) {
+		if (maxInFlightPerHost < 1) throw new IllegalArgumentException("in-flight limit must be positive: " + maxInFlightPerHost);
+		this.name = name;
+		this.maxInFlightPerHost = maxInFlightPerHost;
+	}
+	
+	public synchronized AsyncHttpClient setRequestProperty(String key, String value) {
+		requestProperties.put(key, value);
+		return this;
+	}
+	
+	/** @return response of given URL handled by given handler, once it's received */
+	public <T> SettableFuture<T> get(final URL url, final ResponseHandler<T> handler) {
+		final SettableFuture<T> result = new SettableFuture<T>();
+		executor(url).execute(new Runnable() {
+			@Override
+			public void run() {
+				if (result.isDone()) return; // cancelled while queued
+				try {
+					result.set(doGet(url, handler));
+				} catch (IOException | RuntimeException e) {
+					result.setException(e);
+				}
+			}
+		});
+		return result;
+	}
+	
+	protected <T> T doGet(URL url, ResponseHandler<T> handler) throws IOException {
+		long sent = System.nanoTime();
+		HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+		conn.setConnectTimeout(connectTimeoutMillis);
+		conn.setReadTimeout(readTimeoutMillis);
+		conn.setRequestMethod("GET");
+		synchronized (this) {
+			for (Map.Entry<String, String> e : requestProperties.entrySet()) conn.setRequestProperty(e.getKey(), e.getValue());
+		}
+		InputStream is;
+		try {
+			is = conn.getInputStream();
+		} catch (IOException ioe) {
+			int status = -1;
+			try {
+				status = conn.getResponseCode();
+			} catch (IOException e) { }
+			// error body is to be consumed too, otherwise the connection is dropped
+			drainQuietly(conn.getErrorStream());
+			if (status >= 400) throw new StatusException(status, ioe);
+			throw ioe;
+		}
+		try {
+			T result = handler.handleResponse(is, sent);
+			drain(is);
+			return result;
+		} finally {
+			is.close();
+		}
+	}
+	
+	protected static void drain(InputStream is) throws IOException {
+		byte[] buf = new byte[4096];
+		while (is.read(buf) != -1) ;
+	}
+	
+	protected static void drainQuietly(InputStream is) {
+		if (is == null) return;
+		try {
+			drain(is);
+			is.close();
+		} catch (IOException ioe) { }
+	}
+	
+	protected synchronized ThreadPoolExecutor executor(URL url) {
+		if (shutdown) throw new IllegalStateException(name + " http client is shut down");
+		final String host = url.getProtocol() + "://" + url.getHost() + ":" + (url.getPort() >= 0 ? url.getPort() : url.getDefaultPort());
+		ThreadPoolExecutor e = hosts.get(host);
+		if (e == null) {
+			final AtomicInteger counter = new AtomicInteger(1);
+			e = new ThreadPoolExecutor(maxInFlightPerHost, maxInFlightPerHost, 60, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, name + " HTTP " + host + " #" + counter.getAndIncrement());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			e.allowCoreThreadTimeOut(true);
+			hosts.put(host, e);
+		}
+		return e;
+	}
+	
+	/** @return count of requests sent or waiting to be sent */
+	public synchronized int getPending() {
+		int pending = 0;
+		for (ThreadPoolExecutor e : hosts.values()) pending += e.getActiveCount() + e.getQueue().size();
+		return pending;
+	}
+	
+	/** Requests already submitted are still completed. */
+	public synchronized void shutdown() {
+		shutdown = true;
+		for (ThreadPoolExecutor e : hosts.values()) e.shutdown();
+		hosts.clear();
+	}
+}
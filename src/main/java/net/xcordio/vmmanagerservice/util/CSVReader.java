@@ -7,16 +7,37 @@ import java.util.List;
 
 /**
  * Reads CSV data line-by-line from given {@link Reader}.
+ * <p>
+ * Input is read in blocks into a window, and fields are passed to {@link RowHandler} as slices of it, or of a reused
+ * buffer if field spans blocks or has escaped quotes; so no objects are created per field unless the handler does.
+ * {@link #nextCsv()} is a convenience returning fields as strings.
  * @author xcordio
  */
 public class CSVReader {
 	
+	/** Receives fields of a row; passed chars are valid only during the call. */
+	public interface RowHandler {
+		void handleField(int index, char[] chars, int offset, int length);
+	}
+	
 	public final Reader reader;
 	protected boolean crLFskipped = true;
+	// window of input: chars from pos to limit are not parsed yet
+	protected final char[] buf;
+	protected int pos;
+	protected int limit;
+	// field being built, when it can't be passed as slice of the window
+	protected char[] field = new char[128];
+	protected int fieldLength;
 	
 	public CSVReader(Reader reader) {
+		this(reader, 8192);
+	}
+	
+	public CSVReader(Reader reader, int bufferSize) {
 		if (reader == null) throw new NullPointerException();
 		this.reader = reader;
+		this.buf = new char[bufferSize];
 	}
 	
 	public static final int FIRSTCHAR = 0;
@@ -25,85 +46,146 @@ public class CSVReader {
 	public static final int CLOSED_QUOTE = 3;
 	
 	public List<String> nextCsv() throws IOException {
-		List<String> values = new ArrayList<String>();
-		StringBuilder bd = new StringBuilder();
+		final List<String> values = new ArrayList<String>();
+		int count = nextRow(new RowHandler() {
+			@Override
+			public void handleField(int index, char[] chars, int offset, int length) {
+				values.add(new String(chars, offset, length));
+			}
+		});
+		return count < 0 ? null : values;
+	}
+	
+	/**
+	 * Parses next line, passing its fields to the handler.
+	 * @return count of fields in the line, 0 for empty line, or -1 at the end of input
+	 */
+	public int nextRow(RowHandler handler) throws IOException {
+		int index = 0;
+		fieldLength = 0;
 		/* 0 - expecting value (quoted or not)
 		 * 1 - no-quote parsing (expecting chars or comma)
 		 * 2 - opened quote
 		 * 3 - closed quote (expecting comma or quote again) */
 		int state = FIRSTCHAR;
 		for (;;) {
-			int r = reader.read();
-			if (r < 0) {
-				if (bd.length() > 0 || values.size() > 0) {
-					values.add(bd.toString());
-				}
-				return values.isEmpty() ? null : values;
+			if (pos >= limit && !fill()) {
+				// input ended: the last value is there, if anything of the line was read
+				if (fieldLength > 0 || index > 0 || state == UNUQOTED) emitField(handler, index ++);
+				return index > 0 ? index : -1;
 			}
-			//
 			switch (state) {
-			case FIRSTCHAR: // for first character of value only, may be quote or not
+			case FIRSTCHAR: { // for first character of value only, may be quote or not
+				char r = buf[pos];
 				// we skip line all line breaks for previous CSV line
 				if (r == '\r' || r == '\n') {
+					pos ++;
 					if (!crLFskipped) {
 						if (r == '\n') crLFskipped = true;
 						continue;
 					}
 					// end of line w/o any values
-					if (bd.length() > 0 || values.size() > 0) {
-						values.add(bd.toString());
-					}
+					if (index > 0) emitField(handler, index ++);
 					crLFskipped = r == '\n';
-					return values;
+					return index;
 				}
 				// checking if value is quoted
 				if (r == '\"') {
+					pos ++;
 					state = QUOTED;
 					continue;
 				}
 				// checking for comma at first char
-				if (r == ',') break;
+				if (r == ',') {
+					pos ++;
+					emitField(handler, index ++);
+					continue;
+				}
 				// nothing like that: then we have unquoted value
 				state = UNUQOTED;
-				bd.append((char) r);
 				continue;
-			case UNUQOTED: // for other that first character, and first char wasn't quote
-				// end of quote
-				if (r == ',') break;
-				if (r == '\r' || r == '\n') {
-					values.add(bd.toString());
-					crLFskipped = r == '\n';
-					return values;
+			}
+			case UNUQOTED: { // scanning up to comma or line break
+				int start = pos;
+				char r = 0;
+				while (pos < limit && (r = buf[pos]) != ',' && r != '\r' && r != '\n') pos ++;
+				if (pos == limit) {
+					// value continues in the next block
+					appendField(buf, start, pos - start);
+					continue;
 				}
-				bd.append((char) r);
-				continue;
-			case QUOTED: // for other than first character, when "inside quotes"
-				if (r == '\"') {
-					state = CLOSED_QUOTE;
+				pos ++;
+				if (fieldLength == 0) handler.handleField(index ++, buf, start, pos - 1 - start);
+				else {
+					appendField(buf, start, pos - 1 - start);
+					emitField(handler, index ++);
+				}
+				if (r == ',') {
+					state = FIRSTCHAR;
 					continue;
 				}
+				crLFskipped = r == '\n';
+				return index;
+			}
+			case QUOTED: { // for other than first character, when "inside quotes"
+				int start = pos;
+				while (pos < limit && buf[pos] != '\"') pos ++;
 				// not touching \r nor \n here: they're part of value
-				else bd.append((char) r);
+				appendField(buf, start, pos - start);
+				if (pos < limit) {
+					pos ++;
+					state = CLOSED_QUOTE;
+				}
 				continue;
-			case CLOSED_QUOTE: // for other than first character, when "outside quotes"
+			}
+			case CLOSED_QUOTE: { // for other than first character, when "outside quotes"
+				char r = buf[pos ++];
 				if (r == '\"') {
-					bd.append('\"');
+					appendField(buf, pos - 1, 1);
 					state = QUOTED;
 					continue;
 				}
-				if (r == ',') break;
+				if (r == ',') {
+					emitField(handler, index ++);
+					state = FIRSTCHAR;
+					continue;
+				}
 				if (r == '\r' || r == '\n') {
-					values.add(bd.toString());
+					emitField(handler, index ++);
 					crLFskipped = r == '\n';
-					return values;
+					return index;
 				}
-				throw new IOException("corrupted csv format: one of '\"', ',', '\\r', '\\n' is expected after closed quote, but got character code " + r + " char: " + (char) r);
-			default: 
+				throw new IOException("corrupted csv format: one of '\"', ',', '\\r', '\\n' is expected after closed quote, but got character code " + (int) r + " char: " + r);
+			}
+			default:
 				throw new RuntimeException("assertion failed: unknown state");
 			}
-			values.add(bd.toString());
-			bd.setLength(0);
-			state = FIRSTCHAR;
 		}
 	}
+	
+	/** @return false at the end of input */
+	protected boolean fill() throws IOException {
+		for (;;) {
+			int n = reader.read(buf, 0, buf.length);
+			if (n < 0) return false;
+			pos = 0;
+			limit = n;
+			if (n > 0) return true;
+		}
+	}
+	
+	protected void appendField(char[] chars, int offset, int length) {
+		if (fieldLength + length > field.length) {
+			char[] grown = new char[Math.max(field.length * 2, fieldLength + length)];
+			System.arraycopy(field, 0, grown, 0, fieldLength);
+			field = grown;
+		}
+		System.arraycopy(chars, offset, field, fieldLength, length);
+		fieldLength += length;
+	}
+	
+	protected void emitField(RowHandler handler, int index) {
+		handler.handleField(index, field, 0, fieldLength);
+		fieldLength = 0;
+	}
 }
@@ -0,0 +1,24 @@
+package net.xcordio.vmmanagerservice.util;
+
+/**
+ * Binds configuration keys of a single class without reflection.
+ * <p>
+ * Implementations are generated at build time for classes annotated with {@link ReflectiveConfig.Configurable},
+ * named after bound class with '$' replaced by '_' and {@link #SUFFIX} appended, e.g.
+ * <code>InstanceConfig_ConfigBinder</code>. {@link ReflectiveConfig} uses them when present, and falls back to
+ * reflection otherwise.
+ * @author xcordio
+ */
+public interface ConfigBinder {
+	
+	String SUFFIX = "_ConfigBinder";
+	
+	/** @return class which keys are bound by this binder; subclasses have their own binders */
+	Class<?> boundClass();
+	
+	/**
+	 * @param key configuration key, case insensitive
+	 * @return binding of given key, or null if class has no field nor method for it
+	 */
+	KeyBinding bind(String key);
+}
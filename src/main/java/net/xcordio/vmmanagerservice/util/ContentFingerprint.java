@@ -0,0 +1,42 @@
+package net.xcordio.vmmanagerservice.util;
+
+import java.util.zip.CRC32;
+
+/**
+ * Cheap identity of file contents: size and CRC-32 of the bytes. Used to tell if a file really changed since it was
+ * last handled, without parsing it. Immutable.
+ * @author xcordio
+ */
+public final class ContentFingerprint {
+	
+	public final long size;
+	public final long crc;
+	
+	public ContentFingerprint(long size, long crc) {
+		this.size = size;
+		this.crc = crc;
+	}
+	
+	public static ContentFingerprint of(byte[] data, int offset, int length) {
+		CRC32 crc = new CRC32();
+		crc.update(data, offset, length);
+		return new ContentFingerprint(length, crc.getValue());
+	}
+	
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof ContentFingerprint)) return false;
+		ContentFingerprint f = (ContentFingerprint) o;
+		return size == f.size && crc == f.crc;
+	}
+	
+	@Override
+	public int hashCode() {
+		return (int) (crc ^ (size * 31));
+	}
+	
+	@Override
+	public String toString() {
+		return size + ":" + Long.toHexString(crc);
+	}
+}
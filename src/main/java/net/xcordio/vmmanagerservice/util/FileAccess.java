@@ -3,11 +3,13 @@ package net.xcordio.vmmanagerservice.util;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Collection;
 import java.util.List;
 
 /**
  * An abstract interface for basic access to local/remote/virtual filesystems.
- * Includes reading file, writing file, checking file for existence, and listening to filesystem events.
+ * Includes reading file, writing file, checking file for existence, listing directories, and listening to filesystem
+ * events.
  */
 public interface FileAccess {
 	
@@ -15,6 +17,20 @@ public interface FileAccess {
 		void handleEvents(FileAccess fa, String dir, List<String> actions, String file);
 	}
 	
+	/** Handler of events as bitmask of {@link FileEvent#mask}s. */
+	interface EventHandler {
+		/** @return mask of events to handle; events with none of them are not passed */
+		int getEventMask();
+		void handleEvents(FileAccess fa, String dir, int events, String file);
+	}
+	
+	interface ContentHandler {
+		void handleContent(String path, byte[] content);
+	}
+	
+	void listenTo(String dir, EventHandler handler);
+	void cancelListen(String dir, EventHandler handler);
+	/** Same as {@code listenTo(dir, FileEvent.adapt(handler))}. */
 	void listenTo(String dir, Handler handler);
 	void cancelListen(String dir, Handler handler);
 	void cancelListen(String dir);
@@ -23,4 +39,8 @@ public interface FileAccess {
 	OutputStream writeFile(String filename) throws IOException;
 	boolean isFile(String filename) throws IOException;
 	boolean isDir(String filename) throws IOException;
+	/** Lists regular files of given directories at once; missing directories are skipped. */
+	List<FileInfo> listFiles(Collection<String> dirs) throws IOException;
+	/** Reads given files in bulk; files which can't be read are skipped. */
+	void readFiles(Collection<String> paths, ContentHandler handler) throws IOException;
 }
@@ -0,0 +1,116 @@
+package net.xcordio.vmmanagerservice.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import net.xcordio.vmmanagerservice.util.FileAccess.EventHandler;
+import net.xcordio.vmmanagerservice.util.FileAccess.Handler;
+
+/**
+ * Filesystem events, named as reported by inotifywait. Sets of events are passed as int bitmasks of {@link #mask}s,
+ * so checking them costs a single bitwise AND, and decoding them allocates nothing.
+ * @author xcordio
+ */
+public enum FileEvent {
+	
+	ACCESS, MODIFY, ATTRIB, CLOSE_WRITE, CLOSE_NOWRITE, CLOSE, OPEN, MOVED_FROM, MOVED_TO, MOVE, MOVE_SELF, CREATE, DELETE,
+	DELETE_SELF, UNMOUNT, Q_OVERFLOW, IGNORED, ISDIR;
+	
+	public final int mask = 1 << ordinal();
+	
+	protected static final FileEvent[] values = values();
+	/** All events, i.e. every known action. */
+	public static final int ALL = (1 << values.length) - 1;
+	
+	/** @return mask of the event with given name, or 0 if it's unknown */
+	public static int maskOf(String name) {
+		return parseMask(name.toCharArray(), 0, name.length());
+	}
+	
+	/** @return mask of comma separated event names, unknown ones are skipped */
+	public static int parseMask(char[] chars, int offset, int length) {
+		int mask = 0;
+		int end = offset + length;
+		for (int start = offset; start < end; ) {
+			int comma = start;
+			while (comma < end && chars[comma] != ',') comma ++;
+			mask |= maskOfName(chars, start, comma - start);
+			start = comma + 1;
+		}
+		return mask;
+	}
+	
+	protected static int maskOfName(char[] chars, int offset, int length) {
+		value_search:
+		for (FileEvent e : values) {
+			String name = e.name();
+			if (name.length() != length) continue;
+			for (int i = 0; i < length; i ++)
+				if (name.charAt(i) != chars[offset + i]) continue value_search;
+			return e.mask;
+		}
+		return 0;
+	}
+	
+	public static EnumSet<FileEvent> toSet(int mask) {
+		EnumSet<FileEvent> set = EnumSet.noneOf(FileEvent.class);
+		for (FileEvent e : values)
+			if ((mask & e.mask) != 0) set.add(e);
+		return set;
+	}
+	
+	protected static final ConcurrentMap<Integer, List<String>> names = new ConcurrentHashMap<Integer, List<String>>();
+	
+	/** @return names of events, in the order of declaration; lists are cached, so they're immutable */
+	public static List<String> toNames(int mask) {
+		List<String> l = names.get(mask);
+		if (l == null) {
+			List<String> nl = new ArrayList<String>(Integer.bitCount(mask));
+			for (FileEvent e : values)
+				if ((mask & e.mask) != 0) nl.add(e.name());
+			l = Collections.unmodifiableList(nl);
+			List<String> prev = names.putIfAbsent(mask, l);
+			if (prev != null) l = prev;
+		}
+		return l;
+	}
+	
+	/** @return typed handler passing events to given one as list of names; adapters of the same handler are equal */
+	public static EventHandler adapt(Handler handler) {
+		return new HandlerAdapter(handler);
+	}
+	
+	protected static class HandlerAdapter implements EventHandler {
+		
+		protected final Handler handler;
+		
+		public HandlerAdapter(Handler handler) {
+			if (handler == null) throw new NullPointerException();
+			this.handler = handler;
+		}
+		
+		@Override
+		public int getEventMask() {
+			return ALL;
+		}
+		
+		@Override
+		public void handleEvents(FileAccess fa, String dir, int events, String file) {
+			handler.handleEvents(fa, dir, toNames(events), file);
+		}
+		
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof HandlerAdapter && ((HandlerAdapter) o).handler == handler;
+		}
+		
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(handler);
+		}
+	}
+}
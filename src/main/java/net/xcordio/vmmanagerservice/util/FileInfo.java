@@ -0,0 +1,35 @@
+package net.xcordio.vmmanagerservice.util;
+
+/**
+ * Metadata of a listed file. Directory is in the form events are reported with, i.e. with trailing slash, so
+ * {@code dir + name} is the path of the file. Immutable.
+ * @author xcordio
+ */
+public final class FileInfo {
+	
+	public final String dir;
+	public final String name;
+	public final long mtimeNanos;
+	public final long size;
+	
+	public FileInfo(String dir, String name, long mtimeNanos, long size) {
+		this.dir = dir;
+		this.name = name;
+		this.mtimeNanos = mtimeNanos;
+		this.size = size;
+	}
+	
+	public String getPath() {
+		return dir + name;
+	}
+	
+	/** @return true if file has the same modification time and size as given one */
+	public boolean isSameVersion(FileInfo f) {
+		return f != null && mtimeNanos == f.mtimeNanos && size == f.size;
+	}
+	
+	@Override
+	public String toString() {
+		return getPath() + " (" + size + " bytes)";
+	}
+}
@@ -0,0 +1,376 @@
+package net.xcordio.vmmanagerservice.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import net.semplar.log.Logger;
+import net.xcordio.vmmanagerservice.util.ReflectiveConfig.ReflectiveKeyInfo;
+
+/**
+ * Reads JSON tokens straight from a stream and applies them to objects following {@link ReflectiveConfig}
+ * conventions, with no intermediate {@link String} of the whole input and no {@link JSONObject} tree.
+ * <ul>
+ * <li>Dicts bound to plain class instances, and lists of such dicts, are streamed into the instances directly.</li>
+ * <li>Scalars are read as the type of the field or handler argument they're bound to, so e.g. a number
+ *   bound to {@link BigDecimal} field doesn't go through double, and 0/1 can be bound to boolean.</li>
+ * <li>Values which need allocator or converter methods, and maps, are read into a {@link JSONObject} or
+ *   {@link JSONArray} subtree and passed to {@link ReflectiveConfig} as is, so their handling doesn't differ.</li>
+ * </ul>
+ * Unlike {@link ReflectiveConfig#applyConfig}, elements of streamed lists are configured before the list is passed
+ * to pre- and on-change handlers. Not thread safe.
+ * @author xcordio
+ */
+public class JSONStreamBinder {
+	
+	private static final Logger log = Logger.getc();
+	
+	protected final Reader reader;
+	protected final ReflectiveConfig config = ReflectiveConfig.getInstance();
+	protected final char[] buf = new char[8192];
+	protected int pos, limit;
+	protected final StringBuilder sb = new StringBuilder();
+	/** If current dict or array has no elements read yet; once any container is closed, its parent has one. */
+	protected boolean first;
+	/** If set, keys not bound to any field or method are skipped silently; handy for third-party responses. */
+	protected boolean lenient;
+	
+	public JSONStreamBinder(Reader reader) {
+		if (reader == null) throw new NullPointerException();
+		this.reader = reader;
+	}
+	
+	public JSONStreamBinder(InputStream is) throws IOException {
+		this (new InputStreamReader(is, "utf-8"));
+	}
+	
+	public JSONStreamBinder setLenient(boolean lenient) {
+		this.lenient = lenient;
+		return this;
+	}
+	
+	/**
+	 * Reads next dict and applies it to given object.
+	 * @return the same object
+	 */
+	public <T> T bindObject(T obj) throws IOException {
+		beginObject();
+		for (String key; (key = nextKey()) != null; )
+			bindKey(obj, key);
+		return obj;
+	}
+	
+	/** Reads next array of dicts, binding each dict to a new instance of given class. */
+	public <T> List<T> bindList(Class<T> type) throws IOException {
+		List<T> list = new ArrayList<T>();
+		beginArray();
+		while (hasNextElement())
+			list.add(type.cast(bindObject(ReflectiveKeyInfo.newInstance(type))));
+		return list;
+	}
+	
+	protected void bindKey(Object obj, String key) throws IOException {
+		KeyBinding keyInfo = config.getKeyInfo(obj.getClass(), key);
+		if (keyInfo.fullType == null) {
+			skipValue();
+			if (!lenient && !key.startsWith("__"))
+				log.warn("configuration key is ignored: " + key + ", no corresponding field or method was found in class " + obj.getClass());
+			return;
+		}
+		int c = peek();
+		boolean plain = !keyInfo.hasConverter && !keyInfo.hasAllocator;
+		if (plain && c == '{' && !Map.class.isAssignableFrom(keyInfo.fullType)) {
+			bindInstance(obj, keyInfo);
+		} else if (plain && c == '[' && keyInfo.arrayType != null && List.class.isAssignableFrom(keyInfo.fullType)) {
+			bindInstanceList(obj, keyInfo);
+		} else if (c == '{' || c == '[') {
+			config.applyFieldConfig(obj, key, readValue(), null);
+		} else {
+			Class<?> type = keyInfo.hasConverter ? Object.class : keyInfo.fullType;
+			config.applyFieldConfig(obj, key, readScalar(type), null);
+		}
+	}
+	
+	/** Same as class instance case of {@link ReflectiveConfig#applyFieldConfig}, but dict is read from stream. */
+	protected void bindInstance(Object obj, KeyBinding keyInfo) throws IOException {
+		Object oldElem = keyInfo.getOldValue(obj);
+		Object elem = keyInfo.keepInstance && oldElem != null ? oldElem : keyInfo.newInstance();
+		boolean setField = keyInfo.fieldAccessible;
+		if (!keyInfo.invokePreHandler(obj, elem)) setField = false;
+		if (setField) keyInfo.setValue(obj, elem);
+		bindObject(elem);
+		keyInfo.invokeDataHandler(obj, elem);
+	}
+	
+	/** Same as list case of {@link ReflectiveConfig#applyFieldConfig}, but elements are read from stream. */
+	protected void bindInstanceList(Object obj, KeyBinding keyInfo) throws IOException {
+		@SuppressWarnings("unchecked")
+		List<Object> oldList = (List<Object>) keyInfo.getOldValue(obj);
+		List<Object> list = new ArrayList<Object>();
+		beginArray();
+		while (hasNextElement()) {
+			int i = list.size();
+			Object oldElem = oldList != null && i < oldList.size() ? oldList.get(i) : null;
+			int c = peek();
+			Object elem;
+			if (c == '{') {
+				elem = keyInfo.keepInstance && oldElem != null ? oldElem : keyInfo.newInstance();
+				bindObject(elem);
+			} else if (c == '[') {
+				elem = keyInfo.preserveInstanceIfNeed(readValue(), oldElem);
+			} else {
+				elem = keyInfo.preserveInstanceIfNeed(readScalar(keyInfo.arrayType), oldElem);
+			}
+			list.add(elem);
+		}
+		boolean setField = keyInfo.fieldAccessible;
+		if (!keyInfo.invokePreHandler(obj, list)) setField = false;
+		if (setField) keyInfo.setValue(obj, list);
+		keyInfo.invokeDataHandler(obj, list);
+	}
+	
+	// tokenizer
+	
+	/** @return next non-whitespace character without consuming it, or -1 at the end of stream. */
+	public int peek() throws IOException {
+		for (;;) {
+			if (pos == limit && !fill()) return -1;
+			char c = buf[pos];
+			if (c != ' ' && c != '\t' && c != '\r' && c != '\n') return c;
+			pos ++;
+		}
+	}
+	
+	protected boolean fill() throws IOException {
+		for (;;) {
+			int read = reader.read(buf, 0, buf.length);
+			if (read < 0) return false;
+			if (read == 0) continue;
+			pos = 0;
+			limit = read;
+			return true;
+		}
+	}
+	
+	protected int read() throws IOException {
+		if (pos == limit && !fill()) return -1;
+		return buf[pos ++];
+	}
+	
+	protected void expect(char expected) throws IOException {
+		int c = peek();
+		if (c != expected) throw syntaxError("'" + expected + "' expected", c);
+		pos ++;
+	}
+	
+	protected IOException syntaxError(String message, int c) {
+		return new IOException("corrupt json: " + message + ", but got " + (c < 0 ? "end of stream" : "'" + (char) c + "'"));
+	}
+	
+	public void beginObject() throws IOException {
+		expect('{');
+		first = true;
+	}
+	
+	/** @return next key of current dict, or null after dict is closed. */
+	public String nextKey() throws IOException {
+		if (!nextElement('}')) return null;
+		int c = peek();
+		if (c != '"') throw syntaxError("key expected", c);
+		String key = readString();
+		expect(':');
+		return key;
+	}
+	
+	public void beginArray() throws IOException {
+		expect('[');
+		first = true;
+	}
+	
+	/** @return true if current array has one more element, false after array is closed. */
+	public boolean hasNextElement() throws IOException {
+		return nextElement(']');
+	}
+	
+	/**
+	 * Reads separator of the next element of current container, which is required between elements. Comma before the
+	 * closing bracket is tolerated, as org.json does.
+	 * @return false if the container is closed
+	 */
+	protected boolean nextElement(char close) throws IOException {
+		int c = peek();
+		if (c == close) {
+			pos ++;
+			first = false;
+			return false;
+		}
+		if (!first) {
+			if (c != ',') throw syntaxError("',' or '" + close + "' expected", c);
+			pos ++;
+			if (peek() == close) {
+				pos ++;
+				return false;
+			}
+		}
+		first = false;
+		return true;
+	}
+	
+	/** Reads next value as {@link JSONObject}, {@link JSONArray}, {@link String}, number, boolean or {@link JSONObject#NULL}. */
+	public Object readValue() throws IOException {
+		int c = peek();
+		if (c == '{') {
+			JSONObject jo = new JSONObject();
+			beginObject();
+			for (String key; (key = nextKey()) != null; )
+				jo.put(key, readValue());
+			return jo;
+		}
+		if (c == '[') {
+			JSONArray ja = new JSONArray();
+			beginArray();
+			while (hasNextElement())
+				ja.put(readValue());
+			return ja;
+		}
+		return readScalar(Object.class);
+	}
+	
+	/** Skips next value without materializing it. */
+	public void skipValue() throws IOException {
+		int c = peek();
+		if (c == '"') {
+			skipString();
+		} else if (c == '{') {
+			beginObject();
+			while (nextKey() != null)
+				skipValue();
+		} else if (c == '[') {
+			beginArray();
+			while (hasNextElement())
+				skipValue();
+		} else {
+			checkLiteral(readLiteral());
+		}
+	}
+	
+	/**
+	 * Reads next scalar value.
+	 * @param type type value is bound to; numbers are converted to it if it's numeric, boolean or string type,
+	 * 				otherwise integers are read as {@link Integer} or {@link Long}, and fractions as {@link Double}
+	 */
+	public Object readScalar(Class<?> type) throws IOException {
+		int c = peek();
+		if (c == '"') return readString();
+		if (c == '{' || c == '[') throw syntaxError("scalar value expected", c);
+		String literal = checkLiteral(readLiteral());
+		if ("null".equals(literal)) return JSONObject.NULL;
+		if ("true".equals(literal)) return Boolean.TRUE;
+		if ("false".equals(literal)) return Boolean.FALSE;
+		try {
+			return toNumber(literal, type);
+		} catch (NumberFormatException nfe) {
+			throw new IOException("corrupt json: literal " + literal + " is out of range of " + type.getSimpleName(), nfe);
+		}
+	}
+	
+	protected static final Pattern NUMBER = Pattern.compile("-?(0|[1-9][0-9]*)(\\.[0-9]+)?([eE][-+]?[0-9]+)?");
+	
+	/** @return given unquoted token, if it's a number, boolean or null; other text must be quoted */
+	protected static String checkLiteral(String literal) throws IOException {
+		if (!"null".equals(literal) && !"true".equals(literal) && !"false".equals(literal) && !NUMBER.matcher(literal).matches())
+			throw new IOException("corrupt json: unexpected literal: " + literal);
+		return literal;
+	}
+	
+	protected static Object toNumber(String literal, Class<?> type) {
+		if (type == int.class || type == Integer.class) return Integer.valueOf(literal);
+		if (type == long.class || type == Long.class) return Long.valueOf(literal);
+		if (type == double.class || type == Double.class) return Double.valueOf(literal);
+		if (type == float.class || type == Float.class) return Float.valueOf(literal);
+		if (type == short.class || type == Short.class) return Short.valueOf(literal);
+		if (type == byte.class || type == Byte.class) return Byte.valueOf(literal);
+		if (type == BigDecimal.class) return new BigDecimal(literal);
+		if (type == BigInteger.class) return new BigInteger(literal);
+		if (type == boolean.class || type == Boolean.class) return new BigDecimal(literal).signum() != 0;
+		if (type == String.class) return literal;
+		if (literal.indexOf('.') >= 0 || literal.indexOf('e') >= 0 || literal.indexOf('E') >= 0)
+			return Double.valueOf(literal);
+		BigInteger bi = new BigInteger(literal);
+		if (bi.bitLength() < 32) return bi.intValue();
+		if (bi.bitLength() < 64) return bi.longValue();
+		return bi;
+	}
+	
+	protected String readLiteral() throws IOException {
+		sb.setLength(0);
+		for (;;) {
+			if (pos == limit && !fill()) break;
+			char c = buf[pos];
+			if (c == ',' || c == '}' || c == ']' || c == ':' || c == ' ' || c == '\t' || c == '\r' || c == '\n') break;
+			sb.append(c);
+			pos ++;
+		}
+		if (sb.length() == 0) throw syntaxError("value expected", peek());
+		return sb.toString();
+	}
+	
+	protected String readString() throws IOException {
+		expect('"');
+		sb.setLength(0);
+		for (;;) {
+			// copying unescaped runs at once
+			int start = pos;
+			while (pos < limit && buf[pos] != '"' && buf[pos] != '\\') pos ++;
+			sb.append(buf, start, pos - start);
+			if (pos == limit) {
+				if (!fill()) throw syntaxError("closing quote expected", -1);
+				continue;
+			}
+			if (buf[pos ++] == '"') return sb.toString();
+			sb.append(readEscape());
+		}
+	}
+	
+	protected void skipString() throws IOException {
+		expect('"');
+		for (int c; ; ) {
+			if ((c = read()) < 0) throw syntaxError("closing quote expected", -1);
+			if (c == '"') return;
+			if (c == '\\') readEscape();
+		}
+	}
+	
+	protected char readEscape() throws IOException {
+		int c = read();
+		switch (c) {
+		case 'b': return '\b';
+		case 't': return '\t';
+		case 'n': return '\n';
+		case 'f': return '\f';
+		case 'r': return '\r';
+		case 'u':
+			int code = 0;
+			for (int i = 0; i < 4; i ++) {
+				int d = Character.digit(read(), 16);
+				if (d < 0) throw new IOException("corrupt json: illegal \\u escape");
+				code = code << 4 | d;
+			}
+			return (char) code;
+		case '"': case '\\': case '/':
+			return (char) c;
+		default:
+			throw syntaxError("escape sequence expected", c);
+		}
+	}
+}
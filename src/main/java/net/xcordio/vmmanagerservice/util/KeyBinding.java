@@ -0,0 +1,165 @@
+package net.xcordio.vmmanagerservice.util;
+
+import org.json.JSONObject;
+
+/**
+ * Binding of a single configuration key of some class: types the key is bound to, and access to the field,
+ * handlers, converter and allocator of the key. Records are immutable once built and shared between threads.
+ * <p>
+ * Subclasses override primitives for members they have: {@link ReflectiveConfig} builds them reflectively, and
+ * {@link ConfigBinder}s generated at build time return ones calling members directly.
+ * @author xcordio
+ */
+public abstract class KeyBinding {
+	
+	public boolean fieldAccessible; // if there are field present and we can read it
+	public boolean keepInstance; // there are field and it's annotated with @KeepInstance
+	// full and sub-types, if present
+	public Class<?> fullType; // extracted fullType from field or method
+	public Class<?> subType; // extracted fullType from field or method
+	// one of array or map is available
+	public Class<?> arrayType; // extracted List<TYPE> from field or method
+	public Class<?> mapType; // extracted Map<String, TYPE> from field or method
+	// present methods
+	public boolean hasPreHandler; // method named preFIELDNAMEChange(); can return void or boolean
+	public boolean hasDataHandler; // method named onFIELDNAMEChange(); can return void or boolean
+	public boolean hasConverter; // method named convertSUBTYPE(Object)
+	public boolean hasAllocator; // method named allocSUBTYPE(String type[, JSONObject obj])
+	
+	protected KeyBinding() {
+	}
+	
+	protected KeyBinding(Class<?> fullType, Class<?> subType, Class<?> arrayType, Class<?> mapType,
+						 boolean fieldAccessible, boolean keepInstance, boolean hasPreHandler, boolean hasDataHandler,
+						 boolean hasConverter, boolean hasAllocator) {
+		this.fullType = fullType;
+		this.subType = subType;
+		this.arrayType = arrayType;
+		this.mapType = mapType;
+		this.fieldAccessible = fieldAccessible;
+		this.keepInstance = keepInstance;
+		this.hasPreHandler = hasPreHandler;
+		this.hasDataHandler = hasDataHandler;
+		this.hasConverter = hasConverter;
+		this.hasAllocator = hasAllocator;
+	}
+	
+	// primitives; called only when corresponding member is present, so bindings implement only ones they have
+	
+	protected Object get(Object obj) {
+		throw missing("readable field");
+	}
+	
+	protected void set(Object obj, Object value) {
+		throw missing("writable field");
+	}
+	
+	/** @return result of pre-handler, i.e. {@link Boolean} or null for void handlers */
+	protected Object preChange(Object obj, Object value) {
+		throw missing("pre-change handler");
+	}
+	
+	protected void onChange(Object obj, Object value) {
+		throw missing("on-change handler");
+	}
+	
+	protected Object convert(Object obj, Object json) {
+		throw missing("converter");
+	}
+	
+	protected Object alloc(Object obj, String type, JSONObject json) {
+		throw missing("allocator");
+	}
+	
+	protected ConfigurationException missing(String member) {
+		return new ConfigurationException("no " + member + " is bound for " + (fullType != null ? fullType : "key"));
+	}
+	
+	/** @return new instance of subType or fullType, i.e. the one bound to a dict. */
+	public Object newInstance() {
+		throw new ConfigurationException("cannot instantiate " + (subType != null ? subType : fullType)
+				+ ": public no-arg constructor is required");
+	}
+	
+	// operations used by ReflectiveConfig
+	
+	public Object preserveInstanceIfNeed(Object obj, Object oldValue) {
+		if (keepInstance) {
+			if (oldValue != null && obj != null)
+				return oldValue;
+		}
+		return obj;
+	}
+	
+	public Object allocObject(Object obj, Object elem) {
+		if (hasConverter) {
+			elem = convert(obj, elem);
+		} else if (hasAllocator) {
+			if (!(elem instanceof JSONObject)) throw new ConfigurationException("attempt configure non-dict JSON object through allocator method for " + subType);
+			elem = runAllocator(obj, (JSONObject) elem);
+		} else if (elem instanceof JSONObject) {
+			elem = newInstance();
+		}
+		return elem;
+	}
+	
+	public Object getOldValue(Object obj) {
+		if (!fieldAccessible) return null;
+		return get(obj);
+	}
+	
+	public void setValue(Object obj, Object elem) {
+		set(obj, elem);
+	}
+	
+	public boolean invokePreHandler(Object obj, Object elem) {
+		if (!hasPreHandler) return true;
+		return !Boolean.FALSE.equals(preChange(obj, elem));
+	}
+	
+	public void invokeDataHandler(Object obj, Object elem) {
+		if (hasDataHandler) onChange(obj, elem);
+	}
+	
+	protected Object runAllocator(Object instance, JSONObject from) {
+		if (from == null) throw new NullPointerException("allocator expecting JSONObject");
+		String type = from.optString("type", null);
+		if (type != null) from.remove("type");
+		return alloc(instance, type, from);
+	}
+	
+	// unboxing of values set by generated code: widening only, as by MethodHandle#asType() and reflection
+	
+	protected static short toShort(Object value) {
+		if (value instanceof Short) return (Short) value;
+		return (Byte) value;
+	}
+	
+	protected static int toInt(Object value) {
+		if (value instanceof Integer) return (Integer) value;
+		if (value instanceof Character) return (Character) value;
+		return toShort(value);
+	}
+	
+	protected static long toLong(Object value) {
+		if (value instanceof Long) return (Long) value;
+		return toInt(value);
+	}
+	
+	protected static float toFloat(Object value) {
+		if (value instanceof Float) return (Float) value;
+		return toLong(value);
+	}
+	
+	protected static double toDouble(Object value) {
+		if (value instanceof Double) return (Double) value;
+		return toFloat(value);
+	}
+	
+	/** Unchecked exceptions thrown by configured code are passed as is, checked ones are wrapped. */
+	protected static RuntimeException rethrow(Throwable t) {
+		if (t instanceof RuntimeException) throw (RuntimeException) t;
+		if (t instanceof Error) throw (Error) t;
+		throw new RuntimeException(t);
+	}
+}
@@ -0,0 +1,203 @@
+package net.xcordio.vmmanagerservice.util;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.semplar.log.Logger;
+
+/**
+ * Runs tasks on a pool of workers, preserving order of tasks with the same key, while tasks with different keys run
+ * in parallel. Count of queued tasks is bounded; see {@link Backpressure} for what happens when the queue is full.
+ * @author xcordio
+ */
+public class KeyedDispatcher {
+	
+	private static final Logger log = Logger.getc();
+	
+	public enum Backpressure {
+		/**
+		 * Dispatching thread waits for a free place in the queue. Workers of the dispatcher don't wait, as they'd wait
+		 * for themselves; tasks they dispatch are queued beyond capacity instead, up to capacity more tasks, and are
+		 * dropped once those places are taken too.
+		 */
+		BLOCK,
+		/** New task is dropped. */
+		DROP;
+		
+		public static Backpressure parse(String name) {
+			try {
+				return valueOf(name.toUpperCase(Locale.ROOT));
+			} catch (IllegalArgumentException iae) {
+				throw new ConfigurationException("unknown backpressure policy `" + name + "`, expected `block` or `drop`");
+			}
+		}
+	}
+	
+	/** Tasks of a single key; at most one worker runs them at a time. */
+	protected class KeyQueue implements Runnable {
+		
+		public final String key;
+		// synchronized on the dispatcher
+		protected final ArrayDeque<Task> tasks = new ArrayDeque<Task>(2);
+		
+		public KeyQueue(String key) {
+			this.key = key;
+		}
+		
+		@Override
+		public void run() {
+			Task t;
+			synchronized (KeyedDispatcher.this) {
+				t = tasks.poll();
+			}
+			t.permit.release();
+			depth.decrementAndGet();
+			long start = System.nanoTime();
+			waitLatency.record(start - t.enqueuedNanos);
+			running.set(KeyedDispatcher.this);
+			try {
+				t.task.run();
+			} catch (RuntimeException e) {
+				log.error("task for `" + key + "` failed", e);
+			} finally {
+				running.remove();
+				// even if the task threw an Error, else the key stays busy and its tasks are never run
+				handleLatency.recordSince(start);
+				next();
+			}
+		}
+		
+		/** Reschedules the key if it has more tasks, else removes it. */
+		protected void next() {
+			// one task per turn, so a busy key doesn't hold a worker while others wait
+			synchronized (KeyedDispatcher.this) {
+				if (!tasks.isEmpty() && !executor.isShutdown()) {
+					executor.execute(this);
+					return;
+				}
+				queues.remove(key);
+				// left after shutdown
+				for (Task t : tasks)
+					t.permit.release();
+				depth.addAndGet(- tasks.size());
+				tasks.clear();
+			}
+		}
+	}
+	
+	protected static class Task {
+		
+		public final Runnable task;
+		public final Semaphore permit; // released once the task leaves the queue: {@code queued} or {@code overflow}
+		public final long enqueuedNanos = System.nanoTime();
+		
+		public Task(Runnable task, Semaphore permit) {
+			this.task = task;
+			this.permit = permit;
+		}
+	}
+	
+	/** Dispatcher which task the current thread runs. */
+	protected static final ThreadLocal<KeyedDispatcher> running = new ThreadLocal<KeyedDispatcher>();
+	
+	public final String name;
+	public final Backpressure backpressure;
+	protected final ThreadPoolExecutor executor;
+	protected final Semaphore queued;
+	// places beyond capacity for tasks dispatched by workers, see Backpressure#BLOCK
+	protected final Semaphore overflow;
+	// next fields are synchronized on {@code this}
+	protected final Map<String, KeyQueue> queues = new HashMap<String, KeyQueue>();
+	// metrics
+	protected final AtomicInteger depth = new AtomicInteger();
+	protected final AtomicLong dropped = new AtomicLong();
+	protected final LatencyStats waitLatency = new LatencyStats();
+	protected final LatencyStats handleLatency = new LatencyStats();
+	
+	public KeyedDispatcher(final String name, int workers, int capacity, Backpressure backpressure) {
+		if (workers < 1) throw new ConfigurationException("at least one worker is required, but got " + workers);
+		if (capacity < 1) throw new ConfigurationException("queue capacity must be positive, but got " + capacity);
+		this.name = name;
+		this.backpressure = backpressure;
+		this.queued = new Semaphore(capacity);
+		this.overflow = new Semaphore(capacity);
+		this.executor = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			protected final AtomicInteger counter = new AtomicInteger(1);
+			
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name + " #" + counter.getAndIncrement());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		executor.allowCoreThreadTimeOut(true);
+	}
+	
+	/**
+	 * Queues task after all tasks with the same key.
+	 * @return false if task was dropped because the queue is full, or the dispatcher is shut down
+	 * @throws InterruptedException if interrupted while waiting for a free place
+	 */
+	public boolean dispatch(String key, Runnable task) throws InterruptedException {
+		Semaphore permit = queued;
+		if (!queued.tryAcquire()) {
+			// a worker would wait for itself, e.g. with a single one
+			boolean worker = running.get() == this;
+			if (backpressure == Backpressure.DROP || worker && !overflow.tryAcquire()) {
+				dropped.incrementAndGet();
+				log.warn(name + ": queue is full, dropped task for `" + key + "`");
+				return false;
+			}
+			if (worker) permit = overflow;
+			else queued.acquire();
+		}
+		synchronized (this) {
+			if (executor.isShutdown()) {
+				permit.release();
+				return false;
+			}
+			depth.incrementAndGet();
+			KeyQueue q = queues.get(key);
+			boolean idle = q == null;
+			if (idle) queues.put(key, q = new KeyQueue(key));
+			q.tasks.add(new Task(task, permit));
+			if (idle) executor.execute(q);
+		}
+		return true;
+	}
+	
+	/** Stops accepting tasks; at most one more task of every key is run, the rest are dropped. */
+	public synchronized void shutdown() {
+		executor.shutdown();
+	}
+	
+	/** @return count of tasks queued and not started yet */
+	public int getQueueDepth() {
+		return depth.get();
+	}
+	
+	public long getDropped() {
+		return dropped.get();
+	}
+	
+	/** @return time tasks spent in the queue */
+	public LatencyStats getWaitLatency() {
+		return waitLatency;
+	}
+	
+	/** @return time tasks ran */
+	public LatencyStats getHandleLatency() {
+		return handleLatency;
+	}
+}
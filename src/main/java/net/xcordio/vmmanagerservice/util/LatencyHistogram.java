@@ -0,0 +1,63 @@
+package net.xcordio.vmmanagerservice.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * {@link LatencyStats} with distribution of durations: bucket <code>i</code> counts durations below
+ * <code>2^i</code> microseconds (and at least half of that), the last one counts all longer durations. Lock-free.
+ * @author xcordio
+ */
+public class LatencyHistogram extends LatencyStats {
+	
+	/** Count of buckets; the last full bucket ends at about 1 hour. */
+	public static final int BUCKETS = 32;
+	
+	protected final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	
+	@Override
+	public void record(long nanos) {
+		super.record(nanos);
+		buckets.incrementAndGet(bucketOf(nanos));
+	}
+	
+	protected static int bucketOf(long nanos) {
+		long micros = nanos / 1000;
+		return Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKETS - 1);
+	}
+	
+	/** @return count of durations of given bucket */
+	public long getBucket(int i) {
+		return buckets.get(i);
+	}
+	
+	/** @return upper bound of given bucket, i.e. 2^i microseconds, or max duration for the last one */
+	public long getBucketBound(int i, TimeUnit unit) {
+		if (i == BUCKETS - 1) return getMax(unit);
+		return unit.convert(1L << i, TimeUnit.MICROSECONDS);
+	}
+	
+	/**
+	 * @param percentile e.g. 99 for 99th percentile
+	 * @return upper bound of bucket the percentile falls into, so it's exact up to factor of two
+	 */
+	public long getPercentile(double percentile, TimeUnit unit) {
+		long total = 0;
+		long[] counts = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i ++) total += counts[i] = buckets.get(i);
+		if (total == 0) return 0;
+		long rank = (long) Math.ceil(total * percentile / 100);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i ++) {
+			seen += counts[i];
+			if (seen >= rank && counts[i] > 0) return Math.min(getBucketBound(i, unit), getMax(unit));
+		}
+		return getMax(unit);
+	}
+	
+	@Override
+	public String toString() {
+		return super.toString() + ", p50=" + getPercentile(50, TimeUnit.MICROSECONDS) + "us, p99="
+				+ getPercentile(99, TimeUnit.MICROSECONDS) + "us";
+	}
+}
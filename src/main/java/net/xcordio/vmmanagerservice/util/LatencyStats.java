@@ -0,0 +1,50 @@
+package net.xcordio.vmmanagerservice.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Count, total and maximum of measured durations. Lock-free, may be updated from any thread.
+ * @author xcordio
+ */
+public class LatencyStats {
+	
+	protected final AtomicLong count = new AtomicLong();
+	protected final AtomicLong totalNanos = new AtomicLong();
+	protected final AtomicLong maxNanos = new AtomicLong();
+	
+	public void record(long nanos) {
+		count.incrementAndGet();
+		totalNanos.addAndGet(nanos);
+		for (long max; nanos > (max = maxNanos.get()); )
+			if (maxNanos.compareAndSet(max, nanos)) break;
+	}
+	
+	/** Records time passed since given {@link System#nanoTime()} value. */
+	public void recordSince(long startNanos) {
+		record(System.nanoTime() - startNanos);
+	}
+	
+	public long getCount() {
+		return count.get();
+	}
+	
+	public long getTotal(TimeUnit unit) {
+		return unit.convert(totalNanos.get(), TimeUnit.NANOSECONDS);
+	}
+	
+	public long getMax(TimeUnit unit) {
+		return unit.convert(maxNanos.get(), TimeUnit.NANOSECONDS);
+	}
+	
+	public long getAverage(TimeUnit unit) {
+		long c = count.get();
+		return c == 0 ? 0 : unit.convert(totalNanos.get() / c, TimeUnit.NANOSECONDS);
+	}
+	
+	@Override
+	public String toString() {
+		return "count=" + getCount() + ", avg=" + getAverage(TimeUnit.MICROSECONDS) + "us, max="
+				+ getMax(TimeUnit.MICROSECONDS) + "us";
+	}
+}
@@ -0,0 +1,316 @@
+package net.xcordio.vmmanagerservice.util;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.semplar.log.Logger;
+
+/**
+ * {@link FileAccess} to the filesystem of the service host. Directories are watched with a single {@link WatchService}
+ * and thread; events reported are {@link FileEvent#CREATE}, {@link FileEvent#MODIFY} and {@link FileEvent#DELETE},
+ * and directories with trailing separator. Handlers run on the watching thread, so they're
+ * expected to be quick.
+ * @author xcordio
+ */
+public class LocalFileAccess implements FileAccess {
+	
+	private static final Logger log = Logger.getc();
+	
+	protected static final AtomicInteger listenerCounter = new AtomicInteger(1);
+	
+	/** If subdirectories of listened directories are watched too. Read when a directory is listened. */
+	public boolean recursive;
+	// next fields are synchronized on {@code this}
+	protected WatchService watchService;
+	protected Thread thread;
+	protected final Map<String, List<EventHandler>> handlerDirs = new HashMap<String, List<EventHandler>>();
+	// listened directories events of watched one are reported to
+	protected final Map<WatchKey, List<String>> keyDirs = new HashMap<WatchKey, List<String>>();
+	
+	@Override
+	public void listenTo(String dir, Handler handler) {
+		listenTo(dir, FileEvent.adapt(handler));
+	}
+	
+	@Override
+	public synchronized void listenTo(String dir, EventHandler handler) {
+		if (handler == null) throw new NullPointerException();
+		List<EventHandler> hl = handlerDirs.get(dir);
+		// lists are copied on change, as the watching thread reads them concurrently
+		if (hl != null) {
+			hl = new ArrayList<EventHandler>(hl);
+			hl.add(handler);
+			handlerDirs.put(dir, hl);
+			return;
+		}
+		try {
+			if (watchService == null) watchService = FileSystems.getDefault().newWatchService();
+			register(dir, Paths.get(dir));
+		} catch (IOException ioe) {
+			log.error("failed to listen to " + dir, ioe);
+			return;
+		}
+		hl = new ArrayList<EventHandler>(1);
+		hl.add(handler);
+		handlerDirs.put(dir, hl);
+		if (thread == null) {
+			final WatchService ws = watchService;
+			thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					watch(ws);
+				}
+			});
+			thread.setDaemon(false);
+			thread.setName("Local Listener #" + listenerCounter.getAndIncrement());
+			thread.start();
+		}
+	}
+	
+	protected synchronized void register(final String dir, Path path) throws IOException {
+		if (!recursive) {
+			addKeyDir(path.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE), dir);
+			return;
+		}
+		Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) throws IOException {
+				addKeyDir(d.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE), dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+	
+	protected void addKeyDir(WatchKey key, String dir) {
+		List<String> dirs = keyDirs.get(key);
+		if (dirs == null) keyDirs.put(key, dirs = new ArrayList<String>(1));
+		if (!dirs.contains(dir)) dirs.add(dir);
+	}
+	
+	protected void watch(WatchService ws) {
+		log.verbose("started listening to local directories");
+		try {
+			for (;;) {
+				WatchKey key = ws.take();
+				Path path = (Path) key.watchable();
+				for (WatchEvent<?> event : key.pollEvents()) {
+					if (event.kind() == OVERFLOW) {
+						log.warn("local events were lost in " + path);
+						continue;
+					}
+					Path child = path.resolve((Path) event.context());
+					int events = event.kind() == ENTRY_CREATE ? FileEvent.CREATE.mask
+							: event.kind() == ENTRY_MODIFY ? FileEvent.MODIFY.mask : FileEvent.DELETE.mask;
+					route(key, path, events, child);
+				}
+				if (!key.reset()) synchronized (this) {
+					keyDirs.remove(key);
+				}
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			// stopped
+		}
+		log.verbose("stopped listening to local directories");
+	}
+	
+	protected void route(WatchKey key, Path path, int events, Path child) {
+		List<String> dirs;
+		List<List<EventHandler>> handlers = new ArrayList<List<EventHandler>>(1);
+		synchronized (this) {
+			dirs = keyDirs.get(key);
+			if (dirs == null) return;
+			for (String d : dirs) {
+				List<EventHandler> hl = handlerDirs.get(d);
+				if (hl != null) handlers.add(hl);
+			}
+			// new subdirectory is watched too
+			if (events == FileEvent.CREATE.mask && !dirs.isEmpty() && Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) try {
+				for (String d : dirs) register(d, child);
+			} catch (IOException ioe) {
+				log.error("failed to listen to " + child, ioe);
+			}
+		}
+		String dir = path.toString() + path.getFileSystem().getSeparator();
+		String file = child.getFileName().toString();
+		for (List<EventHandler> hl : handlers)
+			for (EventHandler h : hl) try {
+				if ((h.getEventMask() & events) != 0) h.handleEvents(this, dir, events, file);
+			} catch (RuntimeException e) {
+				log.error("failed to handle " + FileEvent.toSet(events) + " of " + dir + file, e);
+			}
+	}
+	
+	@Override
+	public void cancelListen(String dir, Handler handler) {
+		cancelListen(dir, FileEvent.adapt(handler));
+	}
+	
+	@Override
+	public synchronized void cancelListen(String dir, EventHandler handler) {
+		List<EventHandler> hl = handlerDirs.get(dir);
+		if (hl == null || !hl.contains(handler)) return;
+		hl = new ArrayList<EventHandler>(hl);
+		hl.remove(handler);
+		if (hl.isEmpty()) cancelListen(dir);
+		else handlerDirs.put(dir, hl);
+	}
+	
+	@Override
+	public synchronized void cancelListen(String dir) {
+		if (handlerDirs.remove(dir) == null) return;
+		for (Iterator<Map.Entry<WatchKey, List<String>>> ki = keyDirs.entrySet().iterator(); ki.hasNext(); ) {
+			Map.Entry<WatchKey, List<String>> e = ki.next();
+			if (!e.getValue().remove(dir) || !e.getValue().isEmpty()) continue;
+			e.getKey().cancel();
+			ki.remove();
+		}
+	}
+	
+	/** Cancels all listeners and stops the watching thread. */
+	public synchronized void stopListen() {
+		handlerDirs.clear();
+		keyDirs.clear();
+		if (watchService != null) try {
+			watchService.close();
+		} catch (IOException ioe) { }
+		watchService = null;
+		thread = null;
+	}
+	
+	/**
+	 * Copies the whole file to heap at once. Files are not memory mapped, as watched files are often truncated and
+	 * rewritten in place, and reading truncated mapping crashes the reading thread.
+	 */
+	@Override
+	public InputStream readFile(String filename) throws IOException {
+		FileChannel fc = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+		try {
+			long size = fc.size();
+			if (size > Integer.MAX_VALUE) throw new IOException("file is too large: " + filename);
+			ByteBuffer bb = ByteBuffer.allocate((int) size);
+			while (bb.hasRemaining() && fc.read(bb) >= 0) { /* empty */ }
+			bb.flip();
+			return new ByteBufferInputStream(bb);
+		} finally {
+			fc.close();
+		}
+	}
+	
+	@Override
+	public OutputStream writeFile(String filename) throws IOException {
+		return Files.newOutputStream(Paths.get(filename));
+	}
+	
+	@Override
+	public boolean isFile(String filename) throws IOException {
+		return Files.isRegularFile(Paths.get(filename));
+	}
+	
+	@Override
+	public boolean isDir(String filename) throws IOException {
+		return Files.isDirectory(Paths.get(filename));
+	}
+	
+	@Override
+	public List<FileInfo> listFiles(Collection<String> dirs) throws IOException {
+		final List<FileInfo> files = new ArrayList<FileInfo>();
+		for (String d : dirs) {
+			Path path = Paths.get(d);
+			if (!Files.isDirectory(path)) continue;
+			Files.walkFileTree(path, EnumSet.noneOf(FileVisitOption.class), recursive ? Integer.MAX_VALUE : 1,
+					new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+					if (attrs.isRegularFile()) files.add(new FileInfo(file.getParent() + file.getFileSystem().getSeparator(),
+							file.getFileName().toString(), attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS), attrs.size()));
+					return FileVisitResult.CONTINUE;
+				}
+				
+				@Override
+				public FileVisitResult visitFileFailed(Path file, IOException exc) {
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		}
+		return files;
+	}
+	
+	@Override
+	public void readFiles(Collection<String> paths, ContentHandler handler) throws IOException {
+		for (String p : paths) {
+			InputStream is;
+			try {
+				is = readFile(p);
+			} catch (IOException ioe) {
+				continue; // removed meanwhile
+			}
+			byte[] content = new byte[is.available()];
+			is.read(content);
+			handler.handleContent(p, content);
+		}
+	}
+	
+	/** Reads remaining bytes of a buffer. */
+	protected static class ByteBufferInputStream extends InputStream {
+		
+		protected final ByteBuffer buffer;
+		
+		public ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+		
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) return 0;
+			if (!buffer.hasRemaining()) return -1;
+			len = Math.min(len, buffer.remaining());
+			buffer.get(b, off, len);
+			return len;
+		}
+		
+		@Override
+		public long skip(long n) {
+			int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+			buffer.position(buffer.position() + skipped);
+			return skipped;
+		}
+		
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+	}
+}
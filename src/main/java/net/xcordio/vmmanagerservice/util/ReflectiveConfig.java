@@ -4,8 +4,13 @@ import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.math.BigInteger;
 import java.math.BigDecimal;
 
@@ -92,9 +97,48 @@ public class ReflectiveConfig {
 	public @interface KeepInstance {
 	}
 	
+	/**
+	 * Marks classes configured by this tool. For marked classes a {@link ConfigBinder} is generated at build time,
+	 * which binds keys with no reflection, and conventions described above are validated during compilation.
+	 */
+	@Target(ElementType.TYPE)
+	@Retention(RetentionPolicy.CLASS)
+	public @interface Configurable {
+	}
+	
 	private static final Logger log = Logger.getc();
 	
-	protected Map<Class<?>, Map<String, ReflectiveKeyInfo>> keyCache = new WeakHashMap<>();
+	/**
+	 * Per-class key tables. {@link ClassValue} doesn't keep classes from unloading, and tables are concurrent maps,
+	 * so listener threads configure objects in parallel with no locking on lookups of already known keys.
+	 */
+	protected final ClassValue<ConcurrentMap<String, KeyBinding>> keyCache = new ClassValue<ConcurrentMap<String, KeyBinding>>() {
+		@Override
+		protected ConcurrentMap<String, KeyBinding> computeValue(Class<?> type) {
+			return new ConcurrentHashMap<>();
+		}
+	};
+	
+	/** Generated binders, or null for classes which don't have one. */
+	protected static final ClassValue<ConfigBinder> binders = new ClassValue<ConfigBinder>() {
+		@Override
+		protected ConfigBinder computeValue(Class<?> type) {
+			if (type.isAnonymousClass() || type.isLocalClass() || type.isArray() || type.isPrimitive()) return null;
+			try {
+				Class<?> binderClass = Class.forName(type.getName().replace('$', '_') + ConfigBinder.SUFFIX, true, type.getClassLoader());
+				ConfigBinder binder = (ConfigBinder) binderClass.newInstance();
+				if (binder.boundClass() == type) return binder;
+			} catch (ClassNotFoundException e) {
+				return null;
+			} catch (ReflectiveOperationException | ClassCastException e) {
+				log.warn("failed to load generated binder for " + type + ", falling back to reflection", e);
+			}
+			return null;
+		}
+	};
+	
+	/** Last JSON applied with {@link #applyConfigChanges}, per configured object. Synchronized on itself. */
+	protected final Map<Object, JSONObject> appliedConfigs = new WeakHashMap<>();
 	
 	private static ReflectiveConfig instance = new ReflectiveConfig();
 	public static ReflectiveConfig getInstance() { return instance; }
@@ -102,12 +146,18 @@ public class ReflectiveConfig {
 	private ReflectiveConfig() {
 	}
 	
-	/** @return cached {@link ReflectiveKeyInfo} record. */
-	protected ReflectiveKeyInfo getKeyInfo(Class<?> clazz, String fieldName) {
-		Map<String, ReflectiveKeyInfo> keyMap = keyCache.get(clazz);
-		if (keyMap == null) keyCache.put(clazz, keyMap = new WeakHashMap<>());
-		ReflectiveKeyInfo ki = keyMap.get(fieldName);
-		if (ki == null) keyMap.put(fieldName, ki = new ReflectiveKeyInfo(clazz, fieldName));
+	/** @return cached {@link KeyBinding} record, from generated binder if there is one, or {@link ReflectiveKeyInfo}. */
+	protected KeyBinding getKeyInfo(Class<?> clazz, String fieldName) {
+		ConcurrentMap<String, KeyBinding> keyMap = keyCache.get(clazz);
+		KeyBinding ki = keyMap.get(fieldName);
+		if (ki == null) {
+			// records are immutable, so losing a race only costs a duplicate lookup
+			ConfigBinder binder = binders.get(clazz);
+			if (binder != null) ki = binder.bind(fieldName);
+			if (ki == null) ki = new ReflectiveKeyInfo(clazz, fieldName);
+			KeyBinding prev = keyMap.putIfAbsent(fieldName, ki);
+			if (prev != null) ki = prev;
+		}
 		return ki;
 	}
 	
@@ -117,28 +167,107 @@ public class ReflectiveConfig {
 	 * @param jo json configuration object
 	 */
 	public <T> T applyConfig(T obj, JSONObject jo) {
+		return applyConfig(obj, jo, null);
+	}
+	
+	/**
+	 * Applies only those parts of given JSON dictionary that differ from JSON previously applied to the same object
+	 * with this method; on the first call whole dictionary is applied. Keys with unchanged values are skipped
+	 * entirely: no converters, allocators nor handlers are called for them. Changed dicts bound to preserved
+	 * instances (see {@link KeepInstance}) are compared recursively, so handlers fire only along changed paths.
+	 * Keys removed from JSON are ignored, the same way as {@link #applyConfig(Object, JSONObject)} does.
+	 * @param obj object, whose field is to be configured
+	 * @param jo json configuration object
+	 */
+	public <T> T applyConfigChanges(T obj, JSONObject jo) {
+		JSONObject prev;
+		synchronized (appliedConfigs) {
+			prev = appliedConfigs.get(obj);
+		}
+		// snapshot is taken before applying, since allocators strip "type" keys from dicts being applied
+		JSONObject snapshot = new JSONObject();
+		for (String key : jo.keySet()) {
+			Object value = jo.get(key);
+			Object prevValue = prev != null ? prev.opt(key) : null;
+			snapshot.put(key, prevValue != null && sameJson(prevValue, value) ? prevValue : copyJson(value));
+		}
+		boolean applied = false;
+		try {
+			applyConfig(obj, jo, prev);
+			applied = true;
+		} finally {
+			synchronized (appliedConfigs) {
+				// after a failure, object state is unknown, so next call applies everything again
+				if (applied) appliedConfigs.put(obj, snapshot);
+				else appliedConfigs.remove(obj);
+			}
+		}
+		return obj;
+	}
+	
+	/** Forgets JSON applied to given object, so next {@link #applyConfigChanges} call applies everything. */
+	public void forgetAppliedConfig(Object obj) {
+		synchronized (appliedConfigs) {
+			appliedConfigs.remove(obj);
+		}
+	}
+	
+	/**
+	 * Applies given JSON dictionary, skipping keys which values are equal to ones in <code>prev</code>.
+	 * @param prev previously applied dictionary, or null to apply everything
+	 */
+	protected <T> T applyConfig(T obj, JSONObject jo, JSONObject prev) {
 		Class<?> t = obj.getClass();
-		for (String key : jo.keySet())
-			if (!applyFieldConfig(obj, key, jo.get(key)))
+		for (String key : jo.keySet()) {
+			Object value = jo.get(key);
+			Object prevValue = prev != null ? prev.opt(key) : null;
+			if (prevValue != null && sameJson(prevValue, value)) continue;
+			if (!applyFieldConfig(obj, key, value, prevValue))
 				if (!key.startsWith("__"))
 					log.warn("configuration key is ignored: " + key + ", no corresponding field or method was found in class " + t);
+		}
 		return obj;
 	}
 	
+	/** @return true if both JSON values are structurally equal. */
+	protected static boolean sameJson(Object a, Object b) {
+		if (a instanceof JSONObject) return ((JSONObject) a).similar(b);
+		if (a instanceof JSONArray) return ((JSONArray) a).similar(b);
+		return a.equals(b);
+	}
+	
+	/** @return deep copy of dicts and arrays; other JSON values are immutable and returned as is. */
+	protected static Object copyJson(Object json) {
+		if (json instanceof JSONObject) {
+			JSONObject from = (JSONObject) json, to = new JSONObject();
+			for (String key : from.keySet()) to.put(key, copyJson(from.get(key)));
+			return to;
+		}
+		if (json instanceof JSONArray) {
+			JSONArray from = (JSONArray) json, to = new JSONArray();
+			for (int i = 0; i < from.length(); i ++) to.put(copyJson(from.get(i)));
+			return to;
+		}
+		return json;
+	}
+	
 	/**
 	 * Reflectively applies given JSON object to a field.
 	 * @param obj object, whose field is to be configured
 	 * @param fieldName field to be configured (field itself can be absent, but there can be methods which receive value)
 	 * @param json one of {@link JSONObject}, {@link JSONArray}, {@link String}, {@link BigInteger},
 	 * 				{@link BigDecimal}, or one of boxed primitives
+	 * @param prevJson value previously applied to this field, or null; used to skip unchanged parts of dicts
+	 * 				bound to preserved instances
 	 */
-	protected <T> boolean applyFieldConfig(T obj, String fieldName, Object json) {
-		ReflectiveKeyInfo keyInfo = getKeyInfo(obj.getClass(), fieldName);
+	protected <T> boolean applyFieldConfig(T obj, String fieldName, Object json, Object prevJson) {
+		KeyBinding keyInfo = getKeyInfo(obj.getClass(), fieldName);
 		if (keyInfo.fullType == null) return false;
 		//
 		log.verbose("configuring " + obj.getClass().getSimpleName() + "." + fieldName);
 		List<Object> instancesToConfigure = new ArrayList<>();
 		List<JSONObject> instancesToConfigureDicts = new ArrayList<>();
+		List<JSONObject> instancesToConfigurePrevDicts = new ArrayList<>();
 		//
 		Object elem;
 		if (json instanceof JSONArray) {
@@ -152,6 +281,7 @@ public class ReflectiveConfig {
 			} else throw new ConfigurationException("attempt to bind JSONArray to non-array non-List field");
 			@SuppressWarnings("unchecked")
 			List<Object> oldList = (List<Object>) keyInfo.getOldValue(obj);
+			JSONArray prevArray = prevJson instanceof JSONArray ? (JSONArray) prevJson : null;
 			// copying elements
 			for (int i = 0; i < array.length(); i ++) {
 				Object jsonObj = array.get(i);
@@ -162,6 +292,7 @@ public class ReflectiveConfig {
 				if (jsonObj instanceof JSONObject) {
 					instancesToConfigure.add(alloc);
 					instancesToConfigureDicts.add((JSONObject) jsonObj);
+					instancesToConfigurePrevDicts.add(alloc == oldElem && prevArray != null ? prevDict(prevArray.opt(i)) : null);
 				}
 			}
 			elem = list;
@@ -172,6 +303,7 @@ public class ReflectiveConfig {
 				Map<Object, Object> map = new HashMap<>();
 				@SuppressWarnings("unchecked")
 				Map<Object, Object> oldMap = (Map<Object, Object>) keyInfo.getOldValue(obj);
+				JSONObject prevDict = prevDict(prevJson);
 				for (String key : dict.keySet()) {
 					Object jsonObj = dict.get(key);
 					Object alloc = keyInfo.allocObject(obj, jsonObj);
@@ -181,6 +313,7 @@ public class ReflectiveConfig {
 					if (jsonObj instanceof JSONObject) {
 						instancesToConfigure.add(alloc);
 						instancesToConfigureDicts.add((JSONObject) jsonObj);
+						instancesToConfigurePrevDicts.add(alloc == oldElem && prevDict != null ? prevDict(prevDict.opt(key)) : null);
 					}
 				}
 				elem = map;
@@ -191,6 +324,7 @@ public class ReflectiveConfig {
 				elem = keyInfo.preserveInstanceIfNeed(elem, oldElem);
 				instancesToConfigure.add(elem);
 				instancesToConfigureDicts.add(dict);
+				instancesToConfigurePrevDicts.add(elem == oldElem ? prevDict(prevJson) : null);
 			}
 		} else {
 			// not an array, nor a dict, nor a class instance: must be primitive type
@@ -200,38 +334,45 @@ public class ReflectiveConfig {
 		}
 		boolean setField = keyInfo.fieldAccessible;
 		if (!keyInfo.invokePreHandler(obj, elem)) setField = false;
-		if (setField) try {
-			keyInfo.field.set(obj, elem);
-		} catch (IllegalAccessException e) {
-			throw new RuntimeException(e);
-		}
+		if (setField) keyInfo.setValue(obj, elem);
 		// now configuring instances themselves
 		for (int i = 0; i < instancesToConfigure.size(); i ++)
-			applyConfig(instancesToConfigure.get(i), instancesToConfigureDicts.get(i));
+			applyConfig(instancesToConfigure.get(i), instancesToConfigureDicts.get(i), instancesToConfigurePrevDicts.get(i));
 		//
 		keyInfo.invokeDataHandler(obj, elem);
 		return true;
 	}
 	
-	/** For caching. */
-	protected static class ReflectiveKeyInfo {
+	private static JSONObject prevDict(Object prevJson) {
+		return prevJson instanceof JSONObject ? (JSONObject) prevJson : null;
+	}
+	
+	/** Key binding found reflectively. Not modified after construction, so it's shared between threads freely. */
+	protected static class ReflectiveKeyInfo extends KeyBinding {
+		
+		private static final MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+		// erased signatures every compiled handle is adapted to, so calls are done with invokeExact()
+		private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+		private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+		private static final MethodType HANDLER_TYPE = MethodType.methodType(Object.class, Object.class, Object.class);
+		private static final MethodType ALLOCATOR_TYPE = MethodType.methodType(Object.class, Object.class, String.class, JSONObject.class);
+		private static final MethodType CONSTRUCTOR_TYPE = MethodType.methodType(Object.class);
 		
 		// field and preHandler can be present, but needs to have their types consistent, otherwise exception is thrown
 		public Field field; // field corresponding to fieldName
 		public Method preHandler; // method named preFIELDNAMEChange(); can return void or boolean
 		public Method dataHandler; // method named onFIELDNAMEChange(); can return void or boolean
-		// temporary
-		public boolean fieldAccessible; // if there are field present and we can read it
-		public boolean keepInstance; // there are field and it's annotated with @KeepInstance
-		// full and sub-types, if present
-		public Class<?> fullType; // extracted fullType from field or method
-		public Class<?> subType; // extracted fullType from field or method
-		// one of array or map is available
-		public Class<?> arrayType; // extracted List<TYPE> from field or method
-		public Class<?> mapType; // extracted Map<String, TYPE> from field or method
 		// one of following can be present, otherwise exception is thrown
 		public Method allocatorMethod;
 		public Method converterMethod;
+		// compiled counterparts of members above, see compileHandles()
+		protected MethodHandle getter; // (Object)Object
+		protected MethodHandle setter; // (Object, Object)void
+		protected MethodHandle preInvoker; // (Object, Object)Object, returns Boolean or null
+		protected MethodHandle dataInvoker; // (Object, Object)void
+		protected MethodHandle allocator; // (Object, String, JSONObject)Object; static allocators ignore first argument
+		protected MethodHandle converter; // (Object, Object)Object; static converters ignore first argument
+		protected MethodHandle constructor; // ()Object, no-arg constructor of subType or fullType
 		
 		public ReflectiveKeyInfo(Class<?> clazz, String fieldName) {
 			field = findField(clazz, fieldName);
@@ -254,63 +395,121 @@ public class ReflectiveConfig {
 				if (allocatorMethod != null && converterMethod != null) throw new ConfigurationException("both allocator" +
 						" and converter methods are present in class " + clazz + " for fullType " + typename);
 			}
+			hasPreHandler = preHandler != null;
+			hasDataHandler = dataHandler != null;
+			hasConverter = converterMethod != null;
+			hasAllocator = allocatorMethod != null;
+			compileHandles(clazz);
 		}
 		
-		public Object preserveInstanceIfNeed(Object obj, Object oldValue) {
-			if (keepInstance) {
-				if (oldValue != null && obj != null)
-					return oldValue;
+		/**
+		 * Turns found fields and methods into method handles adapted to erased signatures, so that applying a key
+		 * doesn't go through access checks and argument array boxing of {@link Field#set} and {@link Method#invoke}.
+		 */
+		protected void compileHandles(Class<?> clazz) {
+			try {
+				if (field != null) try {
+					getter = lookup.unreflectGetter(field).asType(GETTER_TYPE);
+					setter = lookup.unreflectSetter(field).asType(SETTER_TYPE);
+				} catch (IllegalAccessException e) {
+					log.warn("field " + field.getDeclaringClass() + "." + field + " is not accessible");
+					fieldAccessible = false;
+				}
+				if (preHandler != null) preInvoker = instanceHandle(preHandler).asType(HANDLER_TYPE);
+				if (dataHandler != null) dataInvoker = instanceHandle(dataHandler).asType(SETTER_TYPE);
+				if (converterMethod != null) {
+					if (converterMethod.getParameterTypes().length != 1)
+						throw new ConfigurationException("converter method " + converterMethod + " must have exactly one argument");
+					converter = instanceHandle(converterMethod).asType(HANDLER_TYPE);
+				}
+				if (allocatorMethod != null) {
+					MethodHandle mh = instanceHandle(allocatorMethod);
+					if (allocatorMethod.getParameterTypes().length == 1)
+						mh = MethodHandles.dropArguments(mh, 2, JSONObject.class);
+					allocator = mh.asType(ALLOCATOR_TYPE);
+				}
+				Class<?> instanceType = subType != null ? subType : fullType;
+				if (instanceType != null) constructor = constructors.get(instanceType);
+			} catch (IllegalAccessException e) {
+				throw new ConfigurationException("cannot access configuration methods of " + clazz, e);
 			}
-			return obj;
 		}
 		
-		public Object allocObject(Object obj, Object elem) {
-			if (converterMethod != null) {
-				elem = runConverter(obj, elem);
-			} else if (allocatorMethod != null) {
-				if (!(elem instanceof JSONObject)) throw new ConfigurationException("attempt configure non-dict JSON object through allocator method " + allocatorMethod);
-				elem = runAllocator(obj, (JSONObject) elem);
-			} else if (elem instanceof JSONObject) {
+		/** Public no-arg constructors adapted to {@link #CONSTRUCTOR_TYPE}, or null when class can't be instantiated. */
+		protected static final ClassValue<MethodHandle> constructors = new ClassValue<MethodHandle>() {
+			@Override
+			protected MethodHandle computeValue(Class<?> type) {
+				if (type.isInterface() || Modifier.isAbstract(type.getModifiers()) || type.isPrimitive() || type.isArray())
+					return null;
 				try {
-					elem = (subType != null ? subType : fullType).newInstance();
-				} catch (InstantiationException e) {
-					throw new RuntimeException(e);
-				} catch (IllegalAccessException e) {
-					throw new RuntimeException(e);
+					return lookup.findConstructor(type, MethodType.methodType(void.class)).asType(CONSTRUCTOR_TYPE);
+				} catch (NoSuchMethodException | IllegalAccessException e) {
+					return null; // reported if such instance is ever needed
 				}
 			}
-			return elem;
+		};
+		
+		/** @return new instance of given class, created with its public no-arg constructor. */
+		public static Object newInstance(Class<?> type) {
+			MethodHandle mh = constructors.get(type);
+			if (mh == null) throw new ConfigurationException("cannot instantiate " + type + ": public no-arg constructor is required");
+			try {
+				return (Object) mh.invokeExact();
+			} catch (Throwable t) {
+				throw rethrow(t);
+			}
 		}
 		
-		public Object getOldValue(Object obj) {
-			if (field == null || !fieldAccessible) return null;
+		@Override
+		public Object newInstance() {
+			if (constructor == null) return super.newInstance();
 			try {
-				return field.get(obj);
-			} catch (IllegalAccessException e) {
-				log.warn("cannot get old value: field " + field.getDeclaringClass() + "." + field + " is not accessible");
-				fieldAccessible = false;
-				return null;
+				return (Object) constructor.invokeExact();
+			} catch (Throwable t) {
+				throw rethrow(t);
 			}
 		}
 		
-		public boolean invokePreHandler(Object obj, Object elem) {
-			if (preHandler == null) return true;
+		/** @return handle taking receiver as first argument, which is dropped for static methods. */
+		protected static MethodHandle instanceHandle(Method m) throws IllegalAccessException {
+			MethodHandle mh = lookup.unreflect(m);
+			if ((m.getModifiers() & Modifier.STATIC) != 0) mh = MethodHandles.dropArguments(mh, 0, Object.class);
+			return mh;
+		}
+		
+		@Override
+		protected Object get(Object obj) {
 			try {
-				return !Boolean.FALSE.equals(preHandler.invoke(obj, elem));
-			} catch (IllegalAccessException e) {
-				throw new RuntimeException(e);
-			} catch (InvocationTargetException e) {
-				throw new RuntimeException(e);
+				return (Object) getter.invokeExact(obj);
+			} catch (Throwable t) {
+				throw rethrow(t);
 			}
 		}
 		
-		public void invokeDataHandler(Object obj, Object elem) {
-			if (dataHandler != null) try {
-				dataHandler.invoke(obj, elem);
-			} catch (IllegalAccessException e) {
-				throw new RuntimeException(e);
-			} catch (InvocationTargetException e) {
-				throw new RuntimeException(e);
+		@Override
+		protected void set(Object obj, Object elem) {
+			try {
+				setter.invokeExact(obj, elem);
+			} catch (Throwable t) {
+				throw rethrow(t);
+			}
+		}
+		
+		@Override
+		protected Object preChange(Object obj, Object elem) {
+			try {
+				return (Object) preInvoker.invokeExact(obj, elem);
+			} catch (Throwable t) {
+				throw rethrow(t);
+			}
+		}
+		
+		@Override
+		protected void onChange(Object obj, Object elem) {
+			try {
+				dataInvoker.invokeExact(obj, elem);
+			} catch (Throwable t) {
+				throw rethrow(t);
 			}
 		}
 		
@@ -359,30 +558,21 @@ public class ReflectiveConfig {
 			return type;
 		}
 		
-		protected Object runConverter(Object instance, Object from) {
-			if ((converterMethod.getModifiers() & Modifier.STATIC) != 0) instance = null;
+		@Override
+		protected Object convert(Object instance, Object from) {
 			try {
-				return converterMethod.invoke(instance, from);
-			} catch (IllegalAccessException e) {
-				throw new RuntimeException(e);
-			} catch (InvocationTargetException e) {
-				throw new RuntimeException(e);
+				return (Object) converter.invokeExact(instance, from);
+			} catch (Throwable t) {
+				throw rethrow(t);
 			}
 		}
 		
-		protected Object runAllocator(Object instance, JSONObject from) {
-			if (from == null) throw new NullPointerException("allocator expecting JSONObject");
-			String type = from.optString("type", null);
-			if (type != null) from.remove("type");
-			if ((allocatorMethod.getModifiers() & Modifier.STATIC) != 0) instance = null;
+		@Override
+		protected Object alloc(Object instance, String type, JSONObject from) {
 			try {
-				if (allocatorMethod.getParameterTypes().length == 2)
-					return allocatorMethod.invoke(instance, type, from);
-				else return allocatorMethod.invoke(instance, type);
-			} catch (IllegalAccessException e) {
-				throw new RuntimeException(e);
-			} catch (InvocationTargetException e) {
-				throw new RuntimeException(e);
+				return (Object) allocator.invokeExact(instance, type, from);
+			} catch (Throwable t) {
+				throw rethrow(t);
 			}
 		}
 	}
@@ -4,6 +4,11 @@ import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
 /**
  * A set of static utils for working with classes reflectively.
@@ -12,48 +17,102 @@ import java.lang.reflect.Type;
  *     <li>find field by name;</li>
  *     <li>find method by name and arguments;</li>
  * </ul>
+ * Names are case insensitive. Members of every class are indexed once (see {@link MemberIndex}), so lookups don't
+ * scan nor copy member arrays.
  */
 public class ReflectiveUtils {
 	
-	protected static Field findField(Class<?> clazz, String fieldName) {
-		Field found = null;
-		for (Field f : clazz.getFields()) {
-			// not touching static, final nor transient fields
-			if ((f.getModifiers() & Modifier.STATIC) != 0 ||
-					(f.getModifiers() & Modifier.FINAL) != 0 ||
-					(f.getModifiers() & Modifier.TRANSIENT) != 0) continue;
-			if (f.getName().equalsIgnoreCase(fieldName))
-				if (found == null) found = f;
-				else throw new ConfigurationException("multiple matching fields found; looking for `" + fieldName
-						+ "`, found `" + found.getName() + "` and `" + f.getName() + "`, configuration can't be done"
-						+ " in this ambiguous situation");
+	/** Public members of a class, grouped by lowercased name. Immutable once built. */
+	protected static class MemberIndex {
+		
+		// configurable fields: not static, final nor transient
+		public final Map<String, Field> fields = new HashMap<String, Field>();
+		// names matched by more than one configurable field, with error message prepared
+		public final Map<String, String> ambiguousFields = new HashMap<String, String>();
+		public final Map<String, List<Method>> methods = new HashMap<String, List<Method>>();
+		// names matched by a single method, for lookups by name only
+		public final Map<String, Method> singleMethods = new HashMap<String, Method>();
+		// names matched by more than one method, with error message prepared
+		public final Map<String, String> ambiguousMethods = new HashMap<String, String>();
+		
+		public MemberIndex(Class<?> clazz) {
+			for (Field f : clazz.getFields()) {
+				// not touching static, final nor transient fields
+				if ((f.getModifiers() & Modifier.STATIC) != 0 ||
+						(f.getModifiers() & Modifier.FINAL) != 0 ||
+						(f.getModifiers() & Modifier.TRANSIENT) != 0) continue;
+				String key = lowerName(f.getName());
+				Field found = fields.get(key);
+				if (found == null) fields.put(key, f);
+				else if (!ambiguousFields.containsKey(key))
+					ambiguousFields.put(key, "found `" + found.getName() + "` and `" + f.getName() + "`");
+			}
+			for (Method m : clazz.getMethods()) {
+				String key = lowerName(m.getName());
+				List<Method> ml = methods.get(key);
+				if (ml == null) methods.put(key, ml = new ArrayList<Method>(1));
+				ml.add(m);
+			}
+			for (Map.Entry<String, List<Method>> e : methods.entrySet()) {
+				List<Method> ml = e.getValue();
+				if (ml.size() == 1) singleMethods.put(e.getKey(), ml.get(0));
+				else ambiguousMethods.put(e.getKey(), "found `" + ml.get(0).getName() + "` and `" + ml.get(1).getName() + "`");
+			}
 		}
-		return found;
+	}
+	
+	protected static final ClassValue<MemberIndex> memberIndex = new ClassValue<MemberIndex>() {
+		@Override
+		protected MemberIndex computeValue(Class<?> type) {
+			return new MemberIndex(type);
+		}
+	};
+	
+	protected static String lowerName(String name) {
+		return name.toLowerCase(Locale.ROOT);
+	}
+	
+	protected static Field findField(Class<?> clazz, String fieldName) {
+		MemberIndex index = memberIndex.get(clazz);
+		String key = lowerName(fieldName);
+		String ambiguity = index.ambiguousFields.get(key);
+		if (ambiguity != null) throw new ConfigurationException("multiple matching fields found; looking for `" + fieldName
+				+ "`, " + ambiguity + ", configuration can't be done in this ambiguous situation");
+		return index.fields.get(key);
 	}
 	
 	/** Finds methods with given name, no matter of how much arguments it has. */
 	protected static Method findMethod(Class<?> clazz, String methodName) {
-		return findMethod(clazz, methodName, (Class<?>[]) null);
+		MemberIndex index = memberIndex.get(clazz);
+		String key = lowerName(methodName);
+		String ambiguity = index.ambiguousMethods.get(key);
+		if (ambiguity != null) throw ambiguousMethod(methodName, ambiguity);
+		return index.singleMethods.get(key);
 	}
 	
+	/** Finds method with given name and argument types; trailing null types match missing arguments, other null types any. */
 	protected static Method findMethod(Class<?> clazz, String methodName, Class<?>... argTypes) {
+		if (argTypes == null) return findMethod(clazz, methodName);
+		List<Method> candidates = memberIndex.get(clazz).methods.get(lowerName(methodName));
+		if (candidates == null) return null;
 		Method found = null;
-		int maxArgs = argTypes != null ? argTypes.length : Integer.MAX_VALUE;
-		int minArgs = argTypes != null ? maxArgs : 0;
+		int maxArgs = argTypes.length;
+		int minArgs = maxArgs;
 		while (minArgs > 0 && argTypes[minArgs - 1] == null) minArgs --;
 		method_search:
-		for (Method m : clazz.getMethods()) {
-			if (!m.getName().equalsIgnoreCase(methodName)) continue;
-			if (argTypes != null) {
-				Type[] types = m.getParameterTypes();
-				if (types.length < minArgs || types.length > maxArgs) continue;
-				for (int i = 0; i < types.length; i ++)
-					if (argTypes[i] != null && !types[i].equals(argTypes[i])) continue method_search;
-			}
+		for (Method m : candidates) {
+			Type[] types = m.getParameterTypes();
+			if (types.length < minArgs || types.length > maxArgs) continue;
+			for (int i = 0; i < types.length; i ++)
+				if (argTypes[i] != null && !types[i].equals(argTypes[i])) continue method_search;
 			if (found == null) found = m;
-			else throw new ConfigurationException("ambiguous situation: multiple matching method found; looking for `" + methodName
-					+ "`, found `" + found.getName() + "` and `" + m.getName() + "`, configuration can't be done");
+			else throw ambiguousMethod(methodName, "found `" + found.getName() + "` and `" + m.getName() + "`");
 		}
 		return found;
 	}
+	
+	protected static ConfigurationException ambiguousMethod(String methodName, String ambiguity) {
+		return new ConfigurationException("ambiguous situation: multiple matching method found; looking for `" + methodName
+				+ "`, " + ambiguity + ", configuration can't be done");
+	}
 }
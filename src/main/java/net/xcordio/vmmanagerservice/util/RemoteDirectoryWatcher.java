@@ -0,0 +1,303 @@
+package net.xcordio.vmmanagerservice.util;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.semplar.log.Logger;
+import net.xcordio.vmmanagerservice.util.RemoteFileAccess.HandleRecord;
+import net.xcordio.vmmanagerservice.util.SSHConnectionManager.PooledConnection.Exec;
+
+/**
+ * Watches all directories listened through a {@link RemoteFileAccess} with a single <code>inotifywait</code> process
+ * and a single thread, and routes events to {@link HandleRecord}s of matching directories.
+ * <p>
+ * inotifywait can't add watches to a running process, so when new directory is listened, new process watching all
+ * directories is started, and the old one is closed only once the new one established its watches: other
+ * directories don't miss events meanwhile. Cancelling directories only changes routing. Terminated process, e.g.
+ * because of dropped connection, is restarted with backoff.
+ * @author xcordio
+ */
+public class RemoteDirectoryWatcher {
+	
+	private static final Logger log = Logger.getc();
+	
+	/** Delay before starting a process, so directories listened in a row are watched by single process. */
+	public static final long SETTLE_MILLIS = 200;
+	/** Delays before restarting terminated process: doubled on every failure in a row, up to max. */
+	public static final long RETRY_MILLIS = 1000;
+	public static final long MAX_RETRY_MILLIS = 60000;
+	protected static final String ESTABLISHED = "Watches established.";
+	protected static final AtomicInteger listenerCounter = new AtomicInteger(1);
+	
+	/** Single inotifywait process and the thread reading it. */
+	protected class Watch implements Runnable {
+		
+		public final int seq;
+		public final Set<String> dirs;
+		public final long delayMillis;
+		public final boolean recursive;
+		public final List<String> events;
+		// directories as reported by inotifywait, so event rows share these strings
+		public final String[] dirNames;
+		public final Thread thread;
+		// next fields are synchronized on {@code this}
+		protected Exec command;
+		protected boolean closed;
+		
+		public Watch(int seq, Set<String> dirs, long delayMillis) {
+			this.seq = seq;
+			this.dirs = dirs;
+			this.delayMillis = delayMillis;
+			this.recursive = fa.recursive;
+			this.events = fa.events != null ? new ArrayList<String>(fa.events) : null;
+			this.dirNames = new String[dirs.size()];
+			int i = 0;
+			for (String d : dirs) dirNames[i ++] = d.equals("/") ? d : d + "/";
+			this.thread = new Thread(this);
+			thread.setDaemon(false);
+			thread.setName("Remote Listener #" + listenerCounter.getAndIncrement());
+		}
+		
+		@Override
+		public void run() {
+			try {
+				Thread.sleep(delayMillis);
+			} catch (InterruptedException ie) {
+				return;
+			}
+			synchronized (RemoteDirectoryWatcher.this) {
+				if (seq != requestedSeq) return; // superseded by a process watching more directories
+			}
+			log.verbose("started listening to " + dirs);
+			try {
+				listen();
+			} catch (IOException ioe) {
+				if (!isClosed()) log.error("failed to listen to " + dirs, ioe);
+			} catch (InterruptedException ie) {
+				// closed while waiting for free place in handler queue
+			}
+			boolean unexpected = !isClosed();
+			close();
+			if (unexpected) log.error("inotifywait was terminated, stopped listening to " + dirs);
+			else log.verbose("stopped listening to " + dirs);
+			released(this, unexpected);
+		}
+		
+		protected void listen() throws IOException, InterruptedException {
+			Exec c = fa.getConnection().exec(inotifyCommand(dirs, recursive, events));
+			synchronized (this) {
+				command = c;
+				if (closed) return;
+			}
+			CSVReader csvr = new CSVReader(new InputStreamReader(c.getInputStream(), "utf-8"));
+			EventRow row = new EventRow(dirNames);
+			for (int n; (n = csvr.nextRow(row)) >= 0; ) {
+				if (n == 3) {
+					// unknown actions are not passed further
+					if (row.events != 0 && active == this) route(row.dir, row.key, row.events, row.file, recursive);
+				} else if (n == 1 && ESTABLISHED.equals(row.dir)) {
+					if (established(this)) fa.watchesEstablished(dirs);
+				} else if (n > 0) {
+					log.warn("inotifywait: " + row.dir);
+				}
+			}
+		}
+		
+		public synchronized boolean isClosed() {
+			return closed;
+		}
+		
+		public void close() {
+			Exec c;
+			synchronized (this) {
+				if (closed) return;
+				closed = true;
+				c = command;
+			}
+			thread.interrupt();
+			if (c != null) c.close();
+		}
+	}
+	
+	/**
+	 * Fields of an inotifywait line: directory (or the whole message for diagnostics), events mask and file. Reused for
+	 * every line; directory is mostly the same as of previous line or a watched one, so its strings are reused too.
+	 */
+	protected static class EventRow implements CSVReader.RowHandler {
+		
+		protected final String[] dirNames;
+		public String dir;
+		public String key; // normalized dir
+		public int events; // mask of known events, see FileEvent
+		public String file;
+		
+		public EventRow(String[] dirNames) {
+			this.dirNames = dirNames;
+		}
+		
+		@Override
+		public void handleField(int index, char[] chars, int offset, int length) {
+			if (index == 0) {
+				if (sameChars(dir, chars, offset, length)) return;
+				dir = null;
+				for (String d : dirNames)
+					if (sameChars(d, chars, offset, length)) {
+						dir = d;
+						break;
+					}
+				if (dir == null) dir = new String(chars, offset, length);
+				key = normalize(dir);
+			} else if (index == 1) {
+				events = FileEvent.parseMask(chars, offset, length);
+			} else if (index == 2) {
+				file = new String(chars, offset, length);
+			}
+		}
+		
+		protected static boolean sameChars(String s, char[] chars, int offset, int length) {
+			if (s == null || s.length() != length) return false;
+			for (int i = 0; i < length; i ++)
+				if (s.charAt(i) != chars[offset + i]) return false;
+			return true;
+		}
+	}
+	
+	protected final RemoteFileAccess fa;
+	// routes by normalized directory; replaced as a whole, never modified
+	protected volatile Map<String, List<HandleRecord>> routes = Collections.emptyMap();
+	// the process which events are routed, i.e. latest one which established its watches
+	protected volatile Watch active;
+	// next fields are synchronized on {@code this}
+	protected Watch latest;
+	protected int requestedSeq;
+	protected int failures; // in a row
+	
+	public RemoteDirectoryWatcher(RemoteFileAccess fa) {
+		if (fa == null) throw new NullPointerException();
+		this.fa = fa;
+	}
+	
+	/**
+	 * Sets directories to route events to. New process is started only if some directories are not watched yet.
+	 * @param handlerDirs handle records by directory; lists are not modified after being passed here
+	 */
+	public synchronized void update(Map<String, List<HandleRecord>> handlerDirs) {
+		Map<String, List<HandleRecord>> newRoutes = new HashMap<String, List<HandleRecord>>();
+		for (Map.Entry<String, List<HandleRecord>> e : handlerDirs.entrySet()) {
+			if (e.getValue().isEmpty()) continue;
+			String dir = normalize(e.getKey());
+			List<HandleRecord> rl = newRoutes.get(dir);
+			if (rl == null) newRoutes.put(dir, e.getValue());
+			else {
+				List<HandleRecord> merged = new ArrayList<HandleRecord>(rl);
+				merged.addAll(e.getValue());
+				newRoutes.put(dir, merged);
+			}
+		}
+		routes = newRoutes;
+		if (newRoutes.isEmpty()) {
+			close();
+			return;
+		}
+		if (latest != null && !latest.isClosed() && latest.dirs.containsAll(newRoutes.keySet())) return;
+		start(SETTLE_MILLIS);
+	}
+	
+	/** Stops all processes; may be started again by {@link #update(Map)}. */
+	public synchronized void close() {
+		requestedSeq ++;
+		if (latest != null) latest.close();
+		if (active != null) active.close();
+		latest = active = null;
+	}
+	
+	/** @return false if newer process established its watches first */
+	protected synchronized boolean established(Watch w) {
+		Watch prev = active;
+		if (prev != null && prev.seq > w.seq) {
+			w.close();
+			return false;
+		}
+		active = w;
+		failures = 0;
+		if (prev != null) prev.close();
+		log.verbose("watches established for " + w.dirs);
+		return true;
+	}
+	
+	protected synchronized void released(Watch w, boolean unexpected) {
+		if (w == active) active = null;
+		if (w != latest) return; // newer process is going to watch all directories
+		latest = null;
+		if (unexpected && !routes.isEmpty()) {
+			long delay = Math.min(RETRY_MILLIS << Math.min(failures ++, 16), MAX_RETRY_MILLIS);
+			log.info("restarting listening to " + routes.keySet() + " in " + delay + "ms");
+			start(delay);
+		}
+	}
+	
+	protected synchronized void start(long delayMillis) {
+		latest = new Watch(++ requestedSeq, new LinkedHashSet<String>(routes.keySet()), delayMillis);
+		latest.thread.start();
+	}
+	
+	/**
+	 * Passes event to handlers of matching directories, to be run on workers of {@link RemoteFileAccess#getDispatcher()}.
+	 * All events of a watched directory are dispatched on its key, so they're handled in the order reported: e.g. a
+	 * write isn't handled after the following rename of the file.
+	 */
+	protected void route(final String dir, String key, final int events, final String file, boolean recursive)
+			throws InterruptedException {
+		Map<String, List<HandleRecord>> r = routes;
+		KeyedDispatcher dispatcher = fa.getDispatcher();
+		String dispatchKey = null;
+		for (;;) {
+			List<HandleRecord> rl = r.get(key);
+			if (rl != null) for (final HandleRecord hr : rl) {
+				if ((hr.eventMask & events) == 0) continue;
+				if (dispatchKey == null) dispatchKey = key;
+				dispatcher.dispatch(dispatchKey, new Runnable() {
+					@Override
+					public void run() {
+						hr.handler.handleEvents(fa, dir, events, file);
+					}
+				});
+			}
+			// events of subdirectories are routed to watched parent directories
+			if (!recursive || key.equals("/")) break;
+			int slash = key.lastIndexOf('/');
+			if (slash < 0) break;
+			key = slash == 0 ? "/" : key.substring(0, slash);
+		}
+	}
+	
+	/** @return directory path without trailing slashes */
+	protected static String normalize(String dir) {
+		int end = dir.length();
+		while (end > 1 && dir.charAt(end - 1) == '/') end --;
+		return dir.substring(0, end);
+	}
+	
+	/**
+	 * @return shell command running inotifywait for existing directories of given ones; its errors are merged into
+	 * output, so they're logged and {@link #ESTABLISHED} is noticed
+	 */
+	protected static String inotifyCommand(Set<String> dirs, boolean recursive, List<String> events) {
+		StringBuilder sb = new StringBuilder("exec 2>&1; set --; for d in");
+		for (String d : dirs) sb.append(' ').append(RemoteFileAccess.quotedFilename(d));
+		sb.append("; do if [ -d \"$d\" ]; then set -- \"$@\" \"$d\"; else echo \"Couldn't watch $d: not a directory\"; fi; done; ");
+		sb.append("exec inotifywait -m -c");
+		if (recursive) sb.append(" -r");
+		if (events != null) for (String e : events) sb.append(" -e ").append(RemoteFileAccess.quotedFilename(e));
+		sb.append(" -- \"$@\"");
+		return sb.toString();
+	}
+}
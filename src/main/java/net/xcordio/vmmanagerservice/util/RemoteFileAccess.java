@@ -1,20 +1,37 @@
 package net.xcordio.vmmanagerservice.util;
 
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.TimeUnit;
 
-import net.schmizz.sshj.SSHClient;
-import net.schmizz.sshj.connection.channel.direct.Session.Command;
+import net.schmizz.concurrent.Promise;
+import net.schmizz.sshj.sftp.FileAttributes;
+import net.schmizz.sshj.sftp.FileMode;
+import net.schmizz.sshj.sftp.OpenMode;
+import net.schmizz.sshj.sftp.PacketType;
+import net.schmizz.sshj.sftp.RemoteFile;
+import net.schmizz.sshj.sftp.Response;
+import net.schmizz.sshj.sftp.SFTPEngine;
+import net.schmizz.sshj.sftp.SFTPException;
 import net.semplar.log.Logger;
+import net.xcordio.vmmanagerservice.util.SSHConnectionManager.PooledConnection;
+import net.xcordio.vmmanagerservice.util.SSHConnectionManager.PooledConnection.Exec;
 
 public class RemoteFileAccess implements FileAccess {
 	
@@ -25,10 +42,15 @@ public class RemoteFileAccess implements FileAccess {
 		l.hostname = "semplar.net";
 		l.username = "testuser";
 		l.password = "testpass_xMVdPP@~";
-		l.listenTo("/tmp/a b", new Handler() {
+		l.listenTo("/tmp/a b", new EventHandler() {
 			@Override
-			public void handleEvents(FileAccess fa, String dir, List<String> actions, String file) {
-				System.out.println(actions + ": " + dir + file);
+			public int getEventMask() {
+				return FileEvent.ALL;
+			}
+			
+			@Override
+			public void handleEvents(FileAccess fa, String dir, int events, String file) {
+				System.out.println(FileEvent.toSet(events) + ": " + dir + file);
 			}
 		});
 	}
@@ -36,13 +58,13 @@ public class RemoteFileAccess implements FileAccess {
 	protected static class HandleRecord {
 		
 		public final String directory;
-		public final Handler handler;
-		public final Thread thread;
+		public final EventHandler handler;
+		public final int eventMask; // of the handler, read once
 		
-		public HandleRecord(String dir, Handler h, Thread t) {
+		public HandleRecord(String dir, EventHandler h) {
 			this.directory = dir;
 			this.handler = h;
-			this.thread = t;
+			this.eventMask = h.getEventMask();
 		}
 	}
 	
@@ -50,10 +72,23 @@ public class RemoteFileAccess implements FileAccess {
 	public int port = 22;
 	public String username;
 	public String password;
-	//
-	protected SSHClient sshClient;
+	/** If subdirectories of listened directories are watched too. */
+	public boolean recursive;
+	/** inotify events to watch; all events are watched if null. */
+	public List<String> events = new ArrayList<String>(Arrays.asList("close_write", "delete", "moved_from", "moved_to"));
+	// handlers run on workers, see {@link KeyedDispatcher}; read when listening starts
+	public int workers = 4;
+	public int queueCapacity = 1024;
+	public String backpressure = "block"; // "block" reading events, or "drop" them while the queue is full
+	/** If files are read, written and checked through single SFTP channel of the connection, instead of commands. */
+	public boolean sftp;
+	/** Max size of file read by {@link #readBytes(String)}, in bytes. */
+	public int maxFileSize = 16 * 1024 * 1024;
 	// next fields are synchronized on {@code this}
+	protected PooledConnection connection;
 	protected final Map<String, List<HandleRecord>> handlerDirs = new HashMap<String, List<HandleRecord>>();
+	protected RemoteDirectoryWatcher watcher;
+	protected KeyedDispatcher dispatcher;
 	
 	public RemoteFileAccess() {
 	}
@@ -64,106 +99,380 @@ public class RemoteFileAccess implements FileAccess {
 		this.password = password;
 	}
 	
-	protected SSHClient getSSHClient() throws IOException {
-		if (sshClient == null) {
-			sshClient = new SSHClient();
-			sshClient.loadKnownHosts();
-			sshClient.connect(hostname, port);
-			sshClient.authPassword(username, password);
-		}
-		return sshClient;
+	/** @return connection shared with other users of the same host, see {@link SSHConnectionManager} */
+	protected synchronized PooledConnection getConnection() {
+		if (connection == null)
+			connection = SSHConnectionManager.getInstance().acquire(hostname, port, username, password);
+		return connection;
 	}
 	
-	protected static final AtomicInteger listenerCounter = new AtomicInteger(1);
-	public synchronized void listenTo(final String directory, final Handler handler) {
+	/** All directories are watched by single process, see {@link RemoteDirectoryWatcher}. */
+	@Override
+	public synchronized void listenTo(String directory, EventHandler handler) {
 		if (handler == null) throw new NullPointerException();
-		final Thread thread = new Thread(new Runnable() {
-			public void run() {
-				log.verbose("started listening to " + directory);
-				try {
-					Command c = getSSHClient().startSession().exec("inotifywait -m -c " + quotedFilename(directory));
-					InputStreamReader isr = new InputStreamReader(c.getInputStream(), "utf-8");
-					CSVReader csvr = new CSVReader(isr);
-					for (List<String> csv; ; ) {
-						if (Thread.currentThread().isInterrupted()) {
-							log.error("thread was interrupted, exiting");
-							break;
-						}
-						if ((csv = csvr.nextCsv()) == null) {
-							log.error("inotifywait was terminated, exiting");
-							break;
-						}
-						if (csv.size() != 3) throw new IOException("corrupt inotify format: expected 3 values: dir, events and filename, but got size " + csv.size() + ": " + csv);
-						handler.handleEvents(RemoteFileAccess.this, csv.get(0), Arrays.asList(csv.get(1).split(",")), csv.get(2));
-					}
-					isr.close();
-					c.close();
-				} catch (IOException ioe) {
-					throw new RuntimeException();
-				}
-				log.verbose("stopped listening to " + directory);
-			}
-		});
-		thread.setDaemon(false);
-		thread.setName("Remote Listener #" + listenerCounter.getAndIncrement());
-		HandleRecord rec = new HandleRecord(directory, handler, thread);
 		List<HandleRecord> rl = handlerDirs.get(directory);
-		if (rl == null) handlerDirs.put(directory, rl = new ArrayList<HandleRecord>());
-		rl.add(rec);
-		thread.start();
+		// lists are copied on change, as the watcher routes events through them concurrently
+		rl = rl != null ? new ArrayList<HandleRecord>(rl) : new ArrayList<HandleRecord>(1);
+		rl.add(new HandleRecord(directory, handler));
+		handlerDirs.put(directory, rl);
+		updateWatcher();
 	}
 	
-	@SuppressWarnings("unused")
-	public void stopListen() throws IOException {
-		getSSHClient().close();
+	/** Cancels all listeners and releases the connection. */
+	public synchronized void stopListen() {
+		handlerDirs.clear();
+		if (watcher != null) watcher.close();
+		if (dispatcher != null) dispatcher.shutdown();
+		dispatcher = null;
+		if (connection != null) connection.release();
+		connection = null;
+	}
+	
+	@Override
+	public void listenTo(String directory, Handler handler) {
+		listenTo(directory, FileEvent.adapt(handler));
 	}
 	
 	@Override
-	public synchronized void cancelListen(String dir, Handler handler) {
+	public synchronized void cancelListen(String dir, EventHandler handler) {
 		List<HandleRecord> rl = handlerDirs.get(dir);
-		if (rl != null)
-			for (Iterator<HandleRecord> hi = rl.iterator(); hi.hasNext(); ) {
-				HandleRecord hr = hi.next();
-				if (hr.handler == handler) {
-					hr.thread.interrupt();
-					hi.remove();
-				}
-			}
+		if (rl == null) return;
+		List<HandleRecord> nrl = new ArrayList<HandleRecord>(rl.size());
+		for (HandleRecord hr : rl)
+			if (!hr.handler.equals(handler)) nrl.add(hr);
+		if (nrl.size() == rl.size()) return;
+		if (nrl.isEmpty()) handlerDirs.remove(dir);
+		else handlerDirs.put(dir, nrl);
+		updateWatcher();
+	}
+	
+	@Override
+	public void cancelListen(String dir, Handler handler) {
+		cancelListen(dir, FileEvent.adapt(handler));
 	}
 	
 	@Override
 	public synchronized void cancelListen(String dir) {
-		List<HandleRecord> rl = handlerDirs.get(dir);
-		if (rl == null || rl.isEmpty()) return;
-		for (Iterator<HandleRecord> hi = rl.iterator(); hi.hasNext(); ) {
-			HandleRecord hr = hi.next();
-			hr.thread.interrupt();
-			hi.remove();
+		if (handlerDirs.remove(dir) != null) updateWatcher();
+	}
+	
+	/**
+	 * Called once watches of given directories are established, i.e. no changes of them are missed since now: on start,
+	 * when directories are added, and after reconnect.
+	 */
+	protected void watchesEstablished(Collection<String> dirs) {
+	}
+	
+	/** @return dispatcher running handlers; events of the same file are handled in order */
+	protected synchronized KeyedDispatcher getDispatcher() {
+		if (dispatcher == null) dispatcher = new KeyedDispatcher("Remote Handler " + hostname, workers, queueCapacity,
+				KeyedDispatcher.Backpressure.parse(backpressure));
+		return dispatcher;
+	}
+	
+	protected synchronized void updateWatcher() {
+		if (watcher == null) {
+			if (handlerDirs.isEmpty()) return;
+			watcher = new RemoteDirectoryWatcher(this);
 		}
+		watcher.update(handlerDirs);
 	}
 	
+	/** In {@link #sftp} mode stream reads straight into buffers passed to it, a request per read. */
 	@Override
 	public InputStream readFile(String filename) throws IOException {
-		Command c = getSSHClient().startSession().exec("cat " + quotedFilename(filename));
-		return c.getInputStream();
+		if (!sftp) return getConnection().exec("cat " + quotedFilename(filename)).getInputStream();
+		final RemoteFile rf = getConnection().sftp().open(filename, EnumSet.of(OpenMode.READ));
+		return new FilterInputStream(rf.new RemoteFileInputStream(0)) {
+			@Override
+			public void close() throws IOException {
+				try {
+					super.close();
+				} finally {
+					rf.close();
+				}
+			}
+		};
 	}
 	
 	@Override
 	public OutputStream writeFile(String filename) throws IOException {
-		Command c = getSSHClient().startSession().exec("cat > " + quotedFilename(filename));
-		return c.getOutputStream();
+		if (!sftp) return getConnection().exec("cat > " + quotedFilename(filename)).getOutputStream();
+		final RemoteFile rf = getConnection().sftp().open(filename, EnumSet.of(OpenMode.WRITE, OpenMode.CREAT, OpenMode.TRUNC));
+		return new FilterOutputStream(rf.new RemoteFileOutputStream(0)) {
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+			}
+			
+			@Override
+			public void close() throws IOException {
+				try {
+					super.close();
+				} finally {
+					rf.close();
+				}
+			}
+		};
+	}
+	
+	/**
+	 * Reads whole file at once.
+	 * @throws IOException if file is larger than {@link #maxFileSize}
+	 */
+	public byte[] readBytes(String filename) throws IOException {
+		InputStream is = readFile(filename);
+		try {
+			ByteArrayOutputStream bout = new ByteArrayOutputStream();
+			byte[] buf = new byte[8192];
+			for (int n; (n = is.read(buf)) != -1; ) {
+				if (bout.size() + n > maxFileSize) throw new IOException(filename + " is larger than " + maxFileSize + " bytes");
+				bout.write(buf, 0, n);
+			}
+			return bout.toByteArray();
+		} finally {
+			is.close();
+		}
+	}
+	
+	/**
+	 * Reads file of given version, as {@link #stat stat} returned it, with a single ranged read into a buffer of its
+	 * size; file grown since is read whole.
+	 * @throws IOException if file is larger than {@link #maxFileSize}
+	 */
+	public byte[] readBytes(FileInfo f) throws IOException {
+		if (f.size > maxFileSize) throw new IOException(f.getPath() + " is larger than " + maxFileSize + " bytes");
+		byte[] buf = new byte[(int) f.size + 1];
+		int n = read(f.getPath(), 0, buf, 0, buf.length);
+		if (n > f.size) return readBytes(f.getPath());
+		return Arrays.copyOf(buf, Math.max(n, 0));
+	}
+	
+	/**
+	 * Reads part of a file into given buffer.
+	 * @return count of bytes read, less than requested only at the end of file, or -1 if offset is beyond it
+	 */
+	public int read(String filename, long offset, byte[] buf, int off, int len) throws IOException {
+		if (!sftp) {
+			Exec e = getConnection().exec("dd if=" + quotedFilename(filename) + " iflag=skip_bytes,count_bytes skip=" + offset
+					+ " count=" + len + " bs=65536 status=none");
+			try {
+				int n = readFully(e.getInputStream(), buf, off, len);
+				if (e.waitFor() != 0) throw new IOException("failed to read " + filename);
+				return n == 0 && len > 0 ? -1 : n;
+			} finally {
+				e.close();
+			}
+		}
+		RemoteFile rf = getConnection().sftp().open(filename, EnumSet.of(OpenMode.READ));
+		try {
+			int total = 0;
+			while (total < len) {
+				// servers return less than requested, e.g. OpenSSH up to 64KiB
+				int n = rf.read(offset + total, buf, off + total, len - total);
+				if (n <= 0) break;
+				total += n;
+			}
+			return total == 0 && len > 0 ? -1 : total;
+		} finally {
+			rf.close();
+		}
 	}
 	
 	@Override
 	public boolean isFile(String filename) throws IOException {
-		Command c = getSSHClient().startSession().exec("test -f " + quotedFilename(filename));
-		return c.getExitStatus() == 0;
+		if (!sftp) return test("-f", filename);
+		FileAttributes attrs = getConnection().sftp().statExistence(filename);
+		return attrs != null && attrs.getType() == FileMode.Type.REGULAR;
 	}
 	
 	@Override
 	public boolean isDir(String filename) throws IOException {
-		Command c = getSSHClient().startSession().exec("test -d " + quotedFilename(filename));
-		return c.getExitStatus() == 0;
+		if (!sftp) return test("-d", filename);
+		FileAttributes attrs = getConnection().sftp().statExistence(filename);
+		return attrs != null && attrs.getType() == FileMode.Type.DIRECTORY;
+	}
+	
+	/**
+	 * Stats files at once: in {@link #sftp} mode all requests are sent before waiting for responses, otherwise a single
+	 * find command is run. Modification time has a second resolution in SFTP mode, as of {@link #listFiles} too.
+	 * @return regular files of given paths by path; missing files and other file types are skipped
+	 */
+	public Map<String, FileInfo> stat(Collection<String> paths) throws IOException {
+		Map<String, FileInfo> files = new HashMap<String, FileInfo>();
+		if (paths.isEmpty()) return files;
+		if (!sftp) {
+			for (Iterator<String> pi = paths.iterator(); pi.hasNext(); ) {
+				StringBuilder sb = new StringBuilder("find");
+				for (int i = 0; i < READ_BATCH && pi.hasNext(); i ++) sb.append(' ').append(quotedFilename(pi.next()));
+				sb.append(" -maxdepth 0 -type f -printf '%h/\\0%f\\0%T@\\0%s\\0' 2>/dev/null");
+				for (FileInfo f : parseFileInfos(execOutput(sb.toString()))) files.put(f.getPath(), f);
+			}
+			return files;
+		}
+		SFTPEngine engine = getConnection().sftp().getSFTPEngine();
+		Map<String, Promise<Response, SFTPException>> responses = new LinkedHashMap<String, Promise<Response, SFTPException>>();
+		for (String p : paths) responses.put(p, engine.request(engine.newRequest(PacketType.STAT).putString(p)));
+		for (Map.Entry<String, Promise<Response, SFTPException>> e : responses.entrySet()) {
+			Response res = e.getValue().retrieve(engine.getTimeoutMs(), TimeUnit.MILLISECONDS);
+			if (res.getType() != PacketType.ATTRS) continue; // status of failure, e.g. no such file
+			FileAttributes attrs = res.readFileAttributes();
+			if (attrs.getType() != FileMode.Type.REGULAR) continue;
+			String path = e.getKey();
+			int slash = path.lastIndexOf('/');
+			files.put(path, new FileInfo(path.substring(0, slash + 1), path.substring(slash + 1),
+					attrs.getMtime() * 1000000000L, attrs.getSize()));
+		}
+		return files;
+	}
+	
+	/**
+	 * Computes MD5 checksums of files remotely, in batches, each one with a single md5sum command; SFTP has no
+	 * checksum support in common servers, so commands are run in {@link #sftp} mode too.
+	 * @return lowercase hex checksums by path; files which can't be read are skipped
+	 */
+	public Map<String, String> checksums(Collection<String> paths) throws IOException {
+		Map<String, String> sums = new HashMap<String, String>();
+		for (Iterator<String> pi = paths.iterator(); pi.hasNext(); ) {
+			StringBuilder sb = new StringBuilder("md5sum --");
+			for (int i = 0; i < READ_BATCH && pi.hasNext(); i ++) sb.append(' ').append(quotedFilename(pi.next()));
+			sb.append(" 2>/dev/null");
+			for (String line : new String(execOutput(sb.toString()), StandardCharsets.UTF_8).split("\n")) {
+				// names with newline or backslash are escaped, and the line is prefixed with backslash
+				boolean escaped = line.startsWith("\\");
+				if (escaped) line = line.substring(1);
+				if (line.length() < 34 || line.charAt(32) != ' ') continue;
+				String path = line.substring(34);
+				if (escaped) path = unescape(path);
+				sums.put(path, line.substring(0, 32));
+			}
+		}
+		return sums;
+	}
+	
+	/** @return name escaped by md5sum, with <code>\\n</code> and <code>\\\\</code> replaced back */
+	protected static String unescape(String name) {
+		StringBuilder sb = new StringBuilder(name.length());
+		for (int i = 0; i < name.length(); i ++) {
+			char c = name.charAt(i);
+			if (c == '\\' && i + 1 < name.length()) {
+				c = name.charAt(++ i);
+				if (c == 'n') c = '\n';
+			}
+			sb.append(c);
+		}
+		return sb.toString();
+	}
+	
+	/** @return lowercase hex MD5 of given content, comparable to {@link #checksums(Collection)} */
+	public static String checksum(byte[] data, int offset, int length) {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		md.update(data, offset, length);
+		StringBuilder sb = new StringBuilder(32);
+		for (byte b : md.digest()) sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		return sb.toString();
+	}
+	
+	protected byte[] execOutput(String command) throws IOException {
+		Exec e = getConnection().exec(command);
+		try {
+			return readAll(e.getInputStream());
+		} finally {
+			e.close();
+		}
+	}
+	
+	protected boolean test(String option, String filename) throws IOException {
+		Exec e = getConnection().exec("test " + option + " " + quotedFilename(filename));
+		try {
+			return e.waitFor() == 0;
+		} finally {
+			e.close();
+		}
+	}
+	
+	/** Count of files fetched by a single tar command, so command line stays well below server limits. */
+	public static final int READ_BATCH = 256;
+	
+	/**
+	 * Lists all directories with a single find command. In {@link #sftp} mode modification time is truncated to
+	 * seconds, so it's comparable to {@link #stat}.
+	 */
+	@Override
+	public List<FileInfo> listFiles(Collection<String> dirs) throws IOException {
+		List<FileInfo> files = new ArrayList<FileInfo>();
+		if (dirs.isEmpty()) return files;
+		StringBuilder sb = new StringBuilder("find");
+		for (String d : dirs) sb.append(' ').append(quotedFilename(d));
+		if (!recursive) sb.append(" -maxdepth 1");
+		// NUL separated, as names may contain any other character
+		sb.append(" -type f -printf '%h/\\0%f\\0%T@\\0%s\\0' 2>/dev/null");
+		files.addAll(parseFileInfos(execOutput(sb.toString())));
+		return files;
+	}
+	
+	/** @return files of find's <code>-printf '%h/\0%f\0%T@\0%s\0'</code> output */
+	protected List<FileInfo> parseFileInfos(byte[] out) {
+		List<FileInfo> files = new ArrayList<FileInfo>();
+		String[] values = new String(out, StandardCharsets.UTF_8).split("\0", -1);
+		for (int i = 0; i + 4 <= values.length; i += 4) {
+			String dir = values[i];
+			if (dir.endsWith("//")) dir = dir.substring(0, dir.length() - 1);
+			long mtime = parseNanos(values[i + 2]);
+			// SFTP has no better resolution
+			if (sftp) mtime -= mtime % 1000000000L;
+			files.add(new FileInfo(dir, values[i + 1], mtime, Long.parseLong(values[i + 3])));
+		}
+		return files;
+	}
+	
+	/** Reads files in batches, each one with a single tar command. */
+	@Override
+	public void readFiles(Collection<String> paths, ContentHandler handler) throws IOException {
+		List<String> batch = new ArrayList<String>(Math.min(paths.size(), READ_BATCH));
+		for (Iterator<String> pi = paths.iterator(); pi.hasNext(); ) {
+			batch.add(pi.next());
+			if (batch.size() < READ_BATCH && pi.hasNext()) continue;
+			StringBuilder sb = new StringBuilder("tar -cPf - --");
+			for (String p : batch) sb.append(' ').append(quotedFilename(p));
+			sb.append(" 2>/dev/null");
+			Exec e = getConnection().exec(sb.toString());
+			try {
+				TarReader tr = new TarReader(e.getInputStream());
+				for (TarReader.Entry entry; (entry = tr.next()) != null; )
+					if (entry.isFile()) handler.handleContent(entry.name, entry.content);
+			} finally {
+				e.close();
+			}
+			batch.clear();
+		}
+	}
+	
+	/** @return count of bytes read, less than requested only at the end of stream */
+	protected static int readFully(InputStream is, byte[] buf, int off, int len) throws IOException {
+		int total = 0;
+		for (int n; total < len && (n = is.read(buf, off + total, len - total)) != -1; ) total += n;
+		return total;
+	}
+	
+	protected static byte[] readAll(InputStream is) throws IOException {
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		byte[] buf = new byte[8192];
+		for (int n; (n = is.read(buf)) != -1; ) bout.write(buf, 0, n);
+		return bout.toByteArray();
+	}
+	
+	/** @return nanoseconds of find's %T@ time, e.g. "1476000000.1234567890" */
+	protected static long parseNanos(String time) {
+		int dot = time.indexOf('.');
+		if (dot < 0) return Long.parseLong(time) * 1000000000L;
+		String frac = (time.substring(dot + 1) + "000000000").substring(0, 9);
+		return Long.parseLong(time.substring(0, dot)) * 1000000000L + Long.parseLong(frac);
 	}
 	
 	/** @return filename ready to be added to shell command. */
@@ -0,0 +1,306 @@
+package net.xcordio.vmmanagerservice.util;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.schmizz.keepalive.KeepAliveProvider;
+import net.schmizz.sshj.DefaultConfig;
+import net.schmizz.sshj.SSHClient;
+import net.schmizz.sshj.connection.channel.direct.Session.Command;
+import net.schmizz.sshj.sftp.SFTPClient;
+import net.semplar.log.Logger;
+
+/**
+ * Shares authenticated SSH connections by host, port and user, so every command costs a channel only, not a
+ * connection with host key check and authentication.
+ * <p>
+ * Connections send keep-alives, are reconnected transparently when dropped, and limit count of concurrently open
+ * channels (see {@link #maxChannels}), as servers refuse sessions above their limit. Every connection may have a single
+ * shared SFTP channel too, which is counted in the limit.
+ * @author xcordio
+ */
+public class SSHConnectionManager {
+	
+	private static final Logger log = Logger.getc();
+	
+	protected static final SSHConnectionManager instance = new SSHConnectionManager();
+	
+	public static SSHConnectionManager getInstance() {
+		return instance;
+	}
+	
+	/** Max count of open channels per connection; OpenSSH allows 10 sessions by default. Read on connection creation. */
+	public int maxChannels = 8;
+	/** Interval of keep-alive messages, in seconds. Read on connect. */
+	public int keepAliveSeconds = 15;
+	/** How long to wait for command to finish after its input is closed, in seconds. */
+	public int closeTimeoutSeconds = 30;
+	//
+	protected final DefaultConfig config = new DefaultConfig();
+	// next fields are synchronized on {@code this}
+	protected final Map<String, PooledConnection> connections = new HashMap<String, PooledConnection>();
+	// metrics
+	protected final AtomicLong connects = new AtomicLong();
+	protected final AtomicLong reconnects = new AtomicLong();
+	protected final LatencyStats connectLatency = new LatencyStats();
+	protected final LatencyStats sessionOpenLatency = new LatencyStats();
+	
+	public SSHConnectionManager() {
+		config.setKeepAliveProvider(KeepAliveProvider.KEEP_ALIVE);
+	}
+	
+	/**
+	 * @return shared connection to given host; it's connected lazily, and must be {@link PooledConnection#release()
+	 * released} once not used anymore
+	 */
+	public synchronized PooledConnection acquire(String hostname, int port, String username, String password) {
+		String key = username + "@" + hostname + ":" + port;
+		PooledConnection c = connections.get(key);
+		if (c == null) connections.put(key, c = new PooledConnection(key, hostname, port, username, password));
+		c.refs ++;
+		return c;
+	}
+	
+	protected synchronized void release(PooledConnection c) {
+		if (-- c.refs > 0) return;
+		connections.remove(c.key);
+		c.disconnect();
+	}
+	
+	public long getConnects() {
+		return connects.get();
+	}
+	
+	public long getReconnects() {
+		return reconnects.get();
+	}
+	
+	public LatencyStats getConnectLatency() {
+		return connectLatency;
+	}
+	
+	/** @return latency of opening a session and starting a command on already established connection */
+	public LatencyStats getSessionOpenLatency() {
+		return sessionOpenLatency;
+	}
+	
+	protected static void closeQuietly(Closeable c) {
+		if (c != null) try {
+			c.close();
+		} catch (IOException ioe) { }
+	}
+	
+	public class PooledConnection {
+		
+		public final String key;
+		public final String hostname;
+		public final int port;
+		public final String username;
+		protected final String password;
+		protected final Semaphore channels;
+		protected final int channelLimit;
+		// synchronized on {@code this}
+		protected SSHClient client;
+		protected SFTPClient sftp;
+		protected SSHClient sftpOwner; // client the sftp channel was opened on
+		protected final AtomicBoolean sftpPermit = new AtomicBoolean();
+		// synchronized on the manager
+		protected int refs;
+		
+		protected PooledConnection(String key, String hostname, int port, String username, String password) {
+			this.key = key;
+			this.hostname = hostname;
+			this.port = port;
+			this.username = username;
+			this.password = password;
+			this.channelLimit = maxChannels;
+			this.channels = new Semaphore(channelLimit, true);
+		}
+		
+		/** @return connected client, connecting it if wasn't connected or connection was dropped */
+		protected synchronized SSHClient client() throws IOException {
+			if (client != null) {
+				if (client.isConnected() && client.isAuthenticated()) return client;
+				log.warn("ssh connection to " + key + " was dropped, reconnecting");
+				closeQuietly(client);
+				client = null;
+				reconnects.incrementAndGet();
+			}
+			long start = System.nanoTime();
+			SSHClient c = new SSHClient(config);
+			try {
+				c.getConnection().getKeepAlive().setKeepAliveInterval(keepAliveSeconds);
+				c.loadKnownHosts();
+				c.connect(hostname, port);
+				c.authPassword(username, password);
+			} catch (IOException ioe) {
+				closeQuietly(c);
+				throw ioe;
+			}
+			connectLatency.recordSince(start);
+			connects.incrementAndGet();
+			return client = c;
+		}
+		
+		protected synchronized void invalidate(SSHClient c) {
+			if (client != c) return;
+			closeQuietly(client);
+			client = null;
+		}
+		
+		/**
+		 * Starts command in new session, waiting for a free channel if all are used.
+		 * @return started command; it must be closed, either directly or by closing its stream
+		 */
+		public Exec exec(String command) throws IOException {
+			try {
+				channels.acquire();
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted while waiting for free ssh channel to " + key);
+			}
+			boolean started = false;
+			try {
+				long start = System.nanoTime();
+				SSHClient c = client();
+				Command cmd;
+				try {
+					cmd = c.startSession().exec(command);
+				} catch (IOException ioe) {
+					if (c.isConnected()) throw ioe;
+					// connection was dropped before keep-alive noticed it: command is not started, so it's retried
+					invalidate(c);
+					cmd = client().startSession().exec(command);
+				}
+				sessionOpenLatency.recordSince(start);
+				Exec e = new Exec(cmd);
+				started = true;
+				return e;
+			} finally {
+				if (!started) channels.release();
+			}
+		}
+		
+		/**
+		 * @return SFTP client shared by all users of this connection; it's opened lazily, and reopened after reconnect.
+		 * Requests of concurrent users are pipelined on the single channel.
+		 */
+		public SFTPClient sftp() throws IOException {
+			// the channel holds its permit until disconnect; taken out of the lock, as commands release theirs without it
+			if (sftpPermit.compareAndSet(false, true)) try {
+				channels.acquire();
+			} catch (InterruptedException ie) {
+				sftpPermit.set(false);
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted while waiting for free ssh channel to " + key);
+			}
+			synchronized (this) {
+				SSHClient c = client();
+				if (sftp != null && sftpOwner == c) return sftp;
+				closeQuietly(sftp);
+				sftp = null;
+				long start = System.nanoTime();
+				try {
+					sftp = c.newSFTPClient();
+				} catch (IOException ioe) {
+					if (c.isConnected()) throw ioe;
+					invalidate(c);
+					sftp = (c = client()).newSFTPClient();
+				}
+				sessionOpenLatency.recordSince(start);
+				sftpOwner = c;
+				return sftp;
+			}
+		}
+		
+		public int getActiveChannels() {
+			return channelLimit - channels.availablePermits();
+		}
+		
+		/** Disconnects once every user of this connection released it. */
+		public void release() {
+			SSHConnectionManager.this.release(this);
+		}
+		
+		protected synchronized void disconnect() {
+			closeQuietly(sftp);
+			sftp = null;
+			sftpOwner = null;
+			if (sftpPermit.compareAndSet(true, false)) channels.release();
+			closeQuietly(client);
+			client = null;
+		}
+		
+		/** Command started on a pooled connection; closing it or its streams frees the channel. */
+		public class Exec implements Closeable {
+			
+			public final Command command;
+			protected final AtomicBoolean closed = new AtomicBoolean();
+			
+			protected Exec(Command command) {
+				this.command = command;
+			}
+			
+			public InputStream getInputStream() {
+				return new FilterInputStream(command.getInputStream()) {
+					@Override
+					public void close() throws IOException {
+						try {
+							super.close();
+						} finally {
+							Exec.this.close();
+						}
+					}
+				};
+			}
+			
+			/** @return command input; closing it sends EOF and waits for command to finish */
+			public OutputStream getOutputStream() {
+				return new FilterOutputStream(command.getOutputStream()) {
+					@Override
+					public void write(byte[] b, int off, int len) throws IOException {
+						out.write(b, off, len);
+					}
+					
+					@Override
+					public void close() throws IOException {
+						try {
+							super.close();
+							command.join(closeTimeoutSeconds, TimeUnit.SECONDS);
+						} finally {
+							Exec.this.close();
+						}
+					}
+				};
+			}
+			
+			/** @return exit status of the command, or -1 if it's unknown */
+			public int waitFor() throws IOException {
+				command.join();
+				Integer status = command.getExitStatus();
+				return status != null ? status : -1;
+			}
+			
+			@Override
+			public void close() {
+				if (!closed.compareAndSet(false, true)) return;
+				try {
+					closeQuietly(command);
+				} finally {
+					channels.release();
+				}
+			}
+		}
+	}
+}
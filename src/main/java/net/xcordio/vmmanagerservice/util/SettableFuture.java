@@ -0,0 +1,170 @@
+package net.xcordio.vmmanagerservice.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import net.semplar.log.Logger;
+
+/**
+ * {@link java.util.concurrent.Future} completed by whoever produces its result, rather than by running a task.
+ * Listeners run once it's done, either by the completing thread or at once if it's done already.
+ * <p>
+ * Futures are composed with {@link #thenApply(Transform)} and {@link #thenCompose(Transform)}, named as methods of
+ * Java 8 <code>CompletionStage</code>: failure and cancellation pass to composed futures as is.
+ * @author xcordio
+ */
+public class SettableFuture<T> extends FutureTask<T> {
+	
+	private static final Logger log = Logger.getc();
+	
+	/** Function of a result; exceptions it throws fail the composed future. */
+	public interface Transform<A, R> {
+		R apply(A value) throws Exception;
+	}
+	
+	protected static final Runnable NOP = new Runnable() {
+		@Override
+		public void run() {
+		}
+	};
+	
+	// synchronized on {@code this}; null once listeners were run
+	protected List<Runnable> listeners = new ArrayList<Runnable>(1);
+	
+	public SettableFuture() {
+		super(NOP, null);
+	}
+	
+	/** @return future having given result already */
+	public static <T> SettableFuture<T> done(T value) {
+		SettableFuture<T> f = new SettableFuture<T>();
+		f.set(value);
+		return f;
+	}
+	
+	/** @return future failed with given exception already */
+	public static <T> SettableFuture<T> failed(Throwable t) {
+		SettableFuture<T> f = new SettableFuture<T>();
+		f.setException(t);
+		return f;
+	}
+	
+	/** Does nothing: result is set, not computed. */
+	@Override
+	public void run() {
+	}
+	
+	/** Sets result, unless the future is done already. */
+	@Override
+	public void set(T value) {
+		super.set(value);
+	}
+	
+	/** Sets failure, unless the future is done already. */
+	@Override
+	public void setException(Throwable t) {
+		super.setException(t);
+	}
+	
+	public void addListener(Runnable listener) {
+		synchronized (this) {
+			if (listeners != null) {
+				listeners.add(listener);
+				return;
+			}
+		}
+		runListener(listener);
+	}
+	
+	@Override
+	protected void done() {
+		List<Runnable> l;
+		synchronized (this) {
+			l = listeners;
+			listeners = null;
+		}
+		for (Runnable r : l) runListener(r);
+	}
+	
+	/** @return future of given function of the result of this one */
+	public <R> SettableFuture<R> thenApply(final Transform<? super T, ? extends R> transform) {
+		final SettableFuture<R> composed = new SettableFuture<R>();
+		addListener(new Runnable() {
+			@Override
+			public void run() {
+				if (!forwardFailure(composed)) return;
+				try {
+					composed.set(transform.apply(getDone()));
+				} catch (Exception e) {
+					composed.setException(e);
+				}
+			}
+		});
+		return composed;
+	}
+	
+	/** @return future of the future which given function returns for the result of this one */
+	public <R> SettableFuture<R> thenCompose(final Transform<? super T, ? extends SettableFuture<R>> transform) {
+		final SettableFuture<R> composed = new SettableFuture<R>();
+		addListener(new Runnable() {
+			@Override
+			public void run() {
+				if (!forwardFailure(composed)) return;
+				final SettableFuture<R> next;
+				try {
+					next = transform.apply(getDone());
+				} catch (Exception e) {
+					composed.setException(e);
+					return;
+				}
+				next.addListener(new Runnable() {
+					@Override
+					public void run() {
+						if (next.forwardFailure(composed)) composed.set(next.getDone());
+					}
+				});
+			}
+		});
+		return composed;
+	}
+	
+	/**
+	 * Passes failure or cancellation of this done future to given one.
+	 * @return true if this future has result
+	 */
+	protected boolean forwardFailure(SettableFuture<?> to) {
+		if (isCancelled()) {
+			to.cancel(false);
+			return false;
+		}
+		try {
+			get();
+			return true;
+		} catch (ExecutionException ee) {
+			to.setException(ee.getCause());
+		} catch (InterruptedException | CancellationException e) {
+			to.cancel(false);
+		}
+		return false;
+	}
+	
+	/** @return result of this future, which is done and succeeded */
+	protected T getDone() {
+		try {
+			return get();
+		} catch (InterruptedException | ExecutionException e) {
+			throw new IllegalStateException("future is not succeeded", e);
+		}
+	}
+	
+	protected static void runListener(Runnable r) {
+		try {
+			r.run();
+		} catch (RuntimeException e) {
+			log.error("future listener failed", e);
+		}
+	}
+}
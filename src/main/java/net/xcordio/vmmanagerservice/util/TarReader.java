@@ -0,0 +1,134 @@
+package net.xcordio.vmmanagerservice.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Minimal reader of tar streams, as written by GNU tar: ustar headers, GNU long names and pax paths are supported.
+ * Entries are read sequentially, content of each is read at once.
+ * @author xcordio
+ */
+public class TarReader {
+	
+	protected static final int BLOCK = 512;
+	
+	public static class Entry {
+		
+		public final String name;
+		public final char type;
+		public final byte[] content;
+		
+		public Entry(String name, char type, byte[] content) {
+			this.name = name;
+			this.type = type;
+			this.content = content;
+		}
+		
+		public boolean isFile() {
+			return type == '0' || type == '\0';
+		}
+	}
+	
+	protected final InputStream is;
+	protected final byte[] header = new byte[BLOCK];
+	
+	public TarReader(InputStream is) {
+		if (is == null) throw new NullPointerException();
+		this.is = is;
+	}
+	
+	/** @return next entry, or null at the end of archive */
+	public Entry next() throws IOException {
+		String longName = null;
+		for (;;) {
+			if (!readBlock(header)) return null;
+			if (header[0] == 0) return null; // end of archive marker
+			long size = parseOctal(header, 124, 12);
+			if (size > Integer.MAX_VALUE) throw new IOException("tar entry is too large: " + size);
+			char type = (char) header[156];
+			byte[] content = new byte[(int) size];
+			readFully(content);
+			skipPadding(size);
+			if (type == 'L') {
+				longName = cString(content, 0, content.length);
+			} else if (type == 'x') {
+				String path = paxPath(content);
+				if (path != null) longName = path;
+			} else if (type == 'g') {
+				// global pax header, nothing to use there
+			} else {
+				String name = longName;
+				if (name == null) {
+					name = cString(header, 0, 100);
+					String prefix = cString(header, 345, 155);
+					if (!prefix.isEmpty()) name = prefix + "/" + name;
+				}
+				return new Entry(name, type, content);
+			}
+		}
+	}
+	
+	protected boolean readBlock(byte[] b) throws IOException {
+		int n = 0;
+		while (n < b.length) {
+			int r = is.read(b, n, b.length - n);
+			if (r < 0) {
+				if (n == 0) return false;
+				throw new EOFException("truncated tar header");
+			}
+			n += r;
+		}
+		return true;
+	}
+	
+	protected void readFully(byte[] b) throws IOException {
+		for (int n = 0; n < b.length; ) {
+			int r = is.read(b, n, b.length - n);
+			if (r < 0) throw new EOFException("truncated tar entry");
+			n += r;
+		}
+	}
+	
+	protected void skipPadding(long size) throws IOException {
+		int pad = (int) ((BLOCK - size % BLOCK) % BLOCK);
+		if (pad > 0) readFully(new byte[pad]);
+	}
+	
+	protected static long parseOctal(byte[] b, int off, int len) throws IOException {
+		if ((b[off] & 0x80) != 0) {
+			// base-256 encoding of large numbers
+			long v = b[off] & 0x7f;
+			for (int i = 1; i < len; i ++) v = (v << 8) | (b[off + i] & 0xff);
+			return v;
+		}
+		long v = 0;
+		for (int i = off; i < off + len; i ++) {
+			byte c = b[i];
+			if (c == 0 || c == ' ') {
+				if (v != 0) break;
+				continue;
+			}
+			if (c < '0' || c > '7') throw new IOException("corrupt tar header: bad octal digit " + c);
+			v = (v << 3) + (c - '0');
+		}
+		return v;
+	}
+	
+	protected static String cString(byte[] b, int off, int len) {
+		int end = off;
+		while (end < off + len && b[end] != 0) end ++;
+		return new String(b, off, end - off, StandardCharsets.UTF_8);
+	}
+	
+	/** @return path record of pax extended header, records are "LENGTH path=VALUE\n" */
+	protected static String paxPath(byte[] content) {
+		String s = new String(content, StandardCharsets.UTF_8);
+		for (String rec : s.split("\n")) {
+			int sp = rec.indexOf(' ');
+			if (sp > 0 && rec.startsWith("path=", sp + 1)) return rec.substring(sp + 6);
+		}
+		return null;
+	}
+}
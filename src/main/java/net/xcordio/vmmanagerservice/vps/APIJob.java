@@ -1,8 +1,46 @@
 package net.xcordio.vmmanagerservice.vps;
 
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import net.xcordio.vmmanagerservice.util.SettableFuture;
+
+/**
+ * Job running at a provider. Completion is delivered through {@link #getFuture()}, so jobs are composed without
+ * a thread waiting for each of them; failures are passed as thrown by provider API.
+ */
 public interface APIJob<T> {
 	
+	public enum State {
+		/** Not started by provider yet. */
+		QUEUED,
+		RUNNING,
+		SUCCEEDED,
+		/** Failed, or missed its deadline. */
+		FAILED,
+		CANCELLED;
+	}
+	
 	public String getDescription();
 	public boolean isComplete();
+	public State getState();
+	
+	/** @return future of the result; listeners run on a thread tracking jobs, so they're expected to be quick */
+	public SettableFuture<T> getFuture();
+	
+	/** Fails the job with {@link TimeoutException} unless it completes in given time. */
+	public APIJob<T> withDeadline(long timeout, TimeUnit unit);
+	
+	/**
+	 * Stops waiting for the job; provider may still complete the job itself.
+	 * @return false if the job is complete already
+	 */
+	public boolean cancel();
+	
+	/** @throws IllegalStateException if the job failed, with the failure as the cause */
 	public T waitForResult() throws IllegalStateException;
+	
+	/** Waits for result, throwing failure of the job as is. */
+	public T getResult(long timeout, TimeUnit unit) throws IOException, InterruptedException, TimeoutException;
 }
@@ -0,0 +1,301 @@
+package net.xcordio.vmmanagerservice.vps;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+
+import net.semplar.log.Logger;
+import net.xcordio.vmmanagerservice.util.SettableFuture;
+
+/**
+ * Steps of provisioning an instance, run as a dependency graph: every step is started once all steps it depends on
+ * succeed, so independent steps overlap. Results of succeeded steps are checkpointed in order of completion; once any
+ * step fails, no more steps are started, and succeeded ones are rolled back in reverse order after running ones settle.
+ * So dependents are always rolled back before steps they depend on, and nothing that wasn't done is undone.
+ * <p>
+ * Steps are started by threads completing their dependencies, so starting a step is expected not to block: long
+ * operations return a future, e.g. of an {@link APIJob}. Start and end of every step are recorded, see
+ * {@link #getTimingReport()}.
+ * @author xcordio
+ */
+public class ProvisioningPipeline {
+	
+	private static final Logger log = Logger.getc();
+	
+	public static abstract class Step<T> {
+		
+		protected final String name;
+		protected final List<Step<?>> dependencies;
+		protected final SettableFuture<T> result = new SettableFuture<T>();
+		protected volatile long startNanos;
+		protected volatile long endNanos;
+		
+		public Step(String name, Step<?>... dependencies) {
+			this.name = name;
+			this.dependencies = Collections.unmodifiableList(new ArrayList<Step<?>>(Arrays.asList(dependencies)));
+		}
+		
+		/** Starts the step; results of dependencies are available by their {@link #get()}. */
+		protected abstract SettableFuture<T> start() throws Exception;
+		
+		/** Undoes the step once the pipeline failed. Does nothing by default, i.e. for steps changing nothing. */
+		protected void rollback(T result) throws Exception {
+		}
+		
+		public String getName() {
+			return name;
+		}
+		
+		public List<Step<?>> getDependencies() {
+			return dependencies;
+		}
+		
+		/** @return result of the step, which succeeded */
+		public T get() {
+			try {
+				return result.get();
+			} catch (InterruptedException | ExecutionException | CancellationException e) {
+				throw new IllegalStateException("step " + name + " is not succeeded", e);
+			}
+		}
+		
+		public boolean isSucceeded() {
+			if (!result.isDone() || result.isCancelled()) return false;
+			try {
+				result.get();
+				return true;
+			} catch (InterruptedException | ExecutionException e) {
+				return false;
+			}
+		}
+		
+		/** @return time the step took or is taking, in nanoseconds; 0 if not started */
+		public long getDurationNanos() {
+			long start = startNanos, end = endNanos;
+			if (start == 0) return 0;
+			return (end != 0 ? end : System.nanoTime()) - start;
+		}
+		
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+	
+	protected final String name;
+	protected final List<Step<?>> steps = new ArrayList<Step<?>>();
+	protected final Map<Step<?>, List<Step<?>>> dependents = new HashMap<Step<?>, List<Step<?>>>();
+	// synchronized on {@code this}
+	protected final Set<Step<?>> started = new HashSet<Step<?>>();
+	protected final List<Step<?>> checkpoint = new ArrayList<Step<?>>(); // succeeded steps in order of completion
+	protected int running;
+	protected Step<?> failedStep;
+	protected Throwable failure;
+	protected long startNanos;
+	protected long endNanos;
+	
+	public ProvisioningPipeline(String name) {
+		this.name = name;
+	}
+	
+	/**
+	 * Adds given step; steps it depends on are to be added before, so the graph has no cycles.
+	 * @return given step
+	 */
+	public synchronized <S extends Step<?>> S add(S step) {
+		if (startNanos != 0) throw new IllegalStateException("pipeline is started already");
+		if (dependents.containsKey(step)) throw new IllegalArgumentException("step " + step + " is added already");
+		for (Step<?> d : step.dependencies)
+			if (!dependents.containsKey(d)) throw new IllegalArgumentException("step " + step + " depends on " + d
+					+ " which is not added");
+		steps.add(step);
+		dependents.put(step, new ArrayList<Step<?>>());
+		for (Step<?> d : step.dependencies) dependents.get(d).add(step);
+		return step;
+	}
+	
+	/**
+	 * Runs all steps and waits for them. Once some step fails, waits for running steps and rolls back succeeded ones.
+	 * Interrupting fails the pipeline too, but it still waits for running steps to roll them back.
+	 * @throws IOException failure of the first failed step, as is if it's an {@link IOException}
+	 */
+	public void run() throws IOException {
+		List<Step<?>> roots = new ArrayList<Step<?>>();
+		synchronized (this) {
+			if (startNanos != 0) throw new IllegalStateException("pipeline is started already");
+			startNanos = System.nanoTime();
+			for (Step<?> s : steps)
+				if (s.dependencies.isEmpty()) roots.add(s);
+			started.addAll(roots);
+			running += roots.size();
+		}
+		for (Step<?> s : roots) startStep(s);
+		boolean interrupted = false;
+		synchronized (this) {
+			while (running > 0) {
+				try {
+					wait();
+				} catch (InterruptedException ie) {
+					interrupted = true;
+					if (failure == null) failure = new InterruptedIOException("provisioning is interrupted");
+				}
+			}
+			endNanos = System.nanoTime();
+		}
+		if (interrupted) Thread.currentThread().interrupt();
+		Throwable t;
+		synchronized (this) {
+			t = failure;
+		}
+		log.info(getTimingReport());
+		if (t == null) return;
+		log.error(name + " failed at step " + failedStep + ": " + t + "; rolling back");
+		rollback();
+		if (t instanceof IOException) throw (IOException) t;
+		if (t instanceof Error) throw (Error) t;
+		throw new IOException(name + " failed at step " + failedStep, t);
+	}
+	
+	protected <T> void startStep(final Step<T> step) {
+		step.startNanos = System.nanoTime();
+		final SettableFuture<T> f;
+		try {
+			f = step.start();
+		} catch (Exception | Error e) {
+			step.result.setException(e);
+			settled(step);
+			return;
+		}
+		f.addListener(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					step.result.set(f.get());
+				} catch (ExecutionException ee) {
+					step.result.setException(ee.getCause());
+				} catch (InterruptedException | CancellationException e) {
+					step.result.setException(e);
+				}
+				settled(step);
+			}
+		});
+	}
+	
+	/** Checkpoints result of given done step, and starts steps which dependencies are all succeeded. */
+	protected void settled(Step<?> step) {
+		step.endNanos = System.nanoTime();
+		List<Step<?>> next = new ArrayList<Step<?>>();
+		synchronized (this) {
+			running --;
+			if (step.isSucceeded()) {
+				checkpoint.add(step);
+				if (failure == null) {
+					dependent_search:
+					for (Step<?> d : dependents.get(step)) {
+						if (started.contains(d)) continue;
+						for (Step<?> dd : d.dependencies)
+							if (!dd.isSucceeded()) continue dependent_search;
+						next.add(d);
+					}
+					started.addAll(next);
+					running += next.size();
+				}
+			} else if (failure == null) {
+				failedStep = step;
+				try {
+					step.result.get();
+				} catch (ExecutionException ee) {
+					failure = ee.getCause();
+				} catch (InterruptedException | CancellationException e) {
+					failure = e;
+				}
+			}
+			notifyAll();
+		}
+		// not holding the lock, as steps may complete at once
+		for (Step<?> s : next) startStep(s);
+	}
+	
+	/** Rolls back succeeded steps in reverse order; failures of rolling back are logged, and others go on. */
+	protected void rollback() {
+		List<Step<?>> done;
+		synchronized (this) {
+			done = new ArrayList<Step<?>>(checkpoint);
+		}
+		Collections.reverse(done);
+		for (Step<?> s : done) rollbackStep(s);
+	}
+	
+	protected <T> void rollbackStep(Step<T> step) {
+		try {
+			long start = System.nanoTime();
+			step.rollback(step.get());
+			log.info(name + ": rolled back " + step + " in " + seconds(System.nanoTime() - start));
+		} catch (Exception e) {
+			log.error(name + ": failed to roll back " + step, e);
+		}
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	public synchronized List<Step<?>> getSteps() {
+		return new ArrayList<Step<?>>(steps);
+	}
+	
+	/** @return succeeded steps, in order of completion */
+	public synchronized List<Step<?>> getCheckpoint() {
+		return new ArrayList<Step<?>>(checkpoint);
+	}
+	
+	/** @return time from start to the end of the last step, in nanoseconds */
+	public synchronized long getWallNanos() {
+		if (startNanos == 0) return 0;
+		return (endNanos != 0 ? endNanos : System.nanoTime()) - startNanos;
+	}
+	
+	/** @return sum of times of all steps, i.e. time they'd take one after another, in nanoseconds */
+	public long getStepsNanos() {
+		long n = 0;
+		for (Step<?> s : getSteps()) n += s.getDurationNanos();
+		return n;
+	}
+	
+	/** @return wall clock time, time saved by running steps concurrently, and start offset and time of every step */
+	public String getTimingReport() {
+		long wall = getWallNanos(), total = getStepsNanos();
+		long start;
+		synchronized (this) {
+			start = startNanos;
+		}
+		StringBuilder sb = new StringBuilder();
+		sb.append(name).append(": ").append(seconds(wall)).append(" wall clock, ").append(seconds(total))
+				.append(" in steps, ").append(seconds(Math.max(0, total - wall))).append(" saved by overlap");
+		for (Step<?> s : getSteps()) {
+			sb.append("\n  ").append(s).append(": ");
+			if (s.startNanos == 0) {
+				sb.append("not started");
+				continue;
+			}
+			sb.append("+").append(seconds(s.startNanos - start)).append(", took ").append(seconds(s.getDurationNanos()));
+			if (!s.result.isDone()) sb.append(", running");
+			else if (!s.isSucceeded()) sb.append(", failed");
+		}
+		return sb.toString();
+	}
+	
+	protected static String seconds(long nanos) {
+		return String.format(Locale.ROOT, "%.3fs", nanos / 1e9);
+	}
+}
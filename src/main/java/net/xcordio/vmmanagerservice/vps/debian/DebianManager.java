@@ -1,10 +1,10 @@
 package net.xcordio.vmmanagerservice.vps.debian;
 
-import net.schmizz.sshj.SSHClient;
-import net.schmizz.sshj.connection.channel.direct.Session;
 import net.semplar.log.Logger;
 import net.xcordio.vmmanagerservice.util.CSVReader;
 import net.xcordio.vmmanagerservice.util.RemoteFileAccess;
+import net.xcordio.vmmanagerservice.util.SSHConnectionManager;
+import net.xcordio.vmmanagerservice.util.SSHConnectionManager.PooledConnection;
 import net.xcordio.vmmanagerservice.vps.AbstractManager;
 
 import java.io.IOException;
@@ -25,58 +25,49 @@ public class DebianManager implements AbstractManager {
 	protected String username;
 	protected String password;
 	//
-	private SSHClient sshClient;
+	private PooledConnection connection;
 	
-	protected SSHClient getSSHClient() throws IOException {
-		if (sshClient == null) {
-			sshClient = new SSHClient();
-			sshClient.loadKnownHosts();
-			sshClient.connect(hostname, port);
-			sshClient.authPassword(username, password);
-		}
-		return sshClient;
+	/** @return connection shared with other users of the same host, see {@link SSHConnectionManager} */
+	protected synchronized PooledConnection getConnection() {
+		if (connection == null)
+			connection = SSHConnectionManager.getInstance().acquire(hostname, port, username, password);
+		return connection;
 	}
 	
-	public final static String is_package_installed = "dpkg-query -f '${Status} @@ ${binary:Package}\n' -W | grep -v '^deinstall ok config-files @@ ' | grep '^.* @@ %s$' > /dev/null";
-	public final static String install_package = "DEBIAN_FRONTEND=noninteractive apt-get install -y %s";
-	public final static String uninstall_package = "DEBIAN_FRONTEND=noninteractive apt-get remove -y %s";
+	/** Releases the connection; it's acquired again on next command. */
+	public synchronized void close() {
+		if (connection != null) connection.release();
+		connection = null;
+	}
 	
-	@Override
-	public boolean installPackage(String packageName, String version) throws IOException {
-		Session.Command c = getSSHClient().startSession().exec(install_package.replaceFirst("%s", packageName));
+	/** @return true if command exited with zero status; its output is skipped */
+	protected boolean execSucceeds(String command) throws IOException {
+		PooledConnection.Exec c = getConnection().exec(command);
 		try {
 			InputStream is = c.getInputStream();
 			for (byte[] buf = new byte[4096]; is.read(buf) > 0; ) { /* empty */ }
-			is.close();
+			return c.waitFor() == 0;
 		} finally {
 			c.close();
 		}
-		return c.getExitStatus() == 0;
+	}
+	
+	public final static String is_package_installed = "dpkg-query -f '${Status} @@ ${binary:Package}\n' -W | grep -v '^deinstall ok config-files @@ ' | grep '^.* @@ %s$' > /dev/null";
+	public final static String install_package = "DEBIAN_FRONTEND=noninteractive apt-get install -y %s";
+	public final static String uninstall_package = "DEBIAN_FRONTEND=noninteractive apt-get remove -y %s";
+	
+	@Override
+	public boolean installPackage(String packageName, String version) throws IOException {
+		return execSucceeds(install_package.replaceFirst("%s", packageName));
 	}
 	
 	@Override
 	public boolean uninstallPackage(String packageName, String version) throws IOException {
-		Session.Command c = getSSHClient().startSession().exec(uninstall_package.replaceFirst("%s", packageName));
-		try {
-			InputStream is = c.getInputStream();
-			for (byte[] buf = new byte[4096]; is.read(buf) > 0; ) { /* empty */ }
-			is.close();
-		} finally {
-			c.close();
-		}
-		return c.getExitStatus() == 0;
+		return execSucceeds(uninstall_package.replaceFirst("%s", packageName));
 	}
 	
 	@Override
 	public boolean isPackageInstalled(String packageName) throws IOException {
-		Session.Command c = getSSHClient().startSession().exec(is_package_installed.replaceFirst("%s", packageName));
-		try {
-			InputStream is = c.getInputStream();
-			for (byte[] buf = new byte[4096]; is.read(buf) > 0; ) { /* empty */ }
-			is.close();
-		} finally {
-			c.close();
-		}
-		return c.getExitStatus() == 0;
+		return execSucceeds(is_package_installed.replaceFirst("%s", packageName));
 	}
 }
@@ -1,5 +1,8 @@
 package net.xcordio.vmmanagerservice.vps.linode;
 
+import net.xcordio.vmmanagerservice.util.ReflectiveConfig;
+
+@ReflectiveConfig.Configurable
 public class DatacenterInfo {
 	
 	public int id;
@@ -9,6 +12,11 @@ public class DatacenterInfo {
 	public DatacenterInfo() {
 	}
 	
+	/** Binds DATACENTERID of API records. Is called reflectively. */
+	public void onDatacenterIdChange(int id) {
+		this.id = id;
+	}
+	
 	@Override
 	public String toString() {
 		return "DatacenterInfo[id=" + id + ",location=" + location + ",abbr=" + abbr + "]";
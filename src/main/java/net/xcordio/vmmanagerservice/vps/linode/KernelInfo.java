@@ -1,5 +1,8 @@
 package net.xcordio.vmmanagerservice.vps.linode;
 
+import net.xcordio.vmmanagerservice.util.ReflectiveConfig;
+
+@ReflectiveConfig.Configurable
 public class KernelInfo {
 	
 	public int id;
@@ -8,6 +11,11 @@ public class KernelInfo {
 	public int isXen;
 	public int isPvops;
 	
+	/** Binds KERNELID of API records. Is called reflectively. */
+	public void onKernelIdChange(int id) {
+		this.id = id;
+	}
+	
 	@Override
 	public String toString() {
 		return "LinodeKernel[id=" + id + ",label=" + label + ",isKvm=" + isKvm + ",isXen=" + isXen + ",isPvops=" + isPvops + "]";
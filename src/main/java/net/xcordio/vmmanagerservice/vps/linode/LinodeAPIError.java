@@ -8,6 +8,13 @@ public class LinodeAPIError extends IOException {
 	
 	private static final long serialVersionUID = 8764725799186958993L;
 	
+	/** ERRORCODE of calls with invalid API key. */
+	public static final int AUTHENTICATION_FAILED = 4;
+	/** ERRORCODE of calls of objects which don't exist, e.g. deleted Linodes. */
+	public static final int OBJECT_NOT_FOUND = 5;
+	/** ERRORCODE of calls rejected because of API rate limit; such calls are not done, so they can be retried. */
+	public static final int RATE_LIMIT_EXCEEDED = 14;
+	
 	protected int errorCode;
 	protected String action;
 	
@@ -18,6 +25,11 @@ public class LinodeAPIError extends IOException {
 		this (obj, null);
 	}
 	
+	public LinodeAPIError(int errorCode, String message) {
+		super (message);
+		this.errorCode = errorCode;
+	}
+	
 	public LinodeAPIError(Throwable t) {
 		super (t);
 	}
@@ -27,6 +39,18 @@ public class LinodeAPIError extends IOException {
 		errorCode = obj.getInt("ERRORCODE");
 	}
 	
+	public int getErrorCode() {
+		return errorCode;
+	}
+	
+	public boolean isNotFound() {
+		return errorCode == OBJECT_NOT_FOUND;
+	}
+	
+	public boolean isThrottled() {
+		return errorCode == RATE_LIMIT_EXCEEDED;
+	}
+	
 	public LinodeAPIError withAction(String action) {
 		this.action = action;
 		return this;
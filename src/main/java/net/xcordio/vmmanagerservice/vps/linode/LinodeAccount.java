@@ -0,0 +1,90 @@
+package net.xcordio.vmmanagerservice.vps.linode;
+
+import net.xcordio.vmmanagerservice.util.AdaptiveRateLimiter;
+import net.xcordio.vmmanagerservice.util.ReflectiveConfig;
+
+/**
+ * Linode account, i.e. API key, of {@link LinodeProvider}. Every account has its own rate limiter and health, and
+ * count of Linodes it owns, which new Linodes are spread by; see {@link LinodeProvider#placement}.
+ * @author xcordio
+ */
+@ReflectiveConfig.Configurable
+public class LinodeAccount {
+	
+	/** Name used in logs. */
+	public String name;
+	public String apiKey;
+	/** Share of new Linodes placed to this account, relative to other accounts. */
+	public int weight = 1;
+	/** Max count of Linodes of this account, e.g. its quota; 0 means no limit. */
+	public int maxLinodes;
+	// synchronized on {@code this}
+	protected AdaptiveRateLimiter rateLimiter;
+	protected int linodes; // owned ones, including ones being created
+	protected int currentWeight; // of smooth weighted round-robin; synchronized on the provider
+	protected int failures; // in a row
+	protected long unhealthyUntilMillis;
+	
+	public LinodeAccount() {
+	}
+	
+	public LinodeAccount(String name, String apiKey) {
+		this.name = name;
+		this.apiKey = apiKey;
+	}
+	
+	/** @return true unless too many calls failed in a row lately */
+	public synchronized boolean isHealthy() {
+		return unhealthyUntilMillis == 0 || System.currentTimeMillis() >= unhealthyUntilMillis;
+	}
+	
+	/** @return true if the account is healthy and may own one more Linode */
+	public synchronized boolean canTakeLinode() {
+		return isHealthy() && (maxLinodes <= 0 || linodes < maxLinodes);
+	}
+	
+	public synchronized int getLinodes() {
+		return linodes;
+	}
+	
+	protected synchronized void addLinode() {
+		linodes ++;
+	}
+	
+	protected synchronized void removeLinode() {
+		if (linodes > 0) linodes --;
+	}
+	
+	protected synchronized void setLinodes(int linodes) {
+		this.linodes = linodes;
+	}
+	
+	protected synchronized void succeeded() {
+		failures = 0;
+		unhealthyUntilMillis = 0;
+	}
+	
+	/**
+	 * Counts failed call; once given count of calls failed in a row, the account is not used for given time.
+	 * @param fatal if the account can't be used at all, e.g. its key is rejected
+	 */
+	protected synchronized void failed(boolean fatal, int maxFailures, long cooldownMillis) {
+		failures ++;
+		if (fatal || failures >= maxFailures) unhealthyUntilMillis = System.currentTimeMillis() + cooldownMillis;
+	}
+	
+	/** @return load of the account, i.e. count of in-flight and queued calls */
+	public synchronized int getLoad() {
+		return rateLimiter != null ? rateLimiter.getInFlight() + rateLimiter.getQueued() : 0;
+	}
+	
+	public synchronized AdaptiveRateLimiter getRateLimiter() {
+		return rateLimiter;
+	}
+	
+	@Override
+	public synchronized String toString() {
+		return "LinodeAccount[name=" + name + ",weight=" + weight + ",linodes=" + linodes + (maxLinodes > 0 ? "/" + maxLinodes : "")
+				+ ",healthy=" + isHealthy() + ",failures=" + failures + (rateLimiter != null ? ",limiter=" + rateLimiter : "") + "]";
+	}
+}
@@ -0,0 +1,119 @@
+package net.xcordio.vmmanagerservice.vps.linode;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONObject;
+
+import net.xcordio.vmmanagerservice.util.SettableFuture;
+
+/**
+ * API calls sent together, as <code>batch</code> requests of at most {@link LinodeProvider#maxBatchSize} calls.
+ * Results and errors, e.g. {@link LinodeAPIError}, are passed to every call separately. Calls are queued until
+ * {@link #send()}, so results of calls are not to be waited for before that.
+ * @author xcordio
+ */
+public class LinodeBatch {
+	
+	/** Single call of a batch; completed once the batch response is received. */
+	protected static class Call extends SettableFuture<Object> {
+		
+		public final String action;
+		public final JSONObject params;
+		public final Class<?> recordType;
+		public int retries; // count of times the call was throttled and re-sent
+		public SettableFuture<LinodeAccount> resolving; // account, see LinodeProvider#accountFor
+		public LinodeAccount account; // making the call, once resolved
+		
+		public Call(String action, JSONObject params, Class<?> recordType) {
+			this.action = action;
+			this.params = params;
+			this.recordType = recordType;
+		}
+	}
+	
+	protected final LinodeProvider provider;
+	// synchronized on {@code this}
+	protected final List<Call> calls = new ArrayList<Call>();
+	protected boolean sent;
+	
+	public LinodeBatch(LinodeProvider provider) {
+		if (provider == null) throw new NullPointerException();
+		this.provider = provider;
+	}
+	
+	public SettableFuture<Object> call(String action, JSONObject params) {
+		return call(action, params, null);
+	}
+	
+	/**
+	 * @param recordType if not null, DATA is expected to be list of records bound to this class
+	 * @return result of the call, or failure of choosing its account, see {@link LinodeProvider#accountFor}
+	 */
+	public SettableFuture<Object> call(String action, JSONObject params, Class<?> recordType) {
+		// not holding the lock, as owners of Linodes may be listed
+		return call(provider.accountFor(action, params), action, params, recordType);
+	}
+	
+	/** @param account future of account making the call; the batch is sent once accounts of all calls are known */
+	protected synchronized SettableFuture<Object> call(SettableFuture<LinodeAccount> account, final String action,
+													  final JSONObject params, Class<?> recordType) {
+		if (sent) throw new IllegalStateException("batch is sent already");
+		final Call c = new Call(action, params, recordType);
+		c.resolving = account;
+		calls.add(c);
+		return account.thenCompose(new SettableFuture.Transform<LinodeAccount, SettableFuture<Object>>() {
+			@Override
+			public SettableFuture<Object> apply(LinodeAccount a) {
+				return provider.track(a, action, params, c);
+			}
+		});
+	}
+	
+	public synchronized int size() {
+		return calls.size();
+	}
+	
+	/**
+	 * Sends queued calls; subsequent calls are not accepted. Calls which accounts are known are sent at once; the rest
+	 * are sent together once all of their accounts are known, as they usually wait for the same listing of owners.
+	 */
+	public void send() {
+		final List<Call> resolved = new ArrayList<Call>();
+		final List<Call> resolving = new ArrayList<Call>();
+		synchronized (this) {
+			if (sent) return;
+			sent = true;
+			for (Call c : calls) (c.resolving.isDone() ? resolved : resolving).add(c);
+		}
+		if (!resolved.isEmpty()) sendResolved(resolved);
+		if (resolving.isEmpty()) return;
+		final AtomicInteger pending = new AtomicInteger(resolving.size());
+		Runnable listener = new Runnable() {
+			@Override
+			public void run() {
+				if (pending.decrementAndGet() == 0) sendResolved(resolving);
+			}
+		};
+		for (Call c : resolving) c.resolving.addListener(listener);
+	}
+	
+	/** Sends calls which accounts are resolved; others fail as their accounts did. */
+	protected void sendResolved(List<Call> calls) {
+		List<Call> l = new ArrayList<Call>();
+		for (Call c : calls) {
+			try {
+				c.account = c.resolving.get();
+				l.add(c);
+			} catch (ExecutionException ee) {
+				c.setException(ee.getCause());
+			} catch (InterruptedException | CancellationException e) {
+				c.cancel(false);
+			}
+		}
+		if (!l.isEmpty()) provider.sendBatch(l);
+	}
+}
@@ -0,0 +1,314 @@
+package net.xcordio.vmmanagerservice.vps.linode;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import net.semplar.log.Logger;
+import net.xcordio.vmmanagerservice.util.JSONStreamBinder;
+import net.xcordio.vmmanagerservice.util.SettableFuture;
+import net.xcordio.vmmanagerservice.vps.linode.DistributionInfo.OSType;
+
+/**
+ * Cache of <code>avail.*</code> records, which change a few times a year.
+ * <p>
+ * Records are fetched once and served until they're older than TTL; then they're still served, while being refreshed
+ * in background. Concurrent callers share a single fetch. Fetched records are saved to a snapshot file, so restarted
+ * service has them at once, without calling API.
+ * @author xcordio
+ */
+public class LinodeCatalog {
+	
+	private static final Logger log = Logger.getc();
+	
+	/** Delay before retrying failed background refresh, in milliseconds. */
+	public static final long RETRY_MILLIS = 60000;
+	
+	/** Records of a single endpoint, as fetched at some time. Immutable. */
+	protected static class Fetched<T> {
+		
+		public final List<T> records;
+		public final JSONArray raw; // as returned by API, to be saved
+		public final long fetchedMillis;
+		
+		public Fetched(List<T> records, JSONArray raw, long fetchedMillis) {
+			this.records = Collections.unmodifiableList(records);
+			this.raw = raw;
+			this.fetchedMillis = fetchedMillis;
+		}
+	}
+	
+	/** Single cached endpoint. */
+	protected class Endpoint<T> {
+		
+		public final String action;
+		public final Class<T> type;
+		protected volatile Fetched<T> fetched;
+		// synchronized on {@code this}
+		protected SettableFuture<Fetched<T>> loading;
+		protected boolean refreshScheduled;
+		
+		public Endpoint(String action, Class<T> type) {
+			this.action = action;
+			this.type = type;
+		}
+		
+		public List<T> get() throws IOException {
+			Fetched<T> f = fetched;
+			if (f == null) return load().records;
+			if (System.currentTimeMillis() - f.fetchedMillis >= ttlMillis) scheduleRefresh(0);
+			return f.records;
+		}
+		
+		/** @return freshly fetched records; fetch is shared with concurrent callers */
+		protected Fetched<T> load() throws IOException {
+			SettableFuture<Fetched<T>> f;
+			boolean mine = false;
+			synchronized (this) {
+				if (loading == null) {
+					loading = new SettableFuture<Fetched<T>>();
+					mine = true;
+				}
+				f = loading;
+			}
+			if (mine) try {
+				JSONArray raw = (JSONArray) provider.doGET(action, null);
+				Fetched<T> nf = new Fetched<T>(bind(raw), raw, System.currentTimeMillis());
+				set(nf);
+				f.set(nf);
+				saveSnapshot();
+			} catch (IOException | RuntimeException e) {
+				f.setException(e);
+			} finally {
+				synchronized (this) {
+					loading = null;
+				}
+			}
+			return LinodeProvider.getResult(f);
+		}
+		
+		protected List<T> bind(JSONArray raw) throws IOException {
+			return new JSONStreamBinder(new StringReader(raw.toString())).setLenient(true).bindList(type);
+		}
+		
+		protected void set(Fetched<T> f) {
+			fetched = f;
+			indexed(this);
+			scheduleRefresh(Math.max(ttlMillis - (System.currentTimeMillis() - f.fetchedMillis), 0));
+		}
+		
+		protected synchronized void scheduleRefresh(long delayMillis) {
+			if (refreshScheduled || closed) return;
+			refreshScheduled = true;
+			timer().schedule(new Runnable() {
+				@Override
+				public void run() {
+					synchronized (Endpoint.this) {
+						refreshScheduled = false;
+					}
+					try {
+						load();
+					} catch (IOException | RuntimeException e) {
+						log.warn("failed to refresh " + action + ", retrying in " + RETRY_MILLIS + "ms: " + e);
+						scheduleRefresh(Math.min(RETRY_MILLIS, ttlMillis));
+					}
+				}
+			}, delayMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	protected final LinodeProvider provider;
+	protected final long ttlMillis;
+	protected final File snapshot;
+	protected final Endpoint<LinodeDistribution> distributions = new Endpoint<LinodeDistribution>("avail.distributions", LinodeDistribution.class);
+	protected final Endpoint<KernelInfo> kernels = new Endpoint<KernelInfo>("avail.kernels", KernelInfo.class);
+	protected final Endpoint<LinodePlanInfo> plans = new Endpoint<LinodePlanInfo>("avail.linodeplans", LinodePlanInfo.class);
+	protected final Endpoint<DatacenterInfo> datacenters = new Endpoint<DatacenterInfo>("avail.datacenters", DatacenterInfo.class);
+	protected final List<Endpoint<?>> endpoints = Collections.unmodifiableList(Arrays.<Endpoint<?>>asList(distributions, kernels, plans, datacenters));
+	// indexes, replaced as a whole
+	protected volatile Map<String, LinodeDistribution> distributionIndex = Collections.emptyMap();
+	protected volatile List<LinodePlanInfo> planIndex = Collections.emptyList();
+	protected volatile Map<String, DatacenterInfo> datacenterIndex = Collections.emptyMap();
+	// synchronized on {@code this}
+	protected ScheduledThreadPoolExecutor timer;
+	protected volatile boolean closed;
+	
+	/** @param snapshot file records are saved to and loaded from, or null */
+	public LinodeCatalog(LinodeProvider provider, long ttlMillis, File snapshot) {
+		if (provider == null) throw new NullPointerException();
+		this.provider = provider;
+		this.ttlMillis = ttlMillis;
+		this.snapshot = snapshot;
+		loadSnapshot();
+	}
+	
+	public List<LinodeDistribution> getDistributions() throws IOException {
+		return distributions.get();
+	}
+	
+	public List<KernelInfo> getKernels() throws IOException {
+		return kernels.get();
+	}
+	
+	public List<LinodePlanInfo> getPlans() throws IOException {
+		return plans.get();
+	}
+	
+	public List<DatacenterInfo> getDatacenters() throws IOException {
+		return datacenters.get();
+	}
+	
+	/**
+	 * @param version e.g. "16.04", matching "16.04 LTS" too
+	 * @return distribution of given type and version, preferring 64 bit one, or null
+	 */
+	public LinodeDistribution findDistribution(OSType type, String version) throws IOException {
+		distributions.get();
+		Map<String, LinodeDistribution> index = distributionIndex;
+		String key = distributionKey(type, version);
+		LinodeDistribution d = index.get(key);
+		if (d != null) return d;
+		for (Map.Entry<String, LinodeDistribution> e : index.entrySet())
+			if (e.getKey().startsWith(key + " ") && (d == null || e.getKey().length() < distributionKey(d).length()))
+				d = e.getValue();
+		return d;
+	}
+	
+	/** @return the smallest plan with at least given RAM in MB and disk in GB, or null */
+	public LinodePlanInfo findPlan(int ramMb, int diskGb) throws IOException {
+		plans.get();
+		for (LinodePlanInfo p : planIndex)
+			if (p.ram >= ramMb && p.disk >= diskGb) return p;
+		return null;
+	}
+	
+	/** @param abbr e.g. "dallas", case insensitive */
+	public DatacenterInfo findDatacenter(String abbr) throws IOException {
+		datacenters.get();
+		return datacenterIndex.get(abbr.toLowerCase(Locale.ROOT));
+	}
+	
+	/** Rebuilds indexes of given endpoint once it's fetched. */
+	protected void indexed(Endpoint<?> e) {
+		if (e == distributions) {
+			Map<String, LinodeDistribution> index = new HashMap<String, LinodeDistribution>();
+			for (LinodeDistribution d : distributions.fetched.records) {
+				String key = distributionKey(d);
+				LinodeDistribution prev = index.get(key);
+				if (prev == null || prev.is64Bit == 0) index.put(key, d);
+			}
+			distributionIndex = index;
+		} else if (e == plans) {
+			List<LinodePlanInfo> index = new ArrayList<LinodePlanInfo>(plans.fetched.records);
+			Collections.sort(index, new Comparator<LinodePlanInfo>() {
+				@Override
+				public int compare(LinodePlanInfo a, LinodePlanInfo b) {
+					if (a.ram != b.ram) return a.ram < b.ram ? -1 : 1;
+					if (a.disk != b.disk) return a.disk < b.disk ? -1 : 1;
+					if (a.price == null || b.price == null) return 0;
+					return a.price.compareTo(b.price);
+				}
+			});
+			planIndex = index;
+		} else if (e == datacenters) {
+			Map<String, DatacenterInfo> index = new HashMap<String, DatacenterInfo>();
+			for (DatacenterInfo d : datacenters.fetched.records)
+				if (d.abbr != null) index.put(d.abbr.toLowerCase(Locale.ROOT), d);
+			datacenterIndex = index;
+		}
+	}
+	
+	protected static String distributionKey(DistributionInfo d) {
+		return distributionKey(d.type, d.version);
+	}
+	
+	protected static String distributionKey(OSType type, String version) {
+		return type + ":" + (version != null ? version.toLowerCase(Locale.ROOT) : "");
+	}
+	
+	/** Snapshot is a dict of endpoints by action, each with fetch time and records as returned by API. */
+	protected synchronized void saveSnapshot() {
+		if (snapshot == null) return;
+		JSONObject jo = new JSONObject();
+		for (Endpoint<?> e : endpoints) {
+			Fetched<?> f = e.fetched;
+			if (f == null) continue;
+			JSONObject je = new JSONObject();
+			je.put("fetched", f.fetchedMillis);
+			je.put("records", f.raw);
+			jo.put(e.action, je);
+		}
+		// replaced at once, so a crash doesn't leave it half-written
+		File tmp = new File(snapshot.getPath() + ".tmp");
+		try {
+			try (OutputStream os = new FileOutputStream(tmp)) {
+				os.write(jo.toString().getBytes(StandardCharsets.UTF_8));
+			}
+			Files.move(tmp.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException ioe) {
+			log.warn("failed to save catalog snapshot to " + snapshot + ": " + ioe);
+		}
+	}
+	
+	protected void loadSnapshot() {
+		if (snapshot == null || !snapshot.isFile()) return;
+		try (InputStream is = new FileInputStream(snapshot)) {
+			JSONObject jo = (JSONObject) new JSONStreamBinder(is).readValue();
+			for (Endpoint<?> e : endpoints) {
+				JSONObject je = jo.optJSONObject(e.action);
+				if (je != null) loadSnapshot(e, je);
+			}
+			log.verbose("catalog loaded from snapshot " + snapshot);
+		} catch (IOException | RuntimeException e) {
+			log.warn("failed to load catalog snapshot from " + snapshot + ": " + e);
+		}
+	}
+	
+	protected <T> void loadSnapshot(Endpoint<T> e, JSONObject je) throws IOException {
+		JSONArray raw = je.getJSONArray("records");
+		e.set(new Fetched<T>(e.bind(raw), raw, je.getLong("fetched")));
+	}
+	
+	protected synchronized ScheduledThreadPoolExecutor timer() {
+		if (timer == null) {
+			timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "Linode Catalog Refresh");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			timer.setRemoveOnCancelPolicy(true);
+		}
+		return timer;
+	}
+	
+	/** Stops background refreshes. */
+	public synchronized void close() {
+		closed = true;
+		if (timer != null) timer.shutdownNow();
+		timer = null;
+	}
+}
@@ -1,5 +1,8 @@
 package net.xcordio.vmmanagerservice.vps.linode;
 
+import net.xcordio.vmmanagerservice.util.ReflectiveConfig;
+
+@ReflectiveConfig.Configurable
 public class LinodeDistribution extends DistributionInfo {
 	
 	public int id;
@@ -8,6 +11,25 @@ public class LinodeDistribution extends DistributionInfo {
 	public int minImageSize; // MB
 	public int is64Bit;
 	
+	/** Binds DISTRIBUTIONID of API records. Is called reflectively. */
+	public void onDistributionIdChange(int id) {
+		this.id = id;
+	}
+	
+	/** Binds CREATE_DT of API records. Is called reflectively. */
+	public void onCreate_DTChange(String createDT) {
+		this.createDT = createDT;
+	}
+	
+	/** Splits API record label like "Fedora 24" into {@link #type} and {@link #version}. Is called reflectively. */
+	public void onLabelChange(String label) {
+		OSType type = guessType(label);
+		if (type != OSType.OTHER)
+			label = label.substring(type.name().length()).trim();
+		this.type = type;
+		this.version = label;
+	}
+	
 	@Override
 	public String toString() {
 		return "LinodeDistribution[id=" + id + ",type=" + type + ",version=" + version + ",createDT=" + createDT
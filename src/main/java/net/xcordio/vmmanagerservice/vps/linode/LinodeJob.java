@@ -1,31 +1,97 @@
 package net.xcordio.vmmanagerservice.vps.linode;
 
-import net.semplar.log.Logger;
-import net.xcordio.vmmanagerservice.vps.APIJob;
-
 import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.json.JSONObject;
+
+import net.xcordio.vmmanagerservice.util.SettableFuture;
+import net.xcordio.vmmanagerservice.vps.APIJob;
 
 /**
- * Represents remote Job.
+ * Represents remote Job. Completion is tracked by {@link LinodeJobPoller} of the provider, so no thread is needed per
+ * pending job.
  */
 public class LinodeJob<T> implements APIJob<T> {
 	
-	private static final Logger log = Logger.getc();
-	protected static int WAIT_PERIOD = 5000; // ms
-	
 	protected LinodeProvider provider;
 	protected int linodeId;
-	protected int jobId;
+	protected volatile int jobId = -1; // known once the call starting the job returns it
 	protected String description;
-	private Boolean done;
-	private T result;
+	protected volatile boolean running;
+	protected final SettableFuture<T> future = new SettableFuture<T>();
 	
 	public LinodeJob(LinodeProvider provider, int linodeId, int jobId, String description) {
+		this(provider, linodeId, description);
+		started(jobId);
+	}
+	
+	/** @param call API call starting the job, i.e. returning JobID; its failure is the failure of the job */
+	public LinodeJob(LinodeProvider provider, int linodeId, final SettableFuture<Object> call, String description) {
+		this(provider, linodeId, description);
+		call.addListener(new Runnable() {
+			@Override
+			public void run() {
+				if (call.isCancelled()) {
+					future.cancel(false);
+					return;
+				}
+				try {
+					started(((JSONObject) call.get()).getInt("JobID"));
+				} catch (ExecutionException ee) {
+					future.setException(ee.getCause());
+				} catch (InterruptedException | RuntimeException e) {
+					future.setException(e);
+				}
+			}
+		});
+	}
+	
+	protected LinodeJob(LinodeProvider provider, int linodeId, String description) {
 		if (provider == null) throw new NullPointerException();
 		this.provider = provider;
 		this.linodeId = linodeId;
 		this.description = description;
+	}
+	
+	protected void started(int jobId) {
 		this.jobId = jobId;
+		provider.getJobPoller().track(this);
+	}
+	
+	/** Called by the poller once the job is started by Linode. */
+	protected void running() {
+		running = true;
+	}
+	
+	/** Called by the poller once the job is not pending anymore. */
+	protected void finished(boolean success, String message) {
+		if (!success) {
+			future.setException(new IOException(description + " failed" + (message != null && !message.isEmpty() ? ": " + message : "")));
+			return;
+		}
+		try {
+			future.set(jobDone());
+		} catch (RuntimeException e) {
+			future.setException(e);
+		}
+	}
+	
+	/** Called by the poller if jobs can't be tracked, e.g. Linode is deleted. */
+	protected void failed(Throwable t) {
+		future.setException(t);
+	}
+
+	public int getJobId() {
+		return jobId;
+	}
+	
+	public int getLinodeId() {
+		return linodeId;
 	}
 	
 	@Override
@@ -35,29 +101,87 @@ public class LinodeJob<T> implements APIJob<T> {
 	
 	@Override
 	public boolean isComplete() {
-		return done == Boolean.TRUE;
+		return future.isDone();
+	}
+	
+	@Override
+	public State getState() {
+		if (!future.isDone()) return running ? State.RUNNING : State.QUEUED;
+		if (future.isCancelled()) return State.CANCELLED;
+		try {
+			future.get();
+			return State.SUCCEEDED;
+		} catch (ExecutionException | InterruptedException e) {
+			return State.FAILED;
+		}
+	}
+	
+	@Override
+	public SettableFuture<T> getFuture() {
+		return future;
+	}
+	
+	@Override
+	public LinodeJob<T> withDeadline(final long timeout, final TimeUnit unit) {
+		final ScheduledFuture<?> timer = provider.getJobPoller().schedule(new Runnable() {
+			@Override
+			public void run() {
+				future.setException(new TimeoutException(description + " is not complete in " + timeout + " "
+						+ unit.name().toLowerCase()));
+			}
+		}, timeout, unit);
+		future.addListener(new Runnable() {
+			@Override
+			public void run() {
+				timer.cancel(false);
+			}
+		});
+		return this;
+	}
+	
+	/** Linode API has no way to cancel a job, so the job is only not tracked anymore. */
+	@Override
+	public boolean cancel() {
+		return future.cancel(false);
 	}
 	
 	/**
-	 * Override this to set up some result.
+	 * Override this to set up some result. Called once the job is not pending anymore.
 	 * @return result
 	 */
 	protected T jobDone() {
-		return result;
+		return null;
 	}
 	
 	@Override
-	public T waitForResult() { // TODO: add timeout
-		if (done == Boolean.TRUE) return result;
-		for (;;) try {
-			if (provider.listJobs(linodeId, jobId, true) == 0) break;
-			if (WAIT_PERIOD > 0) Thread.sleep(WAIT_PERIOD);
-		} catch (IOException ioe) {
-			log.error("exception during linode job waiting", ioe);
+	public T waitForResult() {
+		try {
+			return future.get();
 		} catch (InterruptedException e) {
 			throw new RuntimeException("waiting for job was interrupted");
+		} catch (ExecutionException ee) {
+			throw new IllegalStateException("job failed: " + description, ee.getCause());
+		} catch (CancellationException ce) {
+			throw new IllegalStateException("job was cancelled: " + description, ce);
 		}
-		done = true;
-		return result = jobDone();
+	}
+	
+	@Override
+	public T getResult(long timeout, TimeUnit unit) throws IOException, InterruptedException, TimeoutException {
+		try {
+			return future.get(timeout, unit);
+		} catch (ExecutionException ee) {
+			Throwable t = ee.getCause();
+			if (t instanceof IOException) throw (IOException) t;
+			if (t instanceof TimeoutException) throw (TimeoutException) t;
+			if (t instanceof RuntimeException) throw (RuntimeException) t;
+			if (t instanceof Error) throw (Error) t;
+			throw new IOException(t);
+		}
+	}
+	
+	@Override
+	public String toString() {
+		return "LinodeJob[linodeId=" + linodeId + ",jobId=" + jobId + ",state=" + getState() + ",description=" + description + "]";
 	}
 }
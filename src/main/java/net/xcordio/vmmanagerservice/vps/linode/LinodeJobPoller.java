@@ -0,0 +1,309 @@
+package net.xcordio.vmmanagerservice.vps.linode;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import net.semplar.log.Logger;
+import net.xcordio.vmmanagerservice.util.SettableFuture;
+
+/**
+ * Tracks pending jobs of all Linodes with a single thread: every period, pending jobs of every Linode with tracked
+ * jobs are listed with one <code>linode.job.list</code> call per Linode, all sent in a single batch request. Tracked
+ * jobs which are not pending anymore are then looked up in a second batch, for their outcome, and completed; if the
+ * lookup fails, it's retried on the next poll. Polling stops while there are no tracked jobs.
+ * <p>
+ * The thread never waits for responses, as it also fires deadlines of jobs: results of a batch are handled once all
+ * of them are done, and the next poll is scheduled a period after the previous one is complete.
+ * @author xcordio
+ */
+public class LinodeJobPoller {
+	
+	private static final Logger log = Logger.getc();
+	
+	protected final LinodeProvider provider;
+	protected final long periodMillis;
+	// next fields are synchronized on {@code this}
+	protected final Map<Integer, Map<Integer, LinodeJob<?>>> tracked = new HashMap<Integer, Map<Integer, LinodeJob<?>>>();
+	// finished jobs which outcome failed to be looked up
+	protected final List<LinodeJob<?>> unresolved = new ArrayList<LinodeJob<?>>();
+	protected ScheduledThreadPoolExecutor timer;
+	protected boolean polling; // if the next poll is scheduled or running
+	
+	public LinodeJobPoller(LinodeProvider provider, long periodMillis) {
+		if (provider == null) throw new NullPointerException();
+		this.provider = provider;
+		this.periodMillis = periodMillis;
+	}
+	
+	/**
+	 * Starts tracking given job, which is completed once it's not pending anymore. Job fails with
+	 * {@link LinodeAPIError} if jobs of its Linode can't be listed; other errors are retried on the next poll.
+	 */
+	public synchronized void track(LinodeJob<?> job) {
+		Map<Integer, LinodeJob<?>> jobs = tracked.get(job.getLinodeId());
+		if (jobs == null) tracked.put(job.getLinodeId(), jobs = new HashMap<Integer, LinodeJob<?>>());
+		jobs.put(job.getJobId(), job);
+		startPolling();
+	}
+	
+	protected synchronized void startPolling() {
+		if (polling) return;
+		polling = true;
+		schedulePoll(timer());
+	}
+	
+	protected void schedulePoll(final ScheduledThreadPoolExecutor executor) {
+		synchronized (this) {
+			if (executor != timer) return; // closed
+		}
+		try {
+			executor.schedule(new Runnable() {
+				@Override
+				public void run() {
+					poll(executor);
+				}
+			}, periodMillis, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// closed meanwhile
+		}
+	}
+	
+	/** @return count of tracked jobs */
+	public synchronized int getTracked() {
+		int n = 0;
+		for (Map<Integer, LinodeJob<?>> jobs : tracked.values()) n += jobs.size();
+		return n + unresolved.size();
+	}
+	
+	/** @return tracked jobs which are not complete */
+	public synchronized List<LinodeJob<?>> getTrackedJobs() {
+		List<LinodeJob<?>> l = new ArrayList<LinodeJob<?>>();
+		for (Map<Integer, LinodeJob<?>> jobs : tracked.values())
+			for (LinodeJob<?> job : jobs.values())
+				if (!job.isComplete()) l.add(job);
+		for (LinodeJob<?> job : unresolved)
+			if (!job.isComplete()) l.add(job);
+		return l;
+	}
+	
+	/** Runs given task on the polling thread after given delay; used for deadlines of jobs. */
+	public ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit) {
+		return timer().schedule(task, delay, unit);
+	}
+	
+	/** Lists pending jobs; runs on the polling thread of given executor. */
+	protected void poll(final ScheduledThreadPoolExecutor executor) {
+		final List<Integer> linodeIds;
+		final List<LinodeJob<?>> finished = new ArrayList<LinodeJob<?>>();
+		synchronized (this) {
+			if (executor != timer) return; // closed, polling of a new timer may be started meanwhile
+			// cancelled and timed out jobs are not tracked anymore
+			for (Iterator<Map<Integer, LinodeJob<?>>> ti = tracked.values().iterator(); ti.hasNext(); ) {
+				Map<Integer, LinodeJob<?>> jobs = ti.next();
+				for (Iterator<LinodeJob<?>> ji = jobs.values().iterator(); ji.hasNext(); )
+					if (ji.next().isComplete()) ji.remove();
+				if (jobs.isEmpty()) ti.remove();
+			}
+			for (LinodeJob<?> job : unresolved)
+				if (!job.isComplete()) finished.add(job);
+			unresolved.clear();
+			if (tracked.isEmpty() && finished.isEmpty()) {
+				polling = false;
+				return;
+			}
+			linodeIds = new ArrayList<Integer>(tracked.keySet());
+		}
+		if (linodeIds.isEmpty()) {
+			completeJobs(executor, finished);
+			return;
+		}
+		LinodeBatch batch = provider.batch();
+		final List<SettableFuture<Object>> results = new ArrayList<SettableFuture<Object>>(linodeIds.size());
+		for (int linodeId : linodeIds) {
+			JSONObject params = new JSONObject();
+			params.put("LinodeID", linodeId);
+			params.put("pendingOnly", 1);
+			results.add(batch.call("linode.job.list", params));
+		}
+		batch.send();
+		whenDone(executor, results, finished, new Runnable() {
+			@Override
+			public void run() {
+				listed(executor, linodeIds, results, finished);
+			}
+		});
+	}
+	
+	/** Handles pending jobs listed by {@link #poll}, which results are all done. */
+	protected void listed(ScheduledThreadPoolExecutor executor, List<Integer> linodeIds, List<SettableFuture<Object>> results,
+			List<LinodeJob<?>> finished) {
+		for (int i = 0; i < linodeIds.size(); i ++) {
+			int linodeId = linodeIds.get(i);
+			try {
+				JSONArray pending = (JSONArray) results.get(i).get();
+				Map<Integer, JSONObject> pendingJobs = new HashMap<Integer, JSONObject>();
+				for (int j = 0; j < pending.length(); j ++) {
+					JSONObject job = pending.getJSONObject(j);
+					pendingJobs.put(job.getInt("JOBID"), job);
+				}
+				finished.addAll(removeFinished(linodeId, pendingJobs));
+			} catch (ExecutionException ee) {
+				if (ee.getCause() instanceof LinodeAPIError) {
+					for (LinodeJob<?> job : removeFinished(linodeId, null)) job.failed(ee.getCause());
+				} else log.warn("failed to list jobs of linode " + linodeId + ", retrying: " + ee.getCause());
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt(); // not waiting, as the result is done
+			} catch (RuntimeException e) {
+				log.error("unexpected jobs of linode " + linodeId, e);
+			}
+		}
+		completeJobs(executor, finished);
+	}
+	
+	/**
+	 * Runs given task on the polling thread once all given futures are done. If the poller is closed meanwhile, given
+	 * jobs, which are not tracked anymore, are cancelled instead.
+	 */
+	protected void whenDone(final ScheduledThreadPoolExecutor executor, List<SettableFuture<Object>> futures,
+			final List<LinodeJob<?>> jobs, final Runnable task) {
+		final AtomicInteger pending = new AtomicInteger(futures.size());
+		Runnable done = new Runnable() {
+			@Override
+			public void run() {
+				if (pending.decrementAndGet() > 0) return;
+				try {
+					executor.execute(task);
+				} catch (RejectedExecutionException e) {
+					for (LinodeJob<?> job : jobs) job.cancel();
+				}
+			}
+		};
+		for (SettableFuture<Object> f : futures) f.addListener(done);
+	}
+	
+	/**
+	 * Removes tracked jobs of given Linode which are not pending, marking pending ones as running once started.
+	 * @param pendingJobs pending jobs by JOBID, or null to remove all of them
+	 */
+	protected synchronized List<LinodeJob<?>> removeFinished(int linodeId, Map<Integer, JSONObject> pendingJobs) {
+		List<LinodeJob<?>> done = new ArrayList<LinodeJob<?>>();
+		Map<Integer, LinodeJob<?>> jobs = tracked.get(linodeId);
+		if (jobs == null) return done;
+		for (Iterator<Map.Entry<Integer, LinodeJob<?>>> ji = jobs.entrySet().iterator(); ji.hasNext(); ) {
+			Map.Entry<Integer, LinodeJob<?>> e = ji.next();
+			JSONObject pending = pendingJobs != null ? pendingJobs.get(e.getKey()) : null;
+			if (pending != null) {
+				if (!pending.optString("HOST_START_DT", "").isEmpty()) e.getValue().running();
+				continue;
+			}
+			done.add(e.getValue());
+			ji.remove();
+		}
+		if (jobs.isEmpty()) tracked.remove(linodeId);
+		return done;
+	}
+	
+	/**
+	 * Completes given finished jobs by their outcome, listed in a single batch, and schedules the next poll. Jobs which
+	 * outcome failed to be listed are looked up again on the next poll, unless Linode reported an error; jobs with no
+	 * outcome listed are considered succeeded, as they're not pending anymore anyway.
+	 */
+	protected void completeJobs(final ScheduledThreadPoolExecutor executor, final List<LinodeJob<?>> finished) {
+		if (finished.isEmpty()) {
+			schedulePoll(executor);
+			return;
+		}
+		LinodeBatch batch = provider.batch();
+		final List<SettableFuture<Object>> results = new ArrayList<SettableFuture<Object>>(finished.size());
+		for (LinodeJob<?> job : finished) {
+			JSONObject params = new JSONObject();
+			params.put("LinodeID", job.getLinodeId());
+			params.put("JobID", job.getJobId());
+			results.add(batch.call("linode.job.list", params));
+		}
+		batch.send();
+		whenDone(executor, results, finished, new Runnable() {
+			@Override
+			public void run() {
+				completed(finished, results);
+				schedulePoll(executor);
+			}
+		});
+	}
+	
+	/** Completes finished jobs by their outcomes, which are all done; not holding the lock, as listeners may track new jobs. */
+	protected void completed(List<LinodeJob<?>> finished, List<SettableFuture<Object>> results) {
+		for (int i = 0; i < finished.size(); i ++) {
+			LinodeJob<?> job = finished.get(i);
+			boolean success = true;
+			String message = null;
+			try {
+				JSONArray outcome = (JSONArray) results.get(i).get();
+				if (outcome.length() > 0) {
+					JSONObject o = outcome.getJSONObject(0);
+					success = !"0".equals(o.optString("HOST_SUCCESS", ""));
+					message = o.optString("HOST_MESSAGE", null);
+				}
+			} catch (ExecutionException ee) {
+				if (ee.getCause() instanceof LinodeAPIError && !((LinodeAPIError) ee.getCause()).isThrottled()) {
+					job.failed(ee.getCause());
+				} else {
+					log.warn("failed to get outcome of " + job + ", retrying: " + ee.getCause());
+					retry(job);
+				}
+				continue;
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt(); // not waiting, as the result is done
+				retry(job);
+				continue;
+			} catch (RuntimeException e) {
+				log.error("unexpected outcome of " + job, e);
+				job.failed(e);
+				continue;
+			}
+			job.finished(success, message);
+		}
+	}
+	
+	/** Looks up outcome of given finished job again on the next poll. */
+	protected synchronized void retry(LinodeJob<?> job) {
+		unresolved.add(job);
+		startPolling();
+	}
+	
+	protected synchronized ScheduledThreadPoolExecutor timer() {
+		if (timer == null) {
+			timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "Linode Job Poller");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			timer.setRemoveOnCancelPolicy(true);
+		}
+		return timer;
+	}
+	
+	/** Stops polling; tracked jobs are left incomplete. */
+	public synchronized void close() {
+		if (timer != null) timer.shutdownNow();
+		timer = null;
+		polling = false;
+		unresolved.clear();
+	}
+}
@@ -1,7 +1,9 @@
 package net.xcordio.vmmanagerservice.vps.linode;
 
 import java.math.BigDecimal;
+import net.xcordio.vmmanagerservice.util.ReflectiveConfig;
 
+@ReflectiveConfig.Configurable
 public class LinodePlanInfo {
 	
 	public int planId;
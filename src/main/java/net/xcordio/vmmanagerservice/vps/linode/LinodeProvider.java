@@ -1,26 +1,52 @@
 package net.xcordio.vmmanagerservice.vps.linode;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.HttpURLConnection;
+import java.io.InterruptedIOException;
 import java.net.URL;
 import java.net.URLEncoder;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.semplar.log.Logger;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
-import net.xcordio.vmmanagerservice.ServiceConfig;
+import net.xcordio.vmmanagerservice.model.InstanceConfig;
+import net.xcordio.vmmanagerservice.model.LoginInfo;
+import net.xcordio.vmmanagerservice.model.ServerInfo;
+import net.xcordio.vmmanagerservice.util.AdaptiveRateLimiter;
+import net.xcordio.vmmanagerservice.util.AsyncHttpClient;
+import net.xcordio.vmmanagerservice.util.ConfigurationException;
+import net.xcordio.vmmanagerservice.util.JSONStreamBinder;
+import net.xcordio.vmmanagerservice.util.LatencyHistogram;
+import net.xcordio.vmmanagerservice.util.ReflectiveConfig;
+import net.xcordio.vmmanagerservice.util.SettableFuture;
 import net.xcordio.vmmanagerservice.vps.APIJob;
 import net.xcordio.vmmanagerservice.vps.VPSProvider;
-import net.xcordio.vmmanagerservice.vps.linode.DistributionInfo.OSType;
 
 /**
  * A client for Linode vps provider, and a {@link VPSProvider} implementation at the same time.
  * @author xcordio
  */
+@ReflectiveConfig.Configurable
 public class LinodeProvider implements VPSProvider {
 	
 	private static Logger log = Logger.getc();
@@ -35,56 +61,92 @@ public class LinodeProvider implements VPSProvider {
 	}
 	
 	protected int doCreateAndBootSample() throws IOException {
-		log.info("Creating new instance");
-		int linodeId = createInstance(1 /* cheapest plan */, 2 /* dallas */);
-		try {
-			log.info("Creating root disk");
-			createDiskFromDistribution(linodeId, "ROOT", 2048, 140, "ebe02426").waitForResult();
-			log.info("Creating swap");
-			createDisk(linodeId, "SWAP", DiskType.SWAP, 256).waitForResult();
-			log.info("Getting IP address");
-			String ipAddress = null;
-			for (IPAddressInfo ip : listIPs(linodeId))
-				if (ip.isPublic) {
-					ipAddress = ip.address;
-					break;
-				}
-			if (ipAddress == null) throw new IOException("assertion failed: no IP address allocated?");
-			log.info(".. IP address is " + ipAddress);
-			log.info("Creating Linode config");
-			LinodeConfig lc = new LinodeConfig();
-			lc.linodeId = linodeId;
-			lc.label = "default";
-			List<Integer> diskIDs = listDiskIDs(linodeId);
-			lc.diskList = diskIDs.get(0) + "," + diskIDs.get(1);
-			lc.helperDistro = true;
-			lc.devtmpfsAutomount = true;
-			lc.helperNetwork = true;
-			lc.rootDeviceRO = true;
-			lc.ramLimit = 0;
-			lc.kernelId = 237;
-			lc.comments = "A default configuration containing root & swap disks, includes helper and no ram limitations";
-			lc = createConfig(lc);
-			log.info("Booting up instance");
-			bootup(linodeId, lc.id).waitForResult();
-			return linodeId;
-		} catch (Exception e) {
-			log.error("Exception caught; deleting linode");
-			doDeleteSample(linodeId);
-			return -1;
-		}
+		InstanceConfig instance = new InstanceConfig();
+		instance.server = new ServerInfo();
+		instance.server.distribution = "Ubuntu 16.04 LTS";
+		instance.server.ram = 1024;
+		instance.server.login = new LoginInfo();
+		instance.server.login.password = "ebe02426";
+		LinodeProvisioning provisioning = new LinodeProvisioning(this, instance);
+		int linodeId = provisioning.run();
+		log.info("Linode " + linodeId + " is booted, IP address is " + provisioning.getIpAddress());
+		return linodeId;
 	}
 	
 	protected void doDeleteSample(int linodeId) throws IOException {
 		// deleting linode
 		shutdown(linodeId).waitForResult();
+		LinodeBatch batch = batch();
+		List<APIJob<Void>> deletes = new ArrayList<>();
 		for (Integer diskId : listDiskIDs(linodeId))
-			deleteDisk(linodeId, diskId).waitForResult();
+			deletes.add(new LinodeJob<Void>(this, linodeId, batch.call("linode.disk.delete", diskIdParams(linodeId, diskId)),
+					"Deleting linode disk"));
+		batch.send();
+		for (APIJob<Void> delete : deletes)
+			delete.waitForResult();
 		deleteLinode(linodeId);
 	}
 	
 	public String apiUrl = "https://api.linode.com/";
+	/** Key of the only account, used unless {@link #accounts} are configured. */
 	public String apiKey;
+	/** Accounts calls are spread across, each with its own key, rate and quota. Read when first call is made. */
+	public List<LinodeAccount> accounts;
+	/**
+	 * How new Linodes are placed to accounts: "least-loaded" places to the account owning the least Linodes per weight,
+	 * "weighted" places by weights in turn. Accounts which are unhealthy or at their quota are skipped.
+	 */
+	public String placement = "least-loaded";
+	/** Count of calls failed in a row after which an account is not used for a while, and for how long, in seconds. */
+	public int accountMaxFailures = 3;
+	public int accountCooldownSeconds = 60;
+	/** Time a Linode not owned by any account is not looked up again for, in seconds. */
+	public int unknownLinodeTtlSeconds = 60;
+	/** Max count of API calls sent at once; others wait for a free connection. Read when first call is made. */
+	public int maxInFlight = 5;
+	/** How long calls are collected to be sent as a single batch request, in milliseconds; 0 sends every call at once. */
+	public int batchWindowMillis = 0;
+	/** Max count of calls in a single batch request, so its URL stays well below server limits. */
+	public int maxBatchSize = 25;
+	/** How long <code>avail.*</code> records are served before being refreshed in background, in seconds. */
+	public int catalogTtlSeconds = 24 * 3600;
+	/** File <code>avail.*</code> records are saved to, so they're known at once after restart; not saved if null. */
+	public String catalogSnapshot;
+	/** Period of polling pending jobs, in milliseconds. Read when first job is created. */
+	public int jobPollMillis = 5000;
+	/** How long provisioning waits for a single job, in seconds. */
+	public int jobTimeoutSeconds = 900;
+	/**
+	 * Initial and max rate of requests, per second, and count of requests sent at once after being idle. Rate is
+	 * adjusted between them by throttling and latency, see {@link AdaptiveRateLimiter}. Read when first call is made.
+	 */
+	public int requestRate = 5;
+	public int maxRequestRate = 50;
+	public int requestBurst = 10;
+	/** Count of retries of throttled calls, and of read calls failed by network. */
+	public int maxRetries = 5;
+	/** Backoff before first retry, doubled by every next one up to max, in milliseconds; half of it is random. */
+	public int retryBaseMillis = 250;
+	public int retryMaxMillis = 15000;
+	/** Abbreviation of datacenter new Linodes are created in. */
+	public String datacenter = "dallas";
+	/** Size of swap disk of new Linodes, in MB; root disk takes the rest of the plan. */
+	public int swapSizeMb = 256;
+	/** Kernel of configs of new Linodes. */
+	public int kernelId = 237;
+	// synchronized on {@code this}
+	protected AsyncHttpClient httpClient;
+	protected LinodeBatch pendingBatch;
+	protected ScheduledThreadPoolExecutor timer;
+	protected List<LinodeAccount> activeAccounts;
+	protected LinodeCatalog catalog;
+	protected LinodeJobPoller jobPoller;
+	protected final ConcurrentMap<String, LatencyHistogram> actionLatency = new ConcurrentHashMap<String, LatencyHistogram>();
+	protected final ConcurrentMap<Integer, LinodeAccount> owners = new ConcurrentHashMap<Integer, LinodeAccount>();
+	protected final Object ownersLock = new Object();
+	protected boolean ownersListed; // synchronized on ownersLock
+	protected SettableFuture<Void> ownersListing; // in progress; synchronized on ownersLock
+	protected final ConcurrentMap<Integer, Long> unknownLinodes = new ConcurrentHashMap<Integer, Long>(); // to nanoTime listed
 	
 	public LinodeProvider() {
 	}
@@ -102,7 +164,6 @@ public class LinodeProvider implements VPSProvider {
 	
 	@Override
 	public List<LinodeDistribution> getAvailableDistributions() throws IOException {
-		JSONArray array = (JSONArray) doGET("avail.distributions", null);
 		/* Api returns list of records like:
 		 * {
 			  "CREATE_DT":"2016-06-22 15:03:38.0",
@@ -112,75 +173,35 @@ public class LinodeProvider implements VPSProvider {
 			  "MINIMAGESIZE":1024,
 			  "IS64BIT":1
 			} */
-		List<LinodeDistribution> osTypes = new ArrayList<>();
-		for (int i = 0; i < array.length(); i ++) {
-			JSONObject jo = array.getJSONObject(i);
-			LinodeDistribution oi = new LinodeDistribution();
-			String label = jo.getString("LABEL");
-			OSType type = LinodeDistribution.guessType(label);
-			if (type != OSType.OTHER)
-				label = label.substring(type.name().length()).trim();
-			oi.id = jo.getInt("DISTRIBUTIONID");
-			oi.type = type;
-			oi.version = label;
-			oi.createDT = jo.getString("CREATE_DT");
-			oi.requiresPVOPSkernel = jo.getInt("REQUIRESPVOPSKERNEL");
-			oi.minImageSize = jo.getInt("MINIMAGESIZE");
-			oi.is64Bit = jo.getInt("IS64BIT");
-			osTypes.add(oi);
-		}
-		return osTypes;
+		return getCatalog().getDistributions();
 	}
 	
 	@SuppressWarnings("unused")
 	public List<KernelInfo> getAvailableKernels() throws IOException {
-		JSONArray array = (JSONArray) doGET("avail.kernels", null);
-		List<KernelInfo> kinfos = new ArrayList<KernelInfo>();
-		for (int i = 0; i < array.length(); i ++) {
-			JSONObject jo = array.getJSONObject(i);
-			KernelInfo ki = new KernelInfo();
-			ki.id = jo.getInt("KERNELID");
-			ki.label = jo.getString("LABEL");
-			ki.isKvm = jo.getInt("ISKVM");
-			ki.isXen = jo.getInt("ISXEN");
-			ki.isPvops = jo.getInt("ISPVOPS");
-			kinfos.add(ki);
-		}
-		return kinfos;
+		return getCatalog().getKernels();
 	}
 	
 	@SuppressWarnings("unused")
 	public List<LinodePlanInfo> getAvailablePlans() throws IOException {
-		JSONArray array = (JSONArray) doGET("avail.linodeplans", null);
-		List<LinodePlanInfo> pinfos = new ArrayList<LinodePlanInfo>();
-		for (int i = 0; i < array.length(); i ++) {
-			JSONObject jo = array.getJSONObject(i);
-			System.out.println(jo);
-			LinodePlanInfo pi = new LinodePlanInfo();
-			pi.planId = jo.getInt("PLANID");
-			pi.price = jo.getBigDecimal("PRICE");
-			pi.hourly = jo.getBigDecimal("HOURLY");
-			pi.ram = jo.getInt("RAM");
-			pi.disk = jo.getInt("DISK");
-			pi.cores = jo.getInt("CORES");
-			pinfos.add(pi);
-		}
-		return pinfos;
+		return getCatalog().getPlans();
 	}
 	
 	@SuppressWarnings("unused")
 	public List<DatacenterInfo> getAvailableDatacenters() throws IOException {
-		JSONArray array = (JSONArray) doGET("avail.datacenters", null);
-		List<DatacenterInfo> dinfos = new ArrayList<DatacenterInfo>();
-		for (int i = 0; i < array.length(); i ++) {
-			JSONObject jo = array.getJSONObject(i);
-			DatacenterInfo di = new DatacenterInfo();
-			di.location = jo.getString("LOCATION");
-			di.abbr = jo.getString("ABBR");
-			di.id = jo.getInt("DATACENTERID");
-			dinfos.add(di);
-		}
-		return dinfos;
+		return getCatalog().getDatacenters();
+	}
+	
+	/** @return tracker of pending jobs of all Linodes */
+	public synchronized LinodeJobPoller getJobPoller() {
+		if (jobPoller == null) jobPoller = new LinodeJobPoller(this, jobPollMillis);
+		return jobPoller;
+	}
+	
+	/** @return cache of <code>avail.*</code> records, with lookups by distribution, plan and datacenter */
+	public synchronized LinodeCatalog getCatalog() {
+		if (catalog == null) catalog = new LinodeCatalog(this, TimeUnit.SECONDS.toMillis(catalogTtlSeconds),
+				catalogSnapshot != null ? new File(catalogSnapshot) : null);
+		return catalog;
 	}
 	
 	protected int createInstance(int planId, int datacenterId) throws IOException {
@@ -194,30 +215,51 @@ public class LinodeProvider implements VPSProvider {
 	
 	protected APIJob<Void> createDiskFromDistribution(int linodeId, String label, int sizeMb,
 												int distributionID, String rootPass) throws IOException {
+		JSONObject params = diskFromDistributionParams(linodeId, label, sizeMb, distributionID, rootPass);
+		return new LinodeJob<Void>(this, linodeId, doGETAsync("linode.disk.createfromdistribution", params, null),
+				"Allocating linode disk from distribution");
+	}
+	
+	protected static JSONObject diskFromDistributionParams(int linodeId, String label, int sizeMb, int distributionID,
+														   String rootPass) {
 		JSONObject params = new JSONObject();
 		params.put("LinodeID", linodeId);
 		params.put("Label", label);
 		params.put("size", sizeMb);
 		params.put("DistributionID", distributionID);
 		params.put("rootPass", rootPass); // TODO: enhance security
-		JSONObject result = (JSONObject) doGET("linode.disk.createfromdistribution", params);
-		return new LinodeJob(this, linodeId, result.getInt("JobID"), "Allocating linode disk from distribution");
+		return params;
 	}
 	
 	protected APIJob<Void> createDisk(int linodeId, String label, DiskType type, int sizeMb) throws IOException {
+		return new LinodeJob<Void>(this, linodeId, doGETAsync("linode.disk.create", diskParams(linodeId, label, type, sizeMb), null),
+				"Allocating linode disk");
+	}
+	
+	protected static JSONObject diskParams(int linodeId, String label, DiskType type, int sizeMb) {
 		JSONObject params = new JSONObject();
 		params.put("LinodeID", linodeId);
 		params.put("Label", label);
 		params.put("Type", type.name().toLowerCase());
 		params.put("size", sizeMb);
-		JSONObject result = (JSONObject) doGET("linode.disk.create", params);
-		return new LinodeJob(this, linodeId, result.getInt("JobID"), "Allocating linode disk from distribution");
+		return params;
 	}
 	
-	protected List<Integer> listDiskIDs(int linodeId) throws IOException {
+	protected static JSONObject linodeParams(int linodeId) {
+		JSONObject params = new JSONObject();
+		params.put("LinodeID", linodeId);
+		return params;
+	}
+	
+	protected static JSONObject diskIdParams(int linodeId, int diskId) {
 		JSONObject params = new JSONObject();
 		params.put("LinodeID", linodeId);
-		JSONArray result = (JSONArray) doGET("linode.disk.list", params);
+		params.put("DiskID", diskId);
+		return params;
+	}
+	
+	protected List<Integer> listDiskIDs(int linodeId) throws IOException {
+		JSONArray result = (JSONArray) doGET("linode.disk.list", linodeParams(linodeId));
 		List<Integer> list = new ArrayList<>();
 		for (int i = 0; i < result.length(); i ++)
 			list.add(result.getJSONObject(i).getInt("DISKID"));
@@ -225,17 +267,15 @@ public class LinodeProvider implements VPSProvider {
 	}
 	
 	protected APIJob<Void> deleteDisk(int linodeId, int diskId) throws IOException {
-		JSONObject params = new JSONObject();
-		params.put("LinodeID", linodeId);
-		params.put("DiskID", diskId);
-		JSONObject result = (JSONObject) doGET("linode.disk.delete", params);
-		return new LinodeJob<>(this, linodeId, result.getInt("JobID"), "Deleting linode disk");
+		return new LinodeJob<Void>(this, linodeId, doGETAsync("linode.disk.delete", diskIdParams(linodeId, diskId), null),
+				"Deleting linode disk");
 	}
 	
 	protected List<IPAddressInfo> listIPs(int linodeId) throws IOException {
-		JSONObject params = new JSONObject();
-		params.put("LinodeID", linodeId);
-		JSONArray result = (JSONArray) doGET("linode.ip.list", params);
+		return toIPs((JSONArray) doGET("linode.ip.list", linodeParams(linodeId)));
+	}
+	
+	protected static List<IPAddressInfo> toIPs(JSONArray result) {
 		List<IPAddressInfo> ips = new ArrayList<>();
 		for (int i = 0; i < result.length(); i ++) {
 			JSONObject jo = result.getJSONObject(i);
@@ -249,6 +289,12 @@ public class LinodeProvider implements VPSProvider {
 	
 	protected LinodeConfig createConfig(LinodeConfig config) throws IOException {
 		if (config.id >= 0) throw new IllegalArgumentException("config already has ID: config is already created");
+		JSONObject result = (JSONObject) doGET("linode.config.create", configParams(config));
+		config.id = result.getInt("ConfigID");
+		return config;
+	}
+	
+	protected static JSONObject configParams(LinodeConfig config) {
 		JSONObject params = new JSONObject();
 		params.put("LinodeID", config.linodeId);
 		params.put("Label", config.label);
@@ -260,24 +306,20 @@ public class LinodeProvider implements VPSProvider {
 		params.put("RAMLimit", config.ramLimit);
 		params.put("KernelID", config.kernelId);
 		params.put("Comments", config.comments);
-		JSONObject result = (JSONObject) doGET("linode.config.create", params);
-		config.id = result.getInt("ConfigID");
-		return config;
+		return params;
 	}
 	
 	protected APIJob<Void> bootup(int linodeId, int configId) throws IOException {
 		JSONObject params = new JSONObject();
 		params.put("LinodeID", linodeId);
 		params.put("ConfigID", configId);
-		JSONObject result = (JSONObject) doGET("linode.boot", params);
-		return new LinodeJob<Void>(this, linodeId, result.getInt("JobID"), "Booting up linode instance");
+		return new LinodeJob<Void>(this, linodeId, doGETAsync("linode.boot", params, null), "Booting up linode instance");
 	}
 	
 	protected APIJob<Void> shutdown(int linodeId) throws IOException {
 		JSONObject params = new JSONObject();
 		params.put("LinodeID", linodeId);
-		JSONObject result = (JSONObject) doGET("linode.shutdown", params);
-		return new LinodeJob<Void>(this, linodeId, result.getInt("JobID"), "Booting up linode instance");
+		return new LinodeJob<Void>(this, linodeId, doGETAsync("linode.shutdown", params, null), "Shutting down linode instance");
 	}
 	
 	protected int listJobs(int linodeId, int jobId, boolean pendingOnly) throws IOException {
@@ -290,9 +332,596 @@ public class LinodeProvider implements VPSProvider {
 	}
 	
 	protected Object doGET(String action, JSONObject params) throws IOException {
+		return doGET(action, params, null);
+	}
+	
+	/**
+	 * Calls API action which returns list of records, binding records straight from response stream to new instances
+	 * of given class with {@link JSONStreamBinder}. Record keys are matched to fields and handlers of the class in
+	 * the same way as {@link ReflectiveConfig} does, and unmatched keys are skipped.
+	 */
+	@SuppressWarnings("unchecked")
+	protected <T> List<T> doGETList(String action, JSONObject params, Class<T> recordType) throws IOException {
+		return (List<T>) doGET(action, params, recordType);
+	}
+	
+	/**
+	 * Synchronous facade of {@link #doGETAsync(String, JSONObject, Class)}.
+	 * @param recordType if not null, DATA is expected to be list of records bound to this class
+	 */
+	protected Object doGET(String action, JSONObject params, Class<?> recordType) throws IOException {
+		return getResult(doGETAsync(action, params, recordType));
+	}
+	
+	/** @return result of given call, with its exception rethrown as is */
+	protected static <T> T getResult(Future<T> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException ie) {
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while waiting for API response");
+		} catch (ExecutionException ee) {
+			Throwable t = ee.getCause();
+			if (t instanceof IOException) throw (IOException) t;
+			if (t instanceof RuntimeException) throw (RuntimeException) t;
+			if (t instanceof Error) throw (Error) t;
+			throw new IOException(t);
+		}
+	}
+	
+	/**
+	 * Sends API call on a kept-alive connection, without waiting for response; see {@link AsyncHttpClient}. Calls made
+	 * within {@link #batchWindowMillis} are sent together, see {@link LinodeBatch}.
+	 * @param recordType if not null, DATA is expected to be list of records bound to this class
+	 * @return DATA of response, or {@link LinodeAPIError}
+	 */
+	protected SettableFuture<Object> doGETAsync(final String action, final JSONObject params, final Class<?> recordType) {
+		SettableFuture<LinodeAccount> account = accountFor(action, params);
+		if (batchWindowMillis <= 0) return account.thenCompose(new SettableFuture.Transform<LinodeAccount, SettableFuture<Object>>() {
+			@Override
+			public SettableFuture<Object> apply(LinodeAccount a) {
+				SettableFuture<Object> call;
+				try {
+					call = sendAsync(a, action, params, recordType);
+				} catch (IOException | RuntimeException e) {
+					call = SettableFuture.failed(e);
+				}
+				return track(a, action, params, call);
+			}
+		});
+		LinodeBatch b;
+		SettableFuture<Object> f;
+		synchronized (this) {
+			if (pendingBatch == null) {
+				final LinodeBatch nb = pendingBatch = new LinodeBatch(this);
+				timer().schedule(new Runnable() {
+					@Override
+					public void run() {
+						flushBatch(nb);
+					}
+				}, batchWindowMillis, TimeUnit.MILLISECONDS);
+			}
+			b = pendingBatch;
+			f = b.call(account, action, params, recordType);
+		}
+		if (b.size() >= maxBatchSize) flushBatch(b);
+		return f;
+	}
+	
+	/** @return new batch; calls of it are sent once it's {@link LinodeBatch#send() sent} */
+	public LinodeBatch batch() {
+		return new LinodeBatch(this);
+	}
+	
+	protected void flushBatch(LinodeBatch b) {
+		synchronized (this) {
+			if (pendingBatch == b) pendingBatch = null;
+		}
+		b.send();
+	}
+	
+	/** @return timer of batch windows and retries */
+	protected synchronized ScheduledThreadPoolExecutor timer() {
+		if (timer == null) {
+			timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "Linode Timer");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			timer.setRemoveOnCancelPolicy(true);
+		}
+		return timer;
+	}
+	
+	/**
+	 * Sends given calls in requests of at most {@link #maxBatchSize} calls, one request per account, as key is given
+	 * per request; single call is sent as is.
+	 */
+	protected void sendBatch(List<LinodeBatch.Call> calls) {
+		Map<LinodeAccount, List<LinodeBatch.Call>> byAccount = new LinkedHashMap<LinodeAccount, List<LinodeBatch.Call>>();
+		for (LinodeBatch.Call c : calls) {
+			List<LinodeBatch.Call> l = byAccount.get(c.account);
+			if (l == null) byAccount.put(c.account, l = new ArrayList<LinodeBatch.Call>());
+			l.add(c);
+		}
+		for (Map.Entry<LinodeAccount, List<LinodeBatch.Call>> e : byAccount.entrySet()) {
+			List<LinodeBatch.Call> accountCalls = e.getValue();
+			for (int from = 0; from < accountCalls.size(); from += maxBatchSize) {
+				List<LinodeBatch.Call> chunk = accountCalls.subList(from, Math.min(from + maxBatchSize, accountCalls.size()));
+				try {
+					if (chunk.size() == 1) {
+						LinodeBatch.Call c = chunk.get(0);
+						forward(sendAsync(e.getKey(), c.action, c.params, c.recordType), chunk);
+					} else {
+						forward(sendBatchAsync(e.getKey(), chunk), chunk);
+					}
+				} catch (IOException | RuntimeException ex) {
+					for (LinodeBatch.Call c : chunk) c.setException(ex);
+				}
+			}
+		}
+	}
+	
+	/** Results of single calls are passed to them; failure of the whole request is passed to every call. */
+	protected static void forward(final SettableFuture<Object> request, final List<LinodeBatch.Call> calls) {
+		request.addListener(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					Object result = request.get();
+					if (calls.size() == 1) calls.get(0).set(result);
+				} catch (ExecutionException ee) {
+					for (LinodeBatch.Call c : calls) c.setException(ee.getCause());
+				} catch (InterruptedException | CancellationException e) {
+					for (LinodeBatch.Call c : calls) c.cancel(false);
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Sends calls as a single batch request. Throttled calls are not done by Linode, so they're re-sent after backoff;
+	 * other results are passed to calls as is.
+	 * @return future completed once results are passed
+	 */
+	protected SettableFuture<Object> sendBatchAsync(LinodeAccount account, final List<LinodeBatch.Call> calls)
+			throws IOException {
+		JSONArray requests = new JSONArray();
+		for (LinodeBatch.Call c : calls) {
+			JSONObject request = new JSONObject();
+			request.put("api_action", c.action);
+			if (c.params != null) for (String key : c.params.keySet()) request.put(key, c.params.get(key));
+			requests.put(request);
+		}
+		JSONObject params = new JSONObject();
+		params.put("api_requestArray", requests);
+		URL url = requestURL(account, "batch", params);
+		log.trace(">> batch of " + calls.size() + ": " + requests);
+		boolean read = true;
+		for (LinodeBatch.Call c : calls) read &= isRead(c.action);
+		return new LimitedRequest<Object>(account, url, read) {
+			@Override
+			public Object handleResponse(InputStream is, long sentNanos) throws IOException {
+				List<LinodeBatch.Call> retried = new ArrayList<LinodeBatch.Call>();
+				try {
+					JSONStreamBinder binder = new JSONStreamBinder(is).setLenient(true);
+					binder.beginArray();
+					int i = 0;
+					while (binder.hasNextElement()) {
+						if (i >= calls.size()) {
+							binder.skipValue();
+							continue;
+						}
+						LinodeBatch.Call c = calls.get(i ++);
+						try {
+							c.set(readResult(c.action, c.recordType, binder));
+						} catch (LinodeAPIError e) {
+							if (e.isThrottled() && c.retries < maxRetries) retried.add(c);
+							else c.setException(e);
+						}
+					}
+					if (i < calls.size()) throw new IOException("batch response has " + i + " results of " + calls.size() + " calls");
+				} finally {
+					getActionLatency("batch").recordSince(sentNanos);
+				}
+				// only once the whole response is parsed, else throttled calls fail or are retried with the batch
+				if (!retried.isEmpty()) {
+					throttled = true;
+					resendThrottled(retried);
+				}
+				return null;
+			}
+		}.send();
+	}
+	
+	protected void resendThrottled(final List<LinodeBatch.Call> calls) {
+		int retries = 0;
+		for (LinodeBatch.Call c : calls) retries = Math.max(retries, c.retries ++);
+		long delay = backoffMillis(retries);
+		log.debug(calls.size() + " calls of batch are throttled, re-sending in " + delay + " ms");
+		timer().schedule(new Runnable() {
+			@Override
+			public void run() {
+				sendBatch(calls);
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+	
+	protected SettableFuture<Object> sendAsync(LinodeAccount account, final String action, JSONObject params,
+											   final Class<?> recordType) throws IOException {
+		URL url = requestURL(account, action, params);
+		log.trace(">> " + action + (params != null ? ": " + params.toString() : ""));
+		return new LimitedRequest<Object>(account, url, isRead(action)) {
+			@Override
+			public Object handleResponse(InputStream is, long sentNanos) throws IOException {
+				try {
+					return readResult(action, recordType, new JSONStreamBinder(is).setLenient(true));
+				} finally {
+					// waiting for a free connection is not counted
+					getActionLatency(action).recordSince(sentNanos);
+				}
+			}
+		}.send();
+	}
+	
+	/**
+	 * Request sent once admitted by {@link #getRateLimiter(LinodeAccount) rate limiter} of its account, with its outcome
+	 * fed back to the limiter and to health of the account.
+	 * Throttled requests are retried after backoff, as they're not done by Linode; requests failed otherwise are retried
+	 * only if they're reads, and if they failed before Linode responded, i.e. not with {@link LinodeAPIError}.
+	 */
+	protected abstract class LimitedRequest<T> implements AsyncHttpClient.ResponseHandler<T>, AdaptiveRateLimiter.Task {
+		
+		protected final LinodeAccount account;
+		protected final URL url;
+		protected final boolean read;
+		protected final SettableFuture<T> result = new SettableFuture<T>();
+		protected final AdaptiveRateLimiter limiter;
+		protected int retries;
+		/** Set by {@link #handleResponse} if response asks to slow down, though it's not a failure. */
+		protected volatile boolean throttled;
+		
+		public LimitedRequest(LinodeAccount account, URL url, boolean read) {
+			this.account = account;
+			this.url = url;
+			this.read = read;
+			this.limiter = getRateLimiter(account);
+		}
+		
+		public SettableFuture<T> send() {
+			limiter.submit(this);
+			return result;
+		}
+		
+		/** Sends request once admitted. */
+		@Override
+		public void run() {
+			final long sent = System.nanoTime();
+			if (result.isDone()) { // cancelled while queued
+				limiter.release(AdaptiveRateLimiter.Outcome.FAILED, sent);
+				return;
+			}
+			throttled = false;
+			final SettableFuture<T> response;
+			try {
+				response = getHttpClient().get(url, this);
+			} catch (RuntimeException e) {
+				limiter.release(AdaptiveRateLimiter.Outcome.FAILED, sent);
+				result.setException(e);
+				return;
+			}
+			response.addListener(new Runnable() {
+				@Override
+				public void run() {
+					Throwable failure;
+					try {
+						T r = response.get();
+						limiter.release(throttled ? AdaptiveRateLimiter.Outcome.THROTTLED : AdaptiveRateLimiter.Outcome.SUCCESS, sent);
+						account.succeeded();
+						result.set(r);
+						return;
+					} catch (ExecutionException ee) {
+						failure = ee.getCause();
+					} catch (InterruptedException | CancellationException e) {
+						failure = e;
+					}
+					boolean slowDown = isThrottled(failure);
+					limiter.release(slowDown ? AdaptiveRateLimiter.Outcome.THROTTLED : AdaptiveRateLimiter.Outcome.FAILED, sent);
+					accountFailed(account, failure);
+					boolean retryable = slowDown || read && failure instanceof IOException && !(failure instanceof LinodeAPIError);
+					if (!retryable || retries >= maxRetries || result.isDone()) {
+						result.setException(failure);
+						return;
+					}
+					long delay = backoffMillis(retries ++);
+					log.debug("retrying in " + delay + " ms: " + failure);
+					timer().schedule(new Runnable() {
+						@Override
+						public void run() {
+							limiter.submit(LimitedRequest.this);
+						}
+					}, delay, TimeUnit.MILLISECONDS);
+				}
+			});
+		}
+		
+		@Override
+		public void rejected(RejectedExecutionException e) {
+			result.setException(e);
+		}
+	}
+	
+	/** @return true for actions only reading, so they can be re-sent no matter if they were done */
+	protected static boolean isRead(String action) {
+		return action.endsWith(".list") || action.startsWith("avail.") || action.equals("test.echo")
+				|| action.equals("api.spec");
+	}
+	
+	/** @return true if given failure asks to slow down */
+	protected static boolean isThrottled(Throwable t) {
+		if (t instanceof LinodeAPIError) return ((LinodeAPIError) t).isThrottled();
+		if (t instanceof AsyncHttpClient.StatusException) {
+			int status = ((AsyncHttpClient.StatusException) t).status;
+			return status == 429 || status == 503;
+		}
+		return false;
+	}
+	
+	/** @return exponential backoff before given retry, with random half of it, so retries of many calls spread */
+	protected long backoffMillis(int retry) {
+		long max = Math.min(retryMaxMillis, (long) retryBaseMillis << Math.min(retry, 30));
+		return max / 2 + ThreadLocalRandom.current().nextLong(max / 2 + 1);
+	}
+	
+	/** @return limiter of requests made with key of given account */
+	public AdaptiveRateLimiter getRateLimiter(LinodeAccount account) {
+		synchronized (account) {
+			if (account.rateLimiter == null) account.rateLimiter = new AdaptiveRateLimiter("Linode " + account.name,
+					requestRate, Math.max(requestRate, maxRequestRate), requestBurst, maxInFlight);
+			return account.rateLimiter;
+		}
+	}
+	
+	/**
+	 * Counts failure of a call against health of given account. Throttled calls and errors of calls themselves are
+	 * not failures of the account, except of rejected key.
+	 */
+	protected void accountFailed(LinodeAccount account, Throwable failure) {
+		if (isThrottled(failure)) return;
+		boolean keyRejected = failure instanceof LinodeAPIError
+				&& ((LinodeAPIError) failure).getErrorCode() == LinodeAPIError.AUTHENTICATION_FAILED;
+		if (failure instanceof LinodeAPIError && !keyRejected) {
+			account.succeeded(); // account responds fine
+			return;
+		}
+		boolean wasHealthy = account.isHealthy();
+		account.failed(keyRejected, accountMaxFailures, TimeUnit.SECONDS.toMillis(accountCooldownSeconds));
+		if (wasHealthy && !account.isHealthy()) log.warn("not using " + account + " for " + accountCooldownSeconds
+				+ " s: " + failure);
+	}
+	
+	/** @return configured accounts, or the one of {@link #apiKey} */
+	public synchronized List<LinodeAccount> getAccounts() {
+		if (activeAccounts == null) {
+			List<LinodeAccount> l = new ArrayList<LinodeAccount>();
+			if (accounts != null) l.addAll(accounts);
+			if (l.isEmpty()) l.add(new LinodeAccount("default", apiKey));
+			for (int i = 0; i < l.size(); i ++)
+				if (l.get(i).name == null) l.get(i).name = "#" + i;
+			activeAccounts = Collections.unmodifiableList(l);
+		}
+		return activeAccounts;
+	}
+	
+	/**
+	 * Chooses account of a call: calls of a Linode are made by its owner, new Linodes are placed by {@link #placement},
+	 * and <code>avail.*</code> calls, which are the same for any account, go to the least loaded healthy account.
+	 * Other calls are made by the first account.
+	 * @return future of the account, done at once unless Linodes of accounts are to be listed; listing is not waited
+	 * for, as calls are made by listeners of other calls
+	 */
+	protected SettableFuture<LinodeAccount> accountFor(String action, JSONObject params) {
+		List<LinodeAccount> l = getAccounts();
+		if (l.size() == 1) return SettableFuture.done(l.get(0));
+		if (params != null && params.has("LinodeID")) return ownerOfAsync(params.getInt("LinodeID"));
+		if (action.equals("linode.create")) return place();
+		if (action.startsWith("avail.") || action.equals("test.echo") || action.equals("api.spec")) {
+			LinodeAccount best = null;
+			for (LinodeAccount a : l)
+				if (a.isHealthy() && (best == null || a.getLoad() < best.getLoad())) best = a;
+			if (best != null) return SettableFuture.done(best);
+		}
+		return SettableFuture.done(l.get(0));
+	}
+	
+	/**
+	 * @return account owning given Linode; Linodes of all accounts are listed once if it's not known, e.g. after
+	 * restart
+	 * @throws LinodeAPIError {@link LinodeAPIError#OBJECT_NOT_FOUND not found} if no account owns the Linode; that's
+	 * remembered for {@link #unknownLinodeTtlSeconds}, so it's not listed again meanwhile
+	 */
+	public LinodeAccount ownerOf(int linodeId) throws IOException {
+		return getResult(ownerOfAsync(linodeId));
+	}
+	
+	/** Asynchronous {@link #ownerOf(int)}. */
+	protected SettableFuture<LinodeAccount> ownerOfAsync(final int linodeId) {
+		List<LinodeAccount> l = getAccounts();
+		if (l.size() == 1) return SettableFuture.done(l.get(0));
+		LinodeAccount a = owners.get(linodeId);
+		if (a != null) return SettableFuture.done(a);
+		Long listed = unknownLinodes.get(linodeId);
+		if (listed != null && System.nanoTime() - listed < TimeUnit.SECONDS.toNanos(unknownLinodeTtlSeconds))
+			return SettableFuture.failed(notOwned(linodeId));
+		final long now = System.nanoTime();
+		return listOwners(true).thenApply(new SettableFuture.Transform<Void, LinodeAccount>() {
+			@Override
+			public LinodeAccount apply(Void listed) throws LinodeAPIError {
+				LinodeAccount a = owners.get(linodeId);
+				if (a != null) return a;
+				unknownLinodes.put(linodeId, now);
+				throw notOwned(linodeId);
+			}
+		});
+	}
+	
+	protected static LinodeAPIError notOwned(int linodeId) {
+		return new LinodeAPIError(LinodeAPIError.OBJECT_NOT_FOUND, "linode " + linodeId + " is not owned by any account");
+	}
+	
+	/**
+	 * Lists Linodes of all accounts, recording their owners and counts. Accounts failed to list are skipped, and
+	 * listed again next time. Listing in progress is joined rather than repeated.
+	 * @param force if false, only lists once all accounts are listed, and skips unhealthy ones
+	 * @return future done once listed, failed or not
+	 */
+	protected SettableFuture<Void> listOwners(boolean force) {
+		final SettableFuture<Void> listing;
+		synchronized (ownersLock) {
+			if (ownersListing != null) return ownersListing;
+			if (ownersListed && !force) return SettableFuture.done(null);
+			listing = ownersListing = new SettableFuture<Void>();
+		}
+		// not holding the lock while sending, as sending requests locks the provider
+		final List<LinodeAccount> l = new ArrayList<LinodeAccount>();
+		for (LinodeAccount a : getAccounts())
+			if (force || a.isHealthy()) l.add(a);
+		final AtomicInteger pending = new AtomicInteger(l.size() + 1);
+		final AtomicBoolean failed = new AtomicBoolean();
+		Runnable listed = new Runnable() {
+			@Override
+			public void run() {
+				if (pending.decrementAndGet() > 0) return;
+				synchronized (ownersLock) {
+					ownersListing = null;
+					if (!failed.get()) ownersListed = true;
+				}
+				listing.set(null);
+			}
+		};
+		for (final LinodeAccount a : l) {
+			SettableFuture<Object> list;
+			try {
+				list = sendAsync(a, "linode.list", null, null);
+			} catch (IOException | RuntimeException e) {
+				list = SettableFuture.failed(e);
+			}
+			final SettableFuture<Object> f = list;
+			f.addListener(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						JSONArray linodes = (JSONArray) f.get();
+						for (int j = 0; j < linodes.length(); j ++) {
+							int linodeId = linodes.getJSONObject(j).getInt("LINODEID");
+							owners.put(linodeId, a);
+							unknownLinodes.remove(linodeId);
+						}
+						a.setLinodes(linodes.length());
+					} catch (ExecutionException ee) {
+						// the account is unhealthy now, so no new Linodes are placed to it
+						log.warn("failed to list linodes of " + a + ": " + ee.getCause());
+						failed.set(true);
+					} catch (InterruptedException | RuntimeException e) {
+						log.warn("failed to list linodes of " + a + ": " + e);
+						failed.set(true);
+					}
+				}
+			});
+			f.addListener(listed);
+		}
+		listed.run();
+		return listing;
+	}
+	
+	/**
+	 * @return future of account to create new Linode with, by {@link #placement}; the Linode is counted as owned at
+	 * once
+	 */
+	protected SettableFuture<LinodeAccount> place() {
+		return listOwners(false).thenApply(new SettableFuture.Transform<Void, LinodeAccount>() {
+			@Override
+			public LinodeAccount apply(Void listed) throws IOException {
+				return placeListed();
+			}
+		});
+	}
+	
+	/** Places new Linode by owners listed already. */
+	protected LinodeAccount placeListed() throws IOException {
+		List<LinodeAccount> l = getAccounts();
+		LinodeAccount best = null;
+		synchronized (this) {
+			if ("weighted".equals(placement)) {
+				// smooth weighted round-robin, as of nginx
+				int total = 0;
+				for (LinodeAccount a : l) {
+					if (!a.canTakeLinode() || a.weight <= 0) continue;
+					a.currentWeight += a.weight;
+					total += a.weight;
+					if (best == null || a.currentWeight > best.currentWeight) best = a;
+				}
+				if (best != null) best.currentWeight -= total;
+			} else if ("least-loaded".equals(placement)) {
+				for (LinodeAccount a : l) {
+					if (!a.canTakeLinode() || a.weight <= 0) continue;
+					if (best == null || (long) a.getLinodes() * best.weight < (long) best.getLinodes() * a.weight) best = a;
+				}
+			} else throw new ConfigurationException("unknown placement: " + placement);
+			if (best == null) throw new IOException("no healthy Linode account can take new Linode");
+			best.addLinode();
+		}
+		return best;
+	}
+	
+	/**
+	 * Records owners of created Linodes, and of deleted ones.
+	 * @return result of given call, completed once the owner is recorded
+	 */
+	protected SettableFuture<Object> track(final LinodeAccount account, String action, final JSONObject params,
+										   final SettableFuture<Object> call) {
+		if (getAccounts().size() == 1) return call;
+		if (action.equals("linode.create")) {
+			call.addListener(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						call.get();
+					} catch (InterruptedException | ExecutionException | CancellationException e) {
+						account.removeLinode(); // not created
+					}
+				}
+			});
+			return call.thenApply(new SettableFuture.Transform<Object, Object>() {
+				@Override
+				public Object apply(Object result) {
+					int linodeId = ((JSONObject) result).getInt("LinodeID");
+					owners.put(linodeId, account);
+					unknownLinodes.remove(linodeId);
+					return result;
+				}
+			});
+		}
+		if (action.equals("linode.delete")) {
+			return call.thenApply(new SettableFuture.Transform<Object, Object>() {
+				@Override
+				public Object apply(Object result) {
+					if (owners.remove(params.getInt("LinodeID"), account)) account.removeLinode();
+					return result;
+				}
+			});
+		}
+		return call;
+	}
+	
+	protected URL requestURL(LinodeAccount account, String action, JSONObject params) throws IOException {
 		StringBuilder bd = new StringBuilder(apiUrl);
 		bd.append("?");
-		String apiKey = this.apiKey;
+		String apiKey = account.apiKey;
 		if (apiKey != null) bd.append("api_key=").append(URLEncoder.encode(apiKey, "utf-8")).append("&");
 		bd.append("api_action=").append(URLEncoder.encode(action, "utf-8"));
 		if (params != null)
@@ -300,37 +929,63 @@ public class LinodeProvider implements VPSProvider {
 				String value = params.get(key).toString();
 				bd.append('&').append(URLEncoder.encode(key, "utf-8")).append('=').append(URLEncoder.encode(value, "utf-8"));
 			}
-		URL url = new URL(bd.toString());
-		HttpURLConnection conn = null;
-		InputStream is = null;
-		try {
-			conn = (HttpURLConnection) url.openConnection();
-			conn.setDoOutput(true);
-			log.trace(">> " + action + (params != null ? ": " + params.toString() : ""));
-			conn.setRequestMethod("GET");
-			conn.setRequestProperty("User-Agent", "VM Manager Service/0.1");
-			conn.setRequestProperty("Accept", "application/json");
-			conn.setRequestProperty("Accept-Charset", "utf-8");
-			is = conn.getInputStream();
-			JSONObject responseJson = new JSONObject(ServiceConfig.readUtfStringFromStream(is));
-			log.trace("<< " + action + ": " + responseJson.toString());
-			if (!responseJson.get("ACTION").equals(action)) throw new IOException("action mismatch");
-			JSONArray errors = responseJson.getJSONArray("ERRORARRAY");
-			if (errors.length() > 0)
-				throw new LinodeAPIError(errors.getJSONObject(0)).withAction(action);
-			return responseJson.get("DATA");
-		} finally {
-			if (is != null) try {
-				is.close();
-			} catch (IOException ioe) { /* nop */ }
-			if (conn != null)
-				conn.disconnect();
+		return new URL(bd.toString());
+	}
+	
+	/** Reads single response: DATA of it, or its error. */
+	protected Object readResult(String action, Class<?> recordType, JSONStreamBinder binder) throws IOException {
+		Object responseAction = null, data = null;
+		JSONArray errors = null;
+		binder.beginObject();
+		for (String key; (key = binder.nextKey()) != null; ) {
+			if ("DATA".equals(key)) {
+				// on errors, DATA is an empty dict rather than a list
+				data = recordType != null && binder.peek() == '[' ? binder.bindList(recordType) : binder.readValue();
+			} else if ("ERRORARRAY".equals(key)) {
+				errors = (JSONArray) binder.readValue();
+			} else if ("ACTION".equals(key)) {
+				responseAction = binder.readValue();
+			} else binder.skipValue();
 		}
+		log.trace("<< " + action + ": " + data);
+		if (!action.equals(responseAction)) throw new IOException("action mismatch");
+		if (errors != null && errors.length() > 0)
+			throw new LinodeAPIError(errors.getJSONObject(0)).withAction(action);
+		return data;
+	}
+	
+	protected synchronized AsyncHttpClient getHttpClient() {
+		if (httpClient == null) {
+			httpClient = new AsyncHttpClient("Linode", maxInFlight);
+			httpClient.setRequestProperty("User-Agent", "VM Manager Service/0.1");
+			httpClient.setRequestProperty("Accept", "application/json");
+			httpClient.setRequestProperty("Accept-Charset", "utf-8");
+		}
+		return httpClient;
+	}
+	
+	/** @return latency of given API action, from sending request to parsing response */
+	public LatencyHistogram getActionLatency(String action) {
+		LatencyHistogram h = actionLatency.get(action);
+		if (h == null) {
+			LatencyHistogram prev = actionLatency.putIfAbsent(action, h = new LatencyHistogram());
+			if (prev != null) h = prev;
+		}
+		return h;
+	}
+	
+	/** @return latencies of all API actions called so far, by action */
+	public Map<String, LatencyHistogram> getActionLatencies() {
+		return Collections.unmodifiableMap(actionLatency);
 	}
 	
 	@Override
 	public List<APIJob<?>> listRunningJobs() {
-		// TODO Auto-generated method stub
-		return null;
+		LinodeJobPoller poller;
+		synchronized (this) {
+			poller = jobPoller;
+		}
+		if (poller == null) return new ArrayList<>();
+		return new ArrayList<APIJob<?>>(poller.getTrackedJobs());
 	}
 }
@@ -0,0 +1,229 @@
+package net.xcordio.vmmanagerservice.vps.linode;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import net.xcordio.vmmanagerservice.model.InstanceConfig;
+import net.xcordio.vmmanagerservice.model.ServerInfo;
+import net.xcordio.vmmanagerservice.util.ConfigurationException;
+import net.xcordio.vmmanagerservice.util.SettableFuture;
+import net.xcordio.vmmanagerservice.vps.ProvisioningPipeline;
+import net.xcordio.vmmanagerservice.vps.ProvisioningPipeline.Step;
+
+/**
+ * Creates and boots a Linode for {@link InstanceConfig}, as a {@link ProvisioningPipeline}:
+ * <pre>
+ * create -+- root disk -+- root disk job ------+
+ *         |             +------+               |
+ *         +- swap disk -+- config -------------+- boot
+ *         |             +- swap disk job ------+
+ *         +- IP address
+ * </pre>
+ * Disk IDs are returned at once, so the config is created while disks are still being allocated, and only booting
+ * waits for allocation jobs. Plan, distribution and datacenter are looked up in the {@link LinodeCatalog} beforehand.
+ * @author xcordio
+ */
+public class LinodeProvisioning {
+	
+	protected final LinodeProvider provider;
+	protected final ProvisioningPipeline pipeline;
+	protected final LinodePlanInfo plan;
+	protected final LinodeDistribution distribution;
+	protected final DatacenterInfo datacenter;
+	protected final String rootPass;
+	
+	protected final Step<Integer> create;
+	protected final Step<JSONObject> rootDisk;
+	protected final Step<JSONObject> swapDisk;
+	protected final Step<Void> rootDiskJob;
+	protected final Step<Void> swapDiskJob;
+	protected final Step<String> ipAddress;
+	protected final Step<Integer> config;
+	protected final Step<Void> boot;
+	
+	public LinodeProvisioning(final LinodeProvider provider, InstanceConfig instance) throws IOException {
+		if (provider == null) throw new NullPointerException();
+		this.provider = provider;
+		ServerInfo server = instance.server;
+		if (server == null || server.distribution == null) throw new ConfigurationException("server distribution is required");
+		if (server.login == null || server.login.password == null || server.login.password.isEmpty())
+			throw new ConfigurationException("server login password is required, as root password of the Linode");
+		rootPass = server.login.password;
+		LinodeCatalog catalog = provider.getCatalog();
+		DistributionInfo.OSType type = DistributionInfo.guessType(server.distribution);
+		String version = type != DistributionInfo.OSType.OTHER
+				? server.distribution.substring(type.name().length()).trim() : server.distribution;
+		distribution = catalog.findDistribution(type, version);
+		if (distribution == null) throw new ConfigurationException("no Linode distribution for " + server.distribution);
+		plan = catalog.findPlan(server.ram, 0);
+		if (plan == null) throw new ConfigurationException("no Linode plan with " + server.ram + " MB of RAM");
+		datacenter = catalog.findDatacenter(provider.datacenter);
+		if (datacenter == null) throw new ConfigurationException("no Linode datacenter " + provider.datacenter);
+		if (plan.disk * 1024 - provider.swapSizeMb < distribution.minImageSize)
+			throw new ConfigurationException("disk of " + plan + " is too small for " + distribution);
+		
+		pipeline = new ProvisioningPipeline("provisioning of " + server.distribution + " Linode");
+		create = pipeline.add(new Step<Integer>("create") {
+			@Override
+			protected SettableFuture<Integer> start() throws Exception {
+				JSONObject params = new JSONObject();
+				params.put("PlanID", plan.planId);
+				params.put("DatacenterID", datacenter.id);
+				return provider.doGETAsync("linode.create", params, null).thenApply(new SettableFuture.Transform<Object, Integer>() {
+					@Override
+					public Integer apply(Object result) {
+						return ((JSONObject) result).getInt("LinodeID");
+					}
+				});
+			}
+			
+			@Override
+			protected void rollback(Integer linodeId) throws IOException {
+				provider.deleteLinode(linodeId);
+			}
+		});
+		rootDisk = pipeline.add(new DiskStep("root disk") {
+			@Override
+			protected SettableFuture<Object> startCall() throws IOException {
+				return provider.doGETAsync("linode.disk.createfromdistribution", LinodeProvider.diskFromDistributionParams(
+						create.get(), "ROOT", plan.disk * 1024 - provider.swapSizeMb, distribution.id, rootPass), null);
+			}
+		});
+		swapDisk = pipeline.add(new DiskStep("swap disk") {
+			@Override
+			protected SettableFuture<Object> startCall() throws IOException {
+				return provider.doGETAsync("linode.disk.create", LinodeProvider.diskParams(create.get(), "SWAP",
+						DiskType.SWAP, provider.swapSizeMb), null);
+			}
+		});
+		rootDiskJob = pipeline.add(new JobStep("root disk job", rootDisk));
+		swapDiskJob = pipeline.add(new JobStep("swap disk job", swapDisk));
+		ipAddress = pipeline.add(new Step<String>("IP address", create) {
+			@Override
+			protected SettableFuture<String> start() throws Exception {
+				return provider.doGETAsync("linode.ip.list", LinodeProvider.linodeParams(create.get()), null)
+						.thenApply(new SettableFuture.Transform<Object, String>() {
+					@Override
+					public String apply(Object result) throws IOException {
+						for (IPAddressInfo ip : LinodeProvider.toIPs((JSONArray) result))
+							if (ip.isPublic) return ip.address;
+						throw new IOException("no public IP address allocated for linode " + create.get());
+					}
+				});
+			}
+		});
+		config = pipeline.add(new Step<Integer>("config", rootDisk, swapDisk) {
+			@Override
+			protected SettableFuture<Integer> start() throws Exception {
+				LinodeConfig lc = defaultConfig(create.get(), rootDisk.get().getInt("DiskID"), swapDisk.get().getInt("DiskID"));
+				return provider.doGETAsync("linode.config.create", LinodeProvider.configParams(lc), null)
+						.thenApply(new SettableFuture.Transform<Object, Integer>() {
+					@Override
+					public Integer apply(Object result) {
+						return ((JSONObject) result).getInt("ConfigID");
+					}
+				});
+			}
+			
+			@Override
+			protected void rollback(Integer configId) throws IOException {
+				JSONObject params = LinodeProvider.linodeParams(create.get());
+				params.put("ConfigID", configId);
+				provider.doGET("linode.config.delete", params);
+			}
+		});
+		boot = pipeline.add(new Step<Void>("boot", config, rootDiskJob, swapDiskJob) {
+			@Override
+			protected SettableFuture<Void> start() throws Exception {
+				return provider.bootup(create.get(), config.get())
+						.withDeadline(provider.jobTimeoutSeconds, TimeUnit.SECONDS).getFuture();
+			}
+			
+			@Override
+			protected void rollback(Void result) throws Exception {
+				// disks of running Linode can't be deleted
+				provider.shutdown(create.get()).withDeadline(provider.jobTimeoutSeconds, TimeUnit.SECONDS)
+						.getResult(provider.jobTimeoutSeconds + 1, TimeUnit.SECONDS);
+			}
+		});
+	}
+	
+	/** Call creating a disk; result has DiskID and JobID. Rolling back deletes the disk. */
+	protected abstract class DiskStep extends Step<JSONObject> {
+		
+		public DiskStep(String name) {
+			super (name, create);
+		}
+		
+		protected abstract SettableFuture<Object> startCall() throws IOException;
+		
+		@Override
+		protected SettableFuture<JSONObject> start() throws Exception {
+			return startCall().thenApply(new SettableFuture.Transform<Object, JSONObject>() {
+				@Override
+				public JSONObject apply(Object result) {
+					return (JSONObject) result;
+				}
+			});
+		}
+		
+		@Override
+		protected void rollback(JSONObject disk) throws Exception {
+			provider.deleteDisk(create.get(), disk.getInt("DiskID")).withDeadline(provider.jobTimeoutSeconds, TimeUnit.SECONDS)
+					.getResult(provider.jobTimeoutSeconds + 1, TimeUnit.SECONDS);
+		}
+	}
+	
+	/** Waits for allocation job of a disk. */
+	protected class JobStep extends Step<Void> {
+		
+		protected final Step<JSONObject> disk;
+		
+		public JobStep(String name, Step<JSONObject> disk) {
+			super (name, disk);
+			this.disk = disk;
+		}
+		
+		@Override
+		protected SettableFuture<Void> start() {
+			return new LinodeJob<Void>(provider, create.get(), disk.get().getInt("JobID"), "Allocating linode " + disk)
+					.withDeadline(provider.jobTimeoutSeconds, TimeUnit.SECONDS).getFuture();
+		}
+	}
+	
+	protected LinodeConfig defaultConfig(int linodeId, int rootDiskId, int swapDiskId) {
+		LinodeConfig lc = new LinodeConfig();
+		lc.linodeId = linodeId;
+		lc.label = "default";
+		lc.diskList = rootDiskId + "," + swapDiskId;
+		lc.helperDistro = true;
+		lc.devtmpfsAutomount = true;
+		lc.helperNetwork = true;
+		lc.rootDeviceRO = true;
+		lc.ramLimit = 0;
+		lc.kernelId = provider.kernelId;
+		lc.comments = "A default configuration containing root & swap disks, includes helper and no ram limitations";
+		return lc;
+	}
+	
+	/**
+	 * Runs the pipeline; on failure, everything created is deleted.
+	 * @return ID of booted Linode
+	 */
+	public int run() throws IOException {
+		pipeline.run();
+		return create.get();
+	}
+	
+	public ProvisioningPipeline getPipeline() {
+		return pipeline;
+	}
+	
+	/** @return public IP address of provisioned Linode */
+	public String getIpAddress() {
+		return ipAddress.get();
+	}
+}
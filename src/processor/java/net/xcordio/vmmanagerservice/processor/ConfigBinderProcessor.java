@@ -0,0 +1,393 @@
+package net.xcordio.vmmanagerservice.processor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+
+/**
+ * Generates a <code>ConfigBinder</code> for every class annotated with <code>ReflectiveConfig.Configurable</code>.
+ * Keys are resolved following the same conventions <code>ReflectiveConfig</code> follows at runtime: public fields
+ * which aren't static, final nor transient, <code>preKEYChange</code>/<code>onKEYChange</code> handlers, and
+ * <code>convertSUBTYPE</code>/<code>allocSUBTYPE</code> methods, all matched case insensitively. Convention
+ * violations, which reflection would only report when a key is configured, are reported as compilation errors.
+ * <p>
+ * Works on names only, so it doesn't depend on classes it generates code for.
+ * @author xcordio
+ */
+@SupportedAnnotationTypes(ConfigBinderProcessor.CONFIGURABLE)
+public class ConfigBinderProcessor extends AbstractProcessor {
+	
+	static final String UTIL = "net.xcordio.vmmanagerservice.util";
+	static final String CONFIGURABLE = UTIL + ".ReflectiveConfig.Configurable";
+	static final String KEEP_INSTANCE = UTIL + ".ReflectiveConfig.KeepInstance";
+	static final String SUFFIX = "_ConfigBinder";
+	
+	protected static final Pattern HANDLER_NAME = Pattern.compile("(?:pre|on)(.+)change");
+	
+	/** Thrown when class doesn't follow configuration conventions. */
+	protected static class ConventionError extends Exception {
+		
+		private static final long serialVersionUID = -2675361418925164190L;
+		
+		public final Element element;
+		
+		public ConventionError(String message, Element element) {
+			super (message);
+			this.element = element;
+		}
+	}
+	
+	/** Everything found for a single configuration key. */
+	protected static class Key {
+		
+		public String name; // lowercased
+		public VariableElement field;
+		public ExecutableElement preHandler;
+		public ExecutableElement dataHandler;
+		public ExecutableElement converter;
+		public ExecutableElement allocator;
+		public TypeMirror fullType;
+		public TypeMirror subType;
+		public boolean isArray; // subType is element of array or List
+		public boolean isMap; // subType is value of Map
+		public boolean keepInstance;
+		public TypeElement instanceType; // class instantiated for dicts, if it can be
+	}
+	
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+	
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+		TypeElement configurable = processingEnv.getElementUtils().getTypeElement(CONFIGURABLE);
+		if (configurable == null) return false;
+		for (Element e : roundEnv.getElementsAnnotatedWith(configurable)) try {
+			if (e.getKind() != ElementKind.CLASS) throw new ConventionError("only classes can be configurable", e);
+			TypeElement te = (TypeElement) e;
+			if (te.getNestingKind() == NestingKind.MEMBER && !te.getModifiers().contains(Modifier.STATIC))
+				throw new ConventionError("configurable nested classes must be static", e);
+			if (te.getModifiers().contains(Modifier.PRIVATE))
+				throw new ConventionError("configurable classes can't be private", e);
+			generate(te, collectKeys(te));
+		} catch (ConventionError ce) {
+			processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, ce.getMessage(), ce.element);
+		} catch (IOException ioe) {
+			processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "failed to write config binder: " + ioe, e);
+		}
+		return true;
+	}
+	
+	protected static String lowerName(CharSequence name) {
+		return name.toString().toLowerCase(Locale.ROOT);
+	}
+	
+	protected List<Key> collectKeys(TypeElement te) throws ConventionError {
+		List<? extends Element> members = processingEnv.getElementUtils().getAllMembers(te);
+		Map<String, Key> keys = new LinkedHashMap<String, Key>();
+		for (VariableElement f : ElementFilter.fieldsIn(members)) {
+			Set<Modifier> mods = f.getModifiers();
+			// not touching static, final nor transient fields
+			if (!mods.contains(Modifier.PUBLIC) || mods.contains(Modifier.STATIC) || mods.contains(Modifier.FINAL)
+					|| mods.contains(Modifier.TRANSIENT)) continue;
+			String name = lowerName(f.getSimpleName());
+			Key key = keys.get(name);
+			if (key != null) throw new ConventionError("multiple matching fields found: `" + key.field.getSimpleName()
+					+ "` and `" + f.getSimpleName() + "`, configuration can't be done in this ambiguous situation", f);
+			key = new Key();
+			key.name = name;
+			key.field = f;
+			keys.put(name, key);
+		}
+		List<ExecutableElement> methods = new ArrayList<ExecutableElement>();
+		for (ExecutableElement m : ElementFilter.methodsIn(members))
+			if (m.getModifiers().contains(Modifier.PUBLIC)) methods.add(m);
+		// handler-only keys, i.e. virtual attributes
+		Set<String> handlerKeys = new TreeSet<String>();
+		for (ExecutableElement m : methods) {
+			Matcher matcher = HANDLER_NAME.matcher(lowerName(m.getSimpleName()));
+			if (matcher.matches()) handlerKeys.add(matcher.group(1));
+		}
+		for (String name : handlerKeys)
+			if (!keys.containsKey(name)) {
+				Key key = new Key();
+				key.name = name;
+				keys.put(name, key);
+			}
+		for (Key key : keys.values())
+			resolve(te, key, methods);
+		return new ArrayList<Key>(keys.values());
+	}
+	
+	protected void resolve(TypeElement te, Key key, List<ExecutableElement> methods) throws ConventionError {
+		key.preHandler = findMethod(te, methods, "pre" + key.name + "change");
+		key.dataHandler = findMethod(te, methods, "on" + key.name + "change");
+		key.keepInstance = key.field != null && hasAnnotation(key.field, KEEP_INSTANCE);
+		if (key.field != null) extractTypes(key, key.field.asType(), key.field);
+		checkHandler(key, key.preHandler);
+		checkHandler(key, key.dataHandler);
+		if (key.subType == null) {
+			if (key.fullType != null) key.instanceType = instantiable(te, key.fullType);
+			return;
+		}
+		String typename = ((DeclaredType) key.subType).asElement().getSimpleName().toString();
+		key.converter = findMethod(te, methods, "convert" + typename);
+		if (key.converter != null) {
+			if (key.converter.getParameters().size() != 1)
+				throw new ConventionError("converter method must have exactly one argument", key.converter);
+			if (key.converter.getReturnType().getKind() == TypeKind.VOID)
+				throw new ConventionError("converter method must return converted value", key.converter);
+		}
+		for (ExecutableElement m : methods) {
+			if (!lowerName(m.getSimpleName()).equals(lowerName("alloc" + typename))) continue;
+			List<? extends VariableElement> params = m.getParameters();
+			if (params.isEmpty() || params.size() > 2 || !isType(params.get(0).asType(), "java.lang.String")) continue;
+			if (key.allocator != null) throw new ConventionError("ambiguous situation: multiple matching allocator methods found for "
+					+ typename, m);
+			key.allocator = m;
+		}
+		if (key.allocator != null && key.converter != null) throw new ConventionError("both allocator and converter methods are"
+				+ " present for fullType " + typename, key.allocator);
+		if (key.allocator == null && key.converter == null) key.instanceType = instantiable(te, key.subType);
+	}
+	
+	protected void checkHandler(Key key, ExecutableElement handler) throws ConventionError {
+		if (handler == null) return;
+		if (handler.getParameters().size() != 1)
+			throw new ConventionError("handler method must have exactly one argument", handler);
+		TypeMirror type = handler.getParameters().get(0).asType();
+		if (key.fullType == null) {
+			extractTypes(key, type, handler);
+			return;
+		}
+		TypeMirror prevSubType = key.subType;
+		if (!processingEnv.getTypeUtils().isSameType(erasure(key.fullType), erasure(type)))
+			throw new ConventionError("conflicting situation: field fullType (" + key.fullType + ") and handler method ("
+					+ type + ") don't match", handler);
+		extractTypes(key, type, handler);
+		if (prevSubType != null && !processingEnv.getTypeUtils().isSameType(prevSubType, key.subType))
+			throw new ConventionError("conflicting situation: element types " + prevSubType + " and " + key.subType
+					+ " don't match", handler);
+	}
+	
+	/** Same as ReflectiveKeyInfo.extractSubtypes(), but for type mirrors. */
+	protected void extractTypes(Key key, TypeMirror type, Element where) throws ConventionError {
+		key.fullType = type;
+		key.subType = null;
+		key.isArray = key.isMap = false;
+		switch (type.getKind()) {
+		case ARRAY:
+			TypeMirror component = ((javax.lang.model.type.ArrayType) type).getComponentType();
+			if (component.getKind() == TypeKind.DECLARED) {
+				key.subType = component;
+				key.isArray = true;
+			}
+			break;
+		case DECLARED:
+			List<? extends TypeMirror> args = ((DeclaredType) type).getTypeArguments();
+			if (isType(type, "java.util.List") && args.size() == 1 && isPlainClass(args.get(0))) {
+				key.subType = args.get(0);
+				key.isArray = true;
+			} else if (isType(type, "java.util.Map") && args.size() == 2 && isPlainClass(args.get(1))) {
+				key.subType = args.get(1);
+				key.isMap = true;
+			}
+			break;
+		case TYPEVAR:
+		case WILDCARD:
+			throw new ConventionError("unsupported configuration type " + type, where);
+		default:
+			break;
+		}
+	}
+	
+	protected ExecutableElement findMethod(TypeElement te, List<ExecutableElement> methods, String name) throws ConventionError {
+		ExecutableElement found = null;
+		for (ExecutableElement m : methods) {
+			if (!lowerName(m.getSimpleName()).equals(lowerName(name))) continue;
+			if (found != null) throw new ConventionError("ambiguous situation: multiple matching method found; looking for `" + name
+					+ "`, found `" + found.getSimpleName() + "` and `" + m.getSimpleName() + "`, configuration can't be done", m);
+			found = m;
+		}
+		return found;
+	}
+	
+	/** @return class element if instances of given type can be created by generated code, or null. */
+	protected TypeElement instantiable(TypeElement from, TypeMirror type) {
+		if (type.getKind() != TypeKind.DECLARED) return null;
+		TypeElement te = (TypeElement) ((DeclaredType) type).asElement();
+		Set<Modifier> mods = te.getModifiers();
+		if (te.getKind() != ElementKind.CLASS || mods.contains(Modifier.ABSTRACT) || mods.contains(Modifier.PRIVATE)) return null;
+		if (te.getNestingKind() == NestingKind.MEMBER && !mods.contains(Modifier.STATIC)) return null;
+		if (te.getNestingKind() == NestingKind.LOCAL || te.getNestingKind() == NestingKind.ANONYMOUS) return null;
+		if (!mods.contains(Modifier.PUBLIC) && !packageOf(te).equals(packageOf(from))) return null;
+		for (ExecutableElement c : ElementFilter.constructorsIn(te.getEnclosedElements()))
+			if (c.getParameters().isEmpty() && c.getModifiers().contains(Modifier.PUBLIC)) return te;
+		return null;
+	}
+	
+	protected boolean isPlainClass(TypeMirror type) {
+		return type.getKind() == TypeKind.DECLARED && ((DeclaredType) type).getTypeArguments().isEmpty();
+	}
+	
+	protected boolean isType(TypeMirror type, String name) {
+		return type.getKind() == TypeKind.DECLARED
+				&& ((TypeElement) ((DeclaredType) type).asElement()).getQualifiedName().contentEquals(name);
+	}
+	
+	protected TypeMirror erasure(TypeMirror type) {
+		return processingEnv.getTypeUtils().erasure(type);
+	}
+	
+	protected static boolean hasAnnotation(Element e, String name) {
+		for (AnnotationMirror am : e.getAnnotationMirrors())
+			if (((TypeElement) am.getAnnotationType().asElement()).getQualifiedName().contentEquals(name))
+				return true;
+		return false;
+	}
+	
+	protected String packageOf(TypeElement te) {
+		return processingEnv.getElementUtils().getPackageOf(te).getQualifiedName().toString();
+	}
+	
+	// code generation
+	
+	protected void generate(TypeElement te, List<Key> keys) throws IOException {
+		String pkg = packageOf(te);
+		String binaryName = processingEnv.getElementUtils().getBinaryName(te).toString();
+		String binderName = binaryName.substring(pkg.isEmpty() ? 0 : pkg.length() + 1).replace('$', '_') + SUFFIX;
+		String owner = te.getQualifiedName().toString();
+		StringBuilder b = new StringBuilder();
+		if (!pkg.isEmpty()) b.append("package ").append(pkg).append(";\n\n");
+		b.append("/** Generated by ").append(getClass().getName()).append(", do not edit. */\n");
+		b.append("@SuppressWarnings({\"unchecked\", \"rawtypes\"})\n");
+		b.append("public final class ").append(binderName).append(" implements ").append(UTIL).append(".ConfigBinder {\n\n");
+		b.append("\t@Override\n\tpublic Class<?> boundClass() {\n\t\treturn ").append(owner).append(".class;\n\t}\n\n");
+		b.append("\t@Override\n\tpublic ").append(UTIL).append(".KeyBinding bind(String key) {\n");
+		b.append("\t\tswitch (key.toLowerCase(java.util.Locale.ROOT)) {\n");
+		for (Key key : keys) generateKey(b, owner, key);
+		b.append("\t\tdefault:\n\t\t\treturn null;\n\t\t}\n\t}\n}\n");
+		Writer w = processingEnv.getFiler().createSourceFile((pkg.isEmpty() ? "" : pkg + ".") + binderName, te).openWriter();
+		try {
+			w.write(b.toString());
+		} finally {
+			w.close();
+		}
+	}
+	
+	protected void generateKey(StringBuilder b, String owner, Key key) {
+		String self = "((" + owner + ") obj)";
+		b.append("\t\tcase \"").append(key.name).append("\":\n");
+		b.append("\t\t\treturn new ").append(UTIL).append(".KeyBinding(").append(classLiteral(key.fullType)).append(", ")
+				.append(classLiteral(key.subType)).append(", ")
+				.append(key.isArray ? classLiteral(key.subType) : "null").append(", ")
+				.append(key.isMap ? classLiteral(key.subType) : "null").append(", ")
+				.append(key.field != null).append(", ").append(key.keepInstance).append(", ")
+				.append(key.preHandler != null).append(", ").append(key.dataHandler != null).append(", ")
+				.append(key.converter != null).append(", ").append(key.allocator != null).append(") {\n");
+		if (key.field != null) {
+			String field = self + "." + key.field.getSimpleName();
+			method(b, "protected Object get(Object obj)", "return " + field + ";", null);
+			method(b, "protected void set(Object obj, Object value)", field + " = " + cast(key.field.asType(), "value") + ";", null);
+		}
+		if (key.preHandler != null) {
+			String call = invoke(owner, key.preHandler, cast(key.preHandler.getParameters().get(0).asType(), "value"));
+			method(b, "protected Object preChange(Object obj, Object value)", key.preHandler.getReturnType().getKind() == TypeKind.VOID
+					? call + ";\nreturn null;" : "return " + call + ";", key.preHandler);
+		}
+		if (key.dataHandler != null) {
+			String call = invoke(owner, key.dataHandler, cast(key.dataHandler.getParameters().get(0).asType(), "value"));
+			method(b, "protected void onChange(Object obj, Object value)", call + ";", key.dataHandler);
+		}
+		if (key.converter != null) {
+			String call = invoke(owner, key.converter, cast(key.converter.getParameters().get(0).asType(), "json"));
+			method(b, "protected Object convert(Object obj, Object json)", "return " + call + ";", key.converter);
+		}
+		if (key.allocator != null) {
+			List<? extends VariableElement> params = key.allocator.getParameters();
+			String args = params.size() == 2 ? "type, " + cast(params.get(1).asType(), "json") : "type";
+			method(b, "protected Object alloc(Object obj, String type, org.json.JSONObject json)",
+					"return " + invoke(owner, key.allocator, args) + ";", key.allocator);
+		}
+		if (key.instanceType != null) {
+			ExecutableElement constructor = null;
+			for (ExecutableElement c : ElementFilter.constructorsIn(key.instanceType.getEnclosedElements()))
+				if (c.getParameters().isEmpty()) constructor = c;
+			method(b, "public Object newInstance()", "return new " + key.instanceType.getQualifiedName() + "();", constructor);
+		}
+		b.append("\t\t\t};\n");
+	}
+	
+	/** Appends method overriding KeyBinding primitive; checked exceptions thrown by called member are wrapped. */
+	protected void method(StringBuilder b, String signature, String body, ExecutableElement called) {
+		b.append("\t\t\t\t@Override\n\t\t\t\t").append(signature).append(" {\n");
+		if (called != null && !called.getThrownTypes().isEmpty()) {
+			b.append("\t\t\t\t\ttry {\n\t\t\t\t\t\t").append(body.replace("\n", "\n\t\t\t\t\t\t")).append("\n");
+			b.append("\t\t\t\t\t} catch (Exception e) {\n\t\t\t\t\t\tthrow rethrow(e);\n\t\t\t\t\t}\n");
+		} else {
+			b.append("\t\t\t\t\t").append(body.replace("\n", "\n\t\t\t\t\t")).append("\n");
+		}
+		b.append("\t\t\t\t}\n");
+	}
+	
+	protected String invoke(String owner, ExecutableElement m, String args) {
+		String target = m.getModifiers().contains(Modifier.STATIC) ? owner : "((" + owner + ") obj)";
+		return target + "." + m.getSimpleName() + "(" + args + ")";
+	}
+	
+	/**
+	 * @return expression converting Object expression to given type, the way reflection converts arguments: primitives
+	 * are unboxed and widened, but never narrowed, see <code>KeyBinding.toInt()</code> and others.
+	 */
+	protected String cast(TypeMirror type, String expr) {
+		switch (type.getKind()) {
+		case BOOLEAN:
+			return "(Boolean) " + expr;
+		case CHAR:
+			return "(Character) " + expr;
+		case BYTE:
+			return "(Byte) " + expr;
+		case SHORT:
+		case INT:
+		case LONG:
+		case FLOAT:
+		case DOUBLE:
+			String name = type.getKind().name();
+			return "to" + name.charAt(0) + name.substring(1).toLowerCase(Locale.ROOT) + "(" + expr + ")";
+		default:
+			String erased = erasure(type).toString();
+			return "java.lang.Object".equals(erased) ? expr : "(" + erased + ") " + expr;
+		}
+	}
+	
+	protected String classLiteral(TypeMirror type) {
+		return type == null ? "null" : erasure(type) + ".class";
+	}
+}
@@ -0,0 +1,223 @@
+package net.xcordio.vmmanagerservice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.xcordio.vmmanagerservice.util.FileAccess;
+import net.xcordio.vmmanagerservice.util.FileEvent;
+
+/**
+ * Feeds events to {@link RemoteConfigHandler} and checks which changes it makes of them, once debounced.
+ * @author xcordio
+ */
+public class RemoteConfigHandlerTest {
+	
+	/** Records changes instead of reading and applying files. */
+	protected static class RecordingHandler extends RemoteConfigHandler {
+		
+		public final BlockingQueue<String> changes = new LinkedBlockingQueue<String>();
+		
+		public RecordingHandler() throws IOException {
+		}
+		
+		@Override
+		protected void reloadConfig(FileAccess fa, String dir, String file) {
+			changes.add("reload " + dir + file);
+		}
+		
+		@Override
+		protected void handleConfigDeleted(String filepath) {
+			changes.add("delete " + filepath);
+		}
+		
+		@Override
+		protected boolean handleConfigRenamed(String oldFilepath, String filepath) {
+			changes.add("rename " + oldFilepath + " " + filepath);
+			return true;
+		}
+	}
+	
+	protected static final int CREATE = FileEvent.CREATE.mask;
+	protected static final int MODIFY = FileEvent.MODIFY.mask;
+	protected static final int CLOSE_WRITE = FileEvent.CLOSE_WRITE.mask;
+	protected static final int DELETE = FileEvent.DELETE.mask;
+	protected static final int MOVED_FROM = FileEvent.MOVED_FROM.mask;
+	protected static final int MOVED_TO = FileEvent.MOVED_TO.mask;
+	
+	protected RecordingHandler handler;
+	
+	@Before
+	public void setUp() throws IOException {
+		handler = new RecordingHandler();
+		handler.quietMillis = 50;
+		handler.openWriteMillis = 400;
+	}
+	
+	@After
+	public void tearDown() {
+		handler.stopListen();
+	}
+	
+	protected void event(int events, String dir, String file) {
+		handler.handler.handleEvents(handler, dir, events, file);
+	}
+	
+	protected void assertChange(String expected) throws InterruptedException {
+		assertEquals(expected, handler.changes.poll(5, TimeUnit.SECONDS));
+	}
+	
+	/** Waits for several quiet periods, so any change would be made meanwhile. */
+	protected void assertNoMoreChanges() throws InterruptedException {
+		assertNull(handler.changes.poll(handler.quietMillis * 4, TimeUnit.MILLISECONDS));
+	}
+	
+	@Test
+	public void burstIsCoalesced() throws InterruptedException {
+		event(CREATE, "/c/", "a.json");
+		for (int i = 0; i < 3; i ++) event(MODIFY, "/c/", "a.json");
+		event(CLOSE_WRITE, "/c/", "a.json");
+		assertChange("reload /c/a.json");
+		assertNoMoreChanges();
+		assertEquals(4, handler.getCoalescedEvents());
+	}
+	
+	@Test
+	public void filesAreDebouncedSeparately() throws InterruptedException {
+		event(CLOSE_WRITE, "/c/", "a.json");
+		event(CLOSE_WRITE, "/d/", "a.json");
+		event(CLOSE_WRITE, "/c/", "a.json");
+		String first = handler.changes.poll(5, TimeUnit.SECONDS);
+		String second = handler.changes.poll(5, TimeUnit.SECONDS);
+		assertEquals("reload /c/a.json", first.compareTo(second) < 0 ? first : second);
+		assertEquals("reload /d/a.json", first.compareTo(second) < 0 ? second : first);
+		assertNoMoreChanges();
+		assertEquals(1, handler.getCoalescedEvents());
+	}
+	
+	@Test
+	public void deleteEndsBurst() throws InterruptedException {
+		event(CLOSE_WRITE, "/c/", "a.json");
+		event(DELETE, "/c/", "a.json");
+		assertChange("delete a.json");
+		assertNoMoreChanges();
+	}
+	
+	@Test
+	public void writeAfterDeleteIsReload() throws InterruptedException {
+		event(DELETE, "/c/", "a.json");
+		event(CREATE, "/c/", "a.json");
+		event(CLOSE_WRITE, "/c/", "a.json");
+		assertChange("reload /c/a.json");
+		assertNoMoreChanges();
+	}
+	
+	@Test
+	public void openWriteWaitsForCloseWrite() throws InterruptedException {
+		event(CREATE, "/c/", "a.json");
+		event(MODIFY, "/c/", "a.json");
+		// CLOSE_WRITE is preferred, so quiet period alone doesn't end the burst
+		assertNoMoreChanges();
+		event(CLOSE_WRITE, "/c/", "a.json");
+		assertChange("reload /c/a.json");
+		event(MODIFY, "/c/", "b.json");
+		assertChange("reload /c/b.json");
+	}
+	
+	@Test
+	public void ignoredFilesAreSkipped() throws InterruptedException {
+		event(CLOSE_WRITE, "/c/", "a.json.tmp");
+		event(CLOSE_WRITE, "/c/", ".a.json.swp");
+		event(DELETE, "/c/", "a.json~");
+		assertNoMoreChanges();
+	}
+	
+	@Test
+	public void renameIsPaired() throws InterruptedException {
+		event(MOVED_FROM, "/c/", "a.json");
+		event(MOVED_TO, "/c/", "b.json");
+		assertChange("rename a.json b.json");
+		assertNoMoreChanges();
+	}
+	
+	@Test
+	public void publishedTempFileIsRead() throws InterruptedException {
+		event(CLOSE_WRITE, "/c/", "a.json.tmp");
+		event(MOVED_FROM, "/c/", "a.json.tmp");
+		event(MOVED_TO, "/c/", "a.json");
+		assertChange("reload /c/a.json");
+		assertNoMoreChanges();
+	}
+	
+	@Test
+	public void renameToTempFileIsDelete() throws InterruptedException {
+		event(MOVED_FROM, "/c/", "a.json");
+		event(MOVED_TO, "/c/", "a.json.tmp");
+		assertChange("delete a.json");
+		assertNoMoreChanges();
+	}
+	
+	@Test
+	public void unpairedMovesAreDeleteAndWrite() throws InterruptedException {
+		event(MOVED_FROM, "/c/", "a.json");
+		event(CLOSE_WRITE, "/c/", "c.json");
+		// not right after the MOVED_FROM, so moved in from an unwatched place
+		event(MOVED_TO, "/c/", "b.json");
+		String[] changes = { handler.changes.poll(5, TimeUnit.SECONDS), handler.changes.poll(5, TimeUnit.SECONDS),
+				handler.changes.poll(5, TimeUnit.SECONDS) };
+		Arrays.sort(changes);
+		assertEquals("[delete a.json, reload /c/b.json, reload /c/c.json]", Arrays.toString(changes));
+		assertNoMoreChanges();
+	}
+	
+	@Test
+	public void movedOutFileDoesntTakeLaterRename() throws InterruptedException {
+		// a.json is moved to an unwatched place, then b.json renamed
+		event(MOVED_FROM, "/c/", "a.json");
+		event(MOVED_FROM, "/c/", "b.json");
+		event(MOVED_TO, "/c/", "d.json");
+		assertChange("rename b.json d.json");
+		assertChange("delete a.json");
+		assertNoMoreChanges();
+	}
+	
+	@Test
+	public void interleavedMovesBetweenDirectoriesArePaired() throws InterruptedException {
+		// events of different directories are handled on different keys, so they may interleave
+		event(MOVED_FROM, "/c/", "a.json");
+		event(MOVED_FROM, "/c/", "b.json");
+		event(MOVED_TO, "/d/", "a.json");
+		event(MOVED_TO, "/d/", "b.json");
+		assertChange("rename a.json a.json");
+		assertChange("rename b.json b.json");
+		assertNoMoreChanges();
+	}
+	
+	@Test
+	public void renameOfPendingChangeIsRead() throws InterruptedException {
+		event(CLOSE_WRITE, "/c/", "a.json");
+		event(MOVED_FROM, "/c/", "a.json");
+		event(MOVED_TO, "/c/", "b.json");
+		String[] changes = { handler.changes.poll(5, TimeUnit.SECONDS), handler.changes.poll(5, TimeUnit.SECONDS) };
+		Arrays.sort(changes);
+		assertEquals("[delete a.json, reload /c/b.json]", Arrays.toString(changes));
+		assertNoMoreChanges();
+	}
+	
+	@Test
+	public void fileMovedBackIsRead() throws InterruptedException {
+		event(MOVED_FROM, "/c/", "a.json");
+		event(MOVED_TO, "/c/", "a.json");
+		assertChange("reload /c/a.json");
+		assertNoMoreChanges();
+	}
+}
@@ -0,0 +1,81 @@
+package net.xcordio.vmmanagerservice.util;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares parsing of inotifywait-like output by {@link LegacyCSVReader} and by {@link CSVReader}, both returning
+ * fields as strings and passing them to a {@link CSVReader.RowHandler}.
+ * <p>
+ * Run with <code>gradle jmh -Pjmh=CSVReaderBenchmark</code>.
+ * @author xcordio
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CSVReaderBenchmark {
+	
+	/** Sums lengths of fields, so they're not optimized away. */
+	protected static class LengthHandler implements CSVReader.RowHandler {
+		
+		public int length;
+		
+		@Override
+		public void handleField(int index, char[] chars, int offset, int length) {
+			this.length += length;
+		}
+	}
+	
+	protected String csv;
+	
+	@Setup
+	public void setup() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 1000; i ++) {
+			sb.append("/var/lib/vm-manager/instances/,");
+			sb.append(i % 3 == 0 ? "\"CLOSE_WRITE,CLOSE\"" : "MODIFY");
+			sb.append(i % 10 == 0 ? ",\"instance, \"\"" + i + "\"\".json\"\n" : ",instance-" + i + ".json\n");
+		}
+		csv = sb.toString();
+	}
+	
+	@Benchmark
+	public int legacyNextCsv() throws IOException {
+		LegacyCSVReader csvr = new LegacyCSVReader(new StringReader(csv));
+		int n = 0;
+		for (List<String> row; (row = csvr.nextCsv()) != null; ) n += row.size();
+		return n;
+	}
+	
+	@Benchmark
+	public int nextCsv() throws IOException {
+		CSVReader csvr = new CSVReader(new StringReader(csv));
+		int n = 0;
+		for (List<String> row; (row = csvr.nextCsv()) != null; ) n += row.size();
+		return n;
+	}
+	
+	@Benchmark
+	public int nextRow() throws IOException {
+		CSVReader csvr = new CSVReader(new StringReader(csv));
+		LengthHandler handler = new LengthHandler();
+		while (csvr.nextRow(handler) >= 0);
+		return handler.length;
+	}
+}
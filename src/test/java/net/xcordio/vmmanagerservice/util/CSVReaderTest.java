@@ -0,0 +1,151 @@
+package net.xcordio.vmmanagerservice.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks {@link CSVReader} parses the same rows as {@link LegacyCSVReader}, including fields split between blocks of
+ * input, which is forced with tiny buffers and a reader returning few chars per call.
+ * @author xcordio
+ */
+public class CSVReaderTest {
+	
+	/** Returns at most given count of chars per call, as a pipe may. */
+	protected static class ChunkedReader extends Reader {
+		
+		protected final Reader reader;
+		protected final int chunk;
+		
+		public ChunkedReader(Reader reader, int chunk) {
+			this.reader = reader;
+			this.chunk = chunk;
+		}
+		
+		@Override
+		public int read(char[] cbuf, int off, int len) throws IOException {
+			return reader.read(cbuf, off, Math.min(len, chunk));
+		}
+		
+		@Override
+		public void close() throws IOException {
+			reader.close();
+		}
+	}
+	
+	@Test
+	public void quotedFields() throws IOException {
+		assertRows("\"a\",\"b \"\"c\"\"\",\"\"\n", Arrays.asList("a", "b \"c\"", ""));
+	}
+	
+	@Test
+	public void embeddedCommasAndLineBreaks() throws IOException {
+		assertRows("\"a,b\",\"c\r\nd\",e\r\nf,,\n", Arrays.asList("a,b", "c\r\nd", "e"), Arrays.asList("f", "", ""));
+	}
+	
+	@Test
+	public void emptyLinesAndLastLineWithNoBreak() throws IOException {
+		assertRows("a\n\nb,c", Arrays.asList("a"), Arrays.<String>asList(), Arrays.asList("b", "c"));
+	}
+	
+	@Test
+	public void fieldsSplitBetweenBlocks() throws IOException {
+		String line = "/var/lib/some/watched/dir/,\"CLOSE_WRITE,CLOSE\",\"file, with \"\"quotes\"\"\"\r\n";
+		StringBuilder csv = new StringBuilder();
+		for (int i = 0; i < 10; i ++) csv.append(line);
+		for (int size = 1; size <= line.length() + 1; size ++)
+			for (int chunk = 1; chunk <= 3; chunk ++) assertParity(csv.toString(), size, chunk);
+	}
+	
+	@Test
+	public void longFieldsGrowingBuffer() throws IOException {
+		StringBuilder csv = new StringBuilder();
+		for (int i = 0; i < 1000; i ++) csv.append(i % 10);
+		csv.append(",\"");
+		for (int i = 0; i < 1000; i ++) csv.append(i % 7 == 0 ? "\"\"" : ",");
+		csv.append("\"\n");
+		assertParity(csv.toString(), 16, 1000);
+	}
+	
+	@Test
+	public void randomInputs() throws IOException {
+		Random random = new Random(1);
+		String alphabet = "ab,\"\r\n";
+		for (int i = 0; i < 100000; i ++) {
+			StringBuilder csv = new StringBuilder();
+			for (int n = random.nextInt(16); n > 0; n --) csv.append(alphabet.charAt(random.nextInt(alphabet.length())));
+			assertParity(csv.toString(), 1 + random.nextInt(5), 1 + random.nextInt(5));
+		}
+	}
+	
+	@Test
+	public void corruptedQuote() throws IOException {
+		CSVReader csvr = new CSVReader(new StringReader("\"a\"b\n"));
+		try {
+			csvr.nextCsv();
+			fail("quoted field followed by char is accepted");
+		} catch (IOException expected) {
+		}
+	}
+	
+	@Test
+	public void rowHandlerCounts() throws IOException {
+		CSVReader csvr = new CSVReader(new StringReader("a,b\n\n\"c\""), 2);
+		final List<String> fields = new ArrayList<String>();
+		CSVReader.RowHandler handler = new CSVReader.RowHandler() {
+			@Override
+			public void handleField(int index, char[] chars, int offset, int length) {
+				fields.add(index + ":" + new String(chars, offset, length));
+			}
+		};
+		assertEquals(2, csvr.nextRow(handler));
+		assertEquals(0, csvr.nextRow(handler));
+		assertEquals(1, csvr.nextRow(handler));
+		assertEquals(-1, csvr.nextRow(handler));
+		assertEquals(Arrays.asList("0:a", "1:b", "0:c"), fields);
+	}
+	
+	@SafeVarargs
+	protected static void assertRows(String csv, List<String>... rows) throws IOException {
+		CSVReader csvr = new CSVReader(new StringReader(csv), 4);
+		for (List<String> row : rows) assertEquals(row, csvr.nextCsv());
+		assertNull(csvr.nextCsv());
+		assertParity(csv, 4, 3);
+	}
+	
+	protected static void assertParity(String csv, int bufferSize, int chunk) throws IOException {
+		assertEquals("rows of `" + csv + "` with buffer of " + bufferSize + " and chunks of " + chunk,
+				parseLegacy(csv), parse(new CSVReader(new ChunkedReader(new StringReader(csv), chunk), bufferSize)));
+	}
+	
+	protected static List<Object> parse(CSVReader csvr) {
+		List<Object> rows = new ArrayList<Object>();
+		try {
+			for (List<String> row; (row = csvr.nextCsv()) != null; ) rows.add(row);
+		} catch (IOException e) {
+			rows.add(e.getMessage());
+		}
+		return rows;
+	}
+	
+	protected static List<Object> parseLegacy(String csv) {
+		LegacyCSVReader csvr = new LegacyCSVReader(new StringReader(csv));
+		List<Object> rows = new ArrayList<Object>();
+		try {
+			for (List<String> row; (row = csvr.nextCsv()) != null; ) rows.add(row);
+		} catch (IOException e) {
+			rows.add(e.getMessage());
+		}
+		return rows;
+	}
+}
@@ -0,0 +1,158 @@
+package net.xcordio.vmmanagerservice.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+/**
+ * Binds JSON with {@link JSONStreamBinder}; test classes have no generated binders, so keys are bound reflectively.
+ * @author xcordio
+ */
+public class JSONStreamBinderTest {
+	
+	public static class Item {
+		
+		public String name;
+		public BigDecimal price;
+		public int count;
+	}
+	
+	public static class Order {
+		
+		public String id;
+		public boolean paid;
+		public long created;
+		public Item primary;
+		public List<Item> items;
+		public List<String> tags;
+	}
+	
+	protected static JSONStreamBinder binder(String json) {
+		return new JSONStreamBinder(new StringReader(json.replace('\'', '"'))).setLenient(true);
+	}
+	
+	protected static Order order(String json) throws IOException {
+		return binder(json).bindObject(new Order());
+	}
+	
+	protected static void assertCorrupt(String json) {
+		try {
+			order(json);
+			fail("corrupt json is accepted: " + json);
+		} catch (IOException expected) {
+			assertTrue(expected.getMessage(), expected.getMessage().startsWith("corrupt json"));
+		}
+	}
+	
+	@Test
+	public void nestedObjectsAndLists() throws IOException {
+		Order o = order("{'id': 'o-1', 'paid': true, 'created': 1476748800000,"
+				+ " 'primary': {'name': 'disk', 'count': 2},"
+				+ " 'items': [{'name': 'cpu', 'count': 4}, {'name': 'ram', 'count': 8}], 'tags': ['a', 'b']}");
+		assertEquals("o-1", o.id);
+		assertTrue(o.paid);
+		assertEquals(1476748800000L, o.created);
+		assertEquals("disk", o.primary.name);
+		assertEquals(2, o.primary.count);
+		assertEquals(2, o.items.size());
+		assertEquals("ram", o.items.get(1).name);
+		assertEquals(8, o.items.get(1).count);
+		assertEquals(Arrays.asList("a", "b"), o.tags);
+	}
+	
+	@Test
+	public void emptyContainers() throws IOException {
+		Order o = order("{'primary': {}, 'items': [], 'tags': []}");
+		assertNull(o.primary.name);
+		assertTrue(o.items.isEmpty());
+		assertTrue(o.tags.isEmpty());
+		assertNull(order(" {} ").id);
+	}
+	
+	@Test
+	public void bindList() throws IOException {
+		List<Item> items = binder("[{'name': 'a'}, {'name': 'b', 'count': 1}]").bindList(Item.class);
+		assertEquals(2, items.size());
+		assertEquals("a", items.get(0).name);
+		assertEquals(1, items.get(1).count);
+	}
+	
+	@Test
+	public void missingCommas() {
+		assertCorrupt("{'id': 'a' 'paid': true}");
+		assertCorrupt("{'tags': ['a' 'b']}");
+		assertCorrupt("{'items': [{'name': 'a'} {'name': 'b'}]}");
+		assertCorrupt("{'tags': ['a',, 'b']}");
+		assertCorrupt("{, 'id': 'a'}");
+	}
+	
+	@Test
+	public void trailingCommas() throws IOException {
+		Order o = order("{'id': 'a', 'tags': ['b', ], 'items': [{'name': 'c',},],}");
+		assertEquals("a", o.id);
+		assertEquals(Arrays.asList("b"), o.tags);
+		assertEquals("c", o.items.get(0).name);
+	}
+	
+	@Test
+	public void escapes() throws IOException {
+		Order o = order("{'id': 'q\\'b\\\\s\\/n\\nt\\tu\\u00e9\\u0041\\uD83D\\uDE00'}");
+		assertEquals("q\"b\\s/n\nt\tu\u00e9A\ud83d\ude00", o.id);
+		assertCorrupt("{'id': 'a\\x'}");
+		assertCorrupt("{'id': 'a\\u00g0'}");
+		assertCorrupt("{'id': 'unterminated");
+	}
+	
+	@Test
+	public void bigDecimalPrices() throws IOException {
+		Item i = binder("{'price': 0.1}").bindObject(new Item());
+		assertEquals(new BigDecimal("0.1"), i.price);
+		i = binder("{'price': 12345678901234567890.123456789}").bindObject(new Item());
+		assertEquals(new BigDecimal("12345678901234567890.123456789"), i.price);
+		i = binder("{'price': -1.5e3}").bindObject(new Item());
+		assertEquals(0, new BigDecimal("-1500").compareTo(i.price));
+	}
+	
+	@Test
+	public void unquotedTextIsRejected() {
+		assertCorrupt("{'id': abc}");
+		assertCorrupt("{'created': 0x10}");
+		assertCorrupt("{'created': 01}");
+		assertCorrupt("{'paid': True}");
+		assertCorrupt("{'unknown': abc}");
+		assertCorrupt("{'unknown': [1, nul]}");
+	}
+	
+	@Test
+	public void numbersOutOfRange() {
+		assertCorrupt("{'created': 1.5}");
+		assertCorrupt("{'primary': {'count': 9999999999}}");
+	}
+	
+	@Test
+	public void unknownKeysAreSkipped() throws IOException {
+		Order o = order("{'unknown': {'a': [1, -2.5e-3, {'b': 'x}]\\'{'}, true, false, null], 'c': {}},"
+				+ " 'id': 'a', 'unknown2': [[], [[]]], 'primary': {'unknown3': 'y', 'name': 'n'}, 'unknown4': null}");
+		assertEquals("a", o.id);
+		assertEquals("n", o.primary.name);
+	}
+	
+	@Test
+	public void readValue() throws IOException {
+		Object v = binder("{'a': [1, 2.5, 'x', null, true], 'b': {'c': 12345678901}}").readValue();
+		JSONObject expected = new JSONObject().put("a", new JSONArray().put(1).put(2.5).put("x").put(JSONObject.NULL).put(true))
+				.put("b", new JSONObject().put("c", 12345678901L));
+		assertTrue(v.toString(), expected.similar(v));
+	}
+}
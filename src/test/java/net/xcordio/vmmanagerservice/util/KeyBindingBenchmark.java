@@ -0,0 +1,97 @@
+package net.xcordio.vmmanagerservice.util;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.xcordio.vmmanagerservice.model.DatabaseInfo;
+import net.xcordio.vmmanagerservice.util.ReflectiveConfig.ReflectiveKeyInfo;
+
+/**
+ * Compares ways keys are bound: {@link Field#set}, as keys were bound before {@link ReflectiveKeyInfo} compiled
+ * method handles, the method handles themselves, and {@link ConfigBinder} generated at build time. The whole
+ * {@link ReflectiveConfig#applyConfig(Object, JSONObject)} is measured for the latter two, as the same fields are
+ * bound by generated binder for {@link DatabaseInfo} and reflectively for {@link Database}, which has no binder since
+ * test classes are compiled with no binder processor.
+ * <p>
+ * Run with <code>gradle jmh -Pjmh=KeyBindingBenchmark</code>.
+ * @author xcordio
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeyBindingBenchmark {
+	
+	/** Same fields as {@link DatabaseInfo}, but bound reflectively. */
+	public static class Database {
+		
+		public String provider;
+		public String username;
+		public String password;
+	}
+	
+	protected static final String[] KEYS = { "provider", "username", "password" };
+	protected static final String[] VALUES = { "mysql", "admin", "secret" };
+	
+	protected final DatabaseInfo info = new DatabaseInfo();
+	protected final Database database = new Database();
+	protected final Field[] fields = new Field[KEYS.length];
+	protected final KeyBinding[] handles = new KeyBinding[KEYS.length];
+	protected final KeyBinding[] generated = new KeyBinding[KEYS.length];
+	protected JSONObject json;
+	
+	@Setup
+	public void setup() throws NoSuchFieldException {
+		ConfigBinder binder = ReflectiveConfig.binders.get(DatabaseInfo.class);
+		if (binder == null) throw new IllegalStateException("no binder was generated for " + DatabaseInfo.class);
+		json = new JSONObject();
+		for (int i = 0; i < KEYS.length; i ++) {
+			fields[i] = DatabaseInfo.class.getField(KEYS[i]);
+			handles[i] = new ReflectiveKeyInfo(DatabaseInfo.class, KEYS[i]);
+			generated[i] = binder.bind(KEYS[i]);
+			json.put(KEYS[i], VALUES[i]);
+		}
+	}
+	
+	@Benchmark
+	public Object setReflective() throws IllegalAccessException {
+		for (int i = 0; i < fields.length; i ++) fields[i].set(info, VALUES[i]);
+		return info;
+	}
+	
+	@Benchmark
+	public Object setMethodHandle() {
+		for (int i = 0; i < handles.length; i ++) handles[i].set(info, VALUES[i]);
+		return info;
+	}
+	
+	@Benchmark
+	public Object setGenerated() {
+		for (int i = 0; i < generated.length; i ++) generated[i].set(info, VALUES[i]);
+		return info;
+	}
+	
+	@Benchmark
+	public Object applyMethodHandle() {
+		return ReflectiveConfig.getInstance().applyConfig(database, json);
+	}
+	
+	@Benchmark
+	public Object applyGenerated() {
+		return ReflectiveConfig.getInstance().applyConfig(info, json);
+	}
+}
@@ -0,0 +1,229 @@
+package net.xcordio.vmmanagerservice.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import net.xcordio.vmmanagerservice.util.KeyedDispatcher.Backpressure;
+
+/**
+ * Checks ordering, parallelism and backpressure of {@link KeyedDispatcher}.
+ * @author xcordio
+ */
+public class KeyedDispatcherTest {
+	
+	protected KeyedDispatcher dispatcher;
+	
+	@After
+	public void shutdown() {
+		if (dispatcher != null) dispatcher.shutdown();
+	}
+	
+	/** Task waiting for given latch, so it holds its worker and key. */
+	protected static Runnable await(final CountDownLatch latch) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				try {
+					latch.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+	}
+	
+	/** @return latch released once all tasks queued before it on given key are run */
+	protected CountDownLatch drained(String key) throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch(1);
+		assertTrue(dispatcher.dispatch(key, new Runnable() {
+			@Override
+			public void run() {
+				done.countDown();
+			}
+		}));
+		return done;
+	}
+	
+	@Test
+	public void tasksOfKeyRunInOrder() throws InterruptedException {
+		dispatcher = new KeyedDispatcher("test", 4, 10000, Backpressure.BLOCK);
+		final List<List<Integer>> runs = new ArrayList<List<Integer>>();
+		for (int k = 0; k < 8; k ++) runs.add(Collections.synchronizedList(new ArrayList<Integer>()));
+		List<Integer> expected = new ArrayList<Integer>();
+		for (int i = 0; i < 1000; i ++) {
+			expected.add(i);
+			for (int k = 0; k < runs.size(); k ++) {
+				final List<Integer> run = runs.get(k);
+				final int n = i;
+				assertTrue(dispatcher.dispatch("key" + k, new Runnable() {
+					@Override
+					public void run() {
+						run.add(n);
+					}
+				}));
+			}
+		}
+		for (int k = 0; k < runs.size(); k ++) assertTrue(drained("key" + k).await(10, TimeUnit.SECONDS));
+		for (List<Integer> run : runs) assertEquals(expected, run);
+		assertEquals(0, dispatcher.getQueueDepth());
+	}
+	
+	@Test
+	public void tasksOfKeyDontOverlap() throws InterruptedException {
+		dispatcher = new KeyedDispatcher("test", 4, 1000, Backpressure.BLOCK);
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicBoolean overlapped = new AtomicBoolean();
+		for (int i = 0; i < 200; i ++)
+			dispatcher.dispatch("key", new Runnable() {
+				@Override
+				public void run() {
+					if (running.incrementAndGet() > 1) overlapped.set(true);
+					Thread.yield();
+					running.decrementAndGet();
+				}
+			});
+		assertTrue(drained("key").await(10, TimeUnit.SECONDS));
+		assertFalse(overlapped.get());
+	}
+	
+	@Test
+	public void keysRunInParallel() throws InterruptedException {
+		dispatcher = new KeyedDispatcher("test", 2, 10, Backpressure.BLOCK);
+		// both tasks pass the barrier only if they run at the same time
+		final CyclicBarrier barrier = new CyclicBarrier(2);
+		final CountDownLatch passed = new CountDownLatch(2);
+		for (String key : new String[] { "a", "b" })
+			dispatcher.dispatch(key, new Runnable() {
+				@Override
+				public void run() {
+					try {
+						barrier.await(10, TimeUnit.SECONDS);
+						passed.countDown();
+					} catch (Exception e) {
+						// not counted
+					}
+				}
+			});
+		assertTrue(passed.await(10, TimeUnit.SECONDS));
+	}
+	
+	@Test
+	public void busyKeyDoesntHoldOthers() throws InterruptedException {
+		dispatcher = new KeyedDispatcher("test", 2, 100, Backpressure.BLOCK);
+		CountDownLatch release = new CountDownLatch(1);
+		dispatcher.dispatch("busy", await(release));
+		for (int i = 0; i < 10; i ++) dispatcher.dispatch("busy", await(release));
+		assertTrue(drained("other").await(10, TimeUnit.SECONDS));
+		release.countDown();
+		assertTrue(drained("busy").await(10, TimeUnit.SECONDS));
+	}
+	
+	@Test
+	public void blockWaitsForFreePlace() throws InterruptedException {
+		dispatcher = new KeyedDispatcher("test", 1, 1, Backpressure.BLOCK);
+		CountDownLatch release = new CountDownLatch(1);
+		dispatcher.dispatch("a", await(release));
+		while (dispatcher.getQueueDepth() > 0) Thread.sleep(1); // running tasks don't take places
+		assertTrue(dispatcher.dispatch("a", await(release)));
+		final CountDownLatch dispatched = new CountDownLatch(1);
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				try {
+					if (dispatcher.dispatch("b", await(new CountDownLatch(0)))) dispatched.countDown();
+				} catch (InterruptedException e) {
+					// not counted
+				}
+			}
+		};
+		t.start();
+		assertFalse(dispatched.await(200, TimeUnit.MILLISECONDS));
+		release.countDown();
+		assertTrue(dispatched.await(10, TimeUnit.SECONDS));
+		assertEquals(0, dispatcher.getDropped());
+	}
+	
+	@Test
+	public void dropRejectsWhenFull() throws InterruptedException {
+		dispatcher = new KeyedDispatcher("test", 1, 2, Backpressure.DROP);
+		CountDownLatch release = new CountDownLatch(1);
+		dispatcher.dispatch("a", await(release));
+		while (dispatcher.getQueueDepth() > 0) Thread.sleep(1);
+		assertTrue(dispatcher.dispatch("a", await(release)));
+		assertTrue(dispatcher.dispatch("b", await(release)));
+		assertFalse(dispatcher.dispatch("c", await(release)));
+		assertEquals(1, dispatcher.getDropped());
+		release.countDown();
+		while (dispatcher.getQueueDepth() > 0) Thread.sleep(1);
+		assertTrue(drained("c").await(10, TimeUnit.SECONDS));
+	}
+	
+	@Test
+	public void workersQueueBeyondCapacityUpToCap() throws InterruptedException {
+		dispatcher = new KeyedDispatcher("test", 1, 2, Backpressure.BLOCK);
+		final AtomicInteger accepted = new AtomicInteger();
+		final AtomicInteger ran = new AtomicInteger();
+		final CountDownLatch dispatched = new CountDownLatch(1);
+		// single worker would wait for itself if it blocked
+		dispatcher.dispatch("outer", new Runnable() {
+			@Override
+			public void run() {
+				try {
+					for (int i = 0; i < 10; i ++)
+						if (dispatcher.dispatch("inner", new Runnable() {
+							@Override
+							public void run() {
+								ran.incrementAndGet();
+							}
+						})) accepted.incrementAndGet();
+				} catch (InterruptedException e) {
+					return;
+				}
+				dispatched.countDown();
+			}
+		});
+		assertTrue(dispatched.await(10, TimeUnit.SECONDS));
+		// capacity places, and as many beyond capacity
+		assertEquals(4, accepted.get());
+		assertEquals(6, dispatcher.getDropped());
+		assertTrue(drained("inner").await(10, TimeUnit.SECONDS));
+		assertEquals(4, ran.get());
+		// places beyond capacity are free again
+		assertEquals(0, dispatcher.getQueueDepth());
+		assertEquals(2, dispatcher.overflow.availablePermits());
+		assertEquals(2, dispatcher.queued.availablePermits());
+	}
+	
+	@Test
+	public void failingTaskDoesntStopKey() throws InterruptedException {
+		dispatcher = new KeyedDispatcher("test", 1, 10, Backpressure.BLOCK);
+		dispatcher.dispatch("a", new Runnable() {
+			@Override
+			public void run() {
+				throw new IllegalStateException("expected by test");
+			}
+		});
+		assertTrue(drained("a").await(10, TimeUnit.SECONDS));
+	}
+	
+	@Test
+	public void shutdownRejectsTasks() throws InterruptedException {
+		dispatcher = new KeyedDispatcher("test", 1, 10, Backpressure.BLOCK);
+		dispatcher.shutdown();
+		assertFalse(dispatcher.dispatch("a", await(new CountDownLatch(0))));
+		assertEquals(10, dispatcher.queued.availablePermits());
+	}
+}